@@ -0,0 +1,553 @@
+package com.eaglesakura.android.bluetooth;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * アドバタイズデータ(scanRecord)のAD Structureを順に走査する
+ * <br>
+ * scanRecordはLength/Type/Valueの並びで構成される。
+ * 配列をコピーせずにその場で位置のみを進めるため、走査中のアロケーションは発生しない。
+ * 1つのインスタンスをreset()で使い回すことができる。
+ * <pre>
+ * AdvertisingDataCursor cursor = cache.getAdvertisingData();
+ * while (cursor.next()) {
+ *     if (cursor.getType() == AdvertisingDataCursor.AD_TYPE_MANUFACTURER_DATA) {
+ *         int companyId = cursor.getManufacturerId();
+ *     }
+ * }
+ * </pre>
+ * スレッドセーフではないため、スレッドごとにインスタンスを用意すること。
+ */
+public final class AdvertisingDataCursor {
+    /**
+     * AD Type : Flags
+     */
+    public static final int AD_TYPE_FLAGS = 0x01;
+
+    /**
+     * AD Type : 16bit Service UUID(一部)
+     */
+    public static final int AD_TYPE_SERVICE_UUID_16_PARTIAL = 0x02;
+
+    /**
+     * AD Type : 16bit Service UUID
+     */
+    public static final int AD_TYPE_SERVICE_UUID_16 = 0x03;
+
+    /**
+     * AD Type : 32bit Service UUID(一部)
+     */
+    public static final int AD_TYPE_SERVICE_UUID_32_PARTIAL = 0x04;
+
+    /**
+     * AD Type : 32bit Service UUID
+     */
+    public static final int AD_TYPE_SERVICE_UUID_32 = 0x05;
+
+    /**
+     * AD Type : 128bit Service UUID(一部)
+     */
+    public static final int AD_TYPE_SERVICE_UUID_128_PARTIAL = 0x06;
+
+    /**
+     * AD Type : 128bit Service UUID
+     */
+    public static final int AD_TYPE_SERVICE_UUID_128 = 0x07;
+
+    /**
+     * AD Type : Local Name(短縮)
+     */
+    public static final int AD_TYPE_LOCAL_NAME_SHORT = 0x08;
+
+    /**
+     * AD Type : Local Name
+     */
+    public static final int AD_TYPE_LOCAL_NAME_COMPLETE = 0x09;
+
+    /**
+     * AD Type : Tx Power Level
+     */
+    public static final int AD_TYPE_TX_POWER_LEVEL = 0x0A;
+
+    /**
+     * AD Type : 16bit Service Data
+     */
+    public static final int AD_TYPE_SERVICE_DATA_16 = 0x16;
+
+    /**
+     * AD Type : 32bit Service Data
+     */
+    public static final int AD_TYPE_SERVICE_DATA_32 = 0x20;
+
+    /**
+     * AD Type : 128bit Service Data
+     */
+    public static final int AD_TYPE_SERVICE_DATA_128 = 0x21;
+
+    /**
+     * AD Type : Manufacturer Specific Data
+     */
+    public static final int AD_TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /**
+     * Bluetooth Base UUIDの下位64bit
+     */
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] mRecord;
+
+    /**
+     * 走査の始端
+     */
+    private int mStart;
+
+    /**
+     * 走査の終端
+     */
+    private int mEnd;
+
+    /**
+     * 次のAD Structureの位置
+     */
+    private int mNextOffset;
+
+    private int mType = -1;
+
+    private int mDataOffset;
+
+    private int mDataLength;
+
+    public AdvertisingDataCursor() {
+    }
+
+    public AdvertisingDataCursor(byte[] scanRecord) {
+        reset(scanRecord);
+    }
+
+    /**
+     * 走査対象を指定し、先頭へ戻す
+     *
+     * @param scanRecord アドバタイズデータ、nullの場合は空として扱う
+     */
+    public AdvertisingDataCursor reset(byte[] scanRecord) {
+        return reset(scanRecord, 0, scanRecord != null ? scanRecord.length : 0);
+    }
+
+    /**
+     * 走査対象の範囲を指定し、先頭へ戻す
+     */
+    public AdvertisingDataCursor reset(byte[] scanRecord, int offset, int length) {
+        mRecord = scanRecord;
+        mStart = offset;
+        mEnd = (scanRecord != null) ? offset + length : offset;
+        return rewind();
+    }
+
+    /**
+     * 先頭へ戻す
+     */
+    public AdvertisingDataCursor rewind() {
+        mNextOffset = mStart;
+        mType = -1;
+        mDataOffset = 0;
+        mDataLength = 0;
+        return this;
+    }
+
+    /**
+     * 次のAD Structureへ進める
+     * <br>
+     * Length=0(パディング)または範囲外を指すLengthに到達した時点で終了する。
+     *
+     * @return AD Structureが存在すればtrue
+     */
+    public boolean next() {
+        if (mNextOffset >= mEnd) {
+            return finish();
+        }
+
+        final int length = mRecord[mNextOffset] & 0xFF;
+        if (length == 0 || mNextOffset + 1 + length > mEnd) {
+            return finish();
+        }
+
+        mType = mRecord[mNextOffset + 1] & 0xFF;
+        mDataOffset = mNextOffset + 2;
+        mDataLength = length - 1;
+        mNextOffset += 1 + length;
+        return true;
+    }
+
+    /**
+     * 指定したAD Typeが見つかるまで進める
+     *
+     * @return 見つかった場合true
+     */
+    public boolean moveTo(int adType) {
+        while (next()) {
+            if (mType == adType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean finish() {
+        mNextOffset = mEnd;
+        mType = -1;
+        mDataOffset = 0;
+        mDataLength = 0;
+        return false;
+    }
+
+    /**
+     * 現在のAD Type
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * 走査対象の配列
+     */
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    /**
+     * 現在のAD Structureのデータ部の位置
+     */
+    public int getDataOffset() {
+        return mDataOffset;
+    }
+
+    /**
+     * 現在のAD Structureのデータ部の長さ
+     */
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * データ部のバイトを符号なしで取得する
+     *
+     * @param index データ部先頭からの位置
+     */
+    public int getUint8(int index) {
+        checkIndex(index, 1);
+        return mRecord[mDataOffset + index] & 0xFF;
+    }
+
+    /**
+     * データ部の2バイトをリトルエンディアンの符号なし整数として取得する
+     *
+     * @param index データ部先頭からの位置
+     */
+    public int getUint16(int index) {
+        checkIndex(index, 2);
+        final int offset = mDataOffset + index;
+        return (mRecord[offset] & 0xFF) | ((mRecord[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     * データ部をコピーする
+     *
+     * @return コピーしたバイト数
+     */
+    public int copyData(byte[] dst, int dstOffset) {
+        final int length = Math.min(mDataLength, dst.length - dstOffset);
+        System.arraycopy(mRecord, mDataOffset, dst, dstOffset, length);
+        return length;
+    }
+
+    /**
+     * Flagsを取得する
+     *
+     * @return Flags、現在のAD StructureがFlagsでない場合は-1
+     */
+    public int getFlags() {
+        if (mType != AD_TYPE_FLAGS || mDataLength < 1) {
+            return -1;
+        }
+        return getUint8(0);
+    }
+
+    /**
+     * Tx Power Levelを取得する
+     *
+     * @return dBm、現在のAD StructureがTx Power Levelでない場合はInteger.MIN_VALUE
+     */
+    public int getTxPowerLevel() {
+        if (mType != AD_TYPE_TX_POWER_LEVEL || mDataLength < 1) {
+            return Integer.MIN_VALUE;
+        }
+        return mRecord[mDataOffset];
+    }
+
+    /**
+     * Local Nameであればtrue
+     */
+    public boolean isLocalName() {
+        return mType == AD_TYPE_LOCAL_NAME_COMPLETE || mType == AD_TYPE_LOCAL_NAME_SHORT;
+    }
+
+    /**
+     * Local Nameを取得する
+     * <br>
+     * 文字列を生成するため、アロケーションが発生する。
+     *
+     * @return Local Name、現在のAD StructureがLocal Nameでない場合はnull
+     */
+    public String getLocalName() {
+        if (!isLocalName()) {
+            return null;
+        }
+        return new String(mRecord, mDataOffset, mDataLength, UTF8);
+    }
+
+    /**
+     * 含まれるService UUIDの数を取得する
+     * <br>
+     * 16/32/128bitのService UUIDリストでない場合は0となる。
+     */
+    public int getServiceUuidCount() {
+        final int size = getServiceUuidSize();
+        return size > 0 ? (mDataLength / size) : 0;
+    }
+
+    /**
+     * 現在のAD Structureに含まれるService UUIDのバイト数
+     */
+    private int getServiceUuidSize() {
+        switch (mType) {
+            case AD_TYPE_SERVICE_UUID_16:
+            case AD_TYPE_SERVICE_UUID_16_PARTIAL:
+                return 2;
+            case AD_TYPE_SERVICE_UUID_32:
+            case AD_TYPE_SERVICE_UUID_32_PARTIAL:
+                return 4;
+            case AD_TYPE_SERVICE_UUID_128:
+            case AD_TYPE_SERVICE_UUID_128_PARTIAL:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Service UUIDの上位64bitを取得する
+     * <br>
+     * 16/32bitの場合はBluetooth Base UUIDへ展開した値となる。
+     *
+     * @param index 0 〜 getServiceUuidCount() - 1
+     */
+    public long getServiceUuidMsb(int index) {
+        final int size = getServiceUuidSize();
+        return readUuidMsb(index * size, size);
+    }
+
+    /**
+     * Service UUIDの下位64bitを取得する
+     *
+     * @param index 0 〜 getServiceUuidCount() - 1
+     */
+    public long getServiceUuidLsb(int index) {
+        final int size = getServiceUuidSize();
+        return readUuidLsb(index * size, size);
+    }
+
+    /**
+     * Service UUIDを取得する
+     * <br>
+     * UUIDを生成するため、アロケーションが発生する。
+     */
+    public UUID getServiceUuid(int index) {
+        return new UUID(getServiceUuidMsb(index), getServiceUuidLsb(index));
+    }
+
+    /**
+     * 現在のAD Structureが指定したService UUIDを含んでいればtrue
+     */
+    public boolean containsServiceUuid(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        final int count = getServiceUuidCount();
+        for (int i = 0; i < count; ++i) {
+            if (getServiceUuidLsb(i) == lsb && getServiceUuidMsb(i) == msb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 16bit Service DataのUUIDを取得する
+     *
+     * @return UUID、現在のAD Structureが16bit Service Dataでない場合は-1
+     */
+    public int getServiceDataUuid16() {
+        if (mType != AD_TYPE_SERVICE_DATA_16 || mDataLength < 2) {
+            return -1;
+        }
+        return getUint16(0);
+    }
+
+    /**
+     * Service Dataであればtrue
+     * <br>
+     * 16/32/128bitのいずれのUUIDでもtrueとなる。
+     */
+    public boolean isServiceData() {
+        return getServiceDataUuidSize() > 0;
+    }
+
+    /**
+     * 現在のAD Structureに含まれるService DataのUUIDのバイト数
+     * <br>
+     * Service Dataでない場合、またはUUIDを含まない長さの場合は0となる。
+     */
+    private int getServiceDataUuidSize() {
+        final int size;
+        switch (mType) {
+            case AD_TYPE_SERVICE_DATA_16:
+                size = 2;
+                break;
+            case AD_TYPE_SERVICE_DATA_32:
+                size = 4;
+                break;
+            case AD_TYPE_SERVICE_DATA_128:
+                size = 16;
+                break;
+            default:
+                return 0;
+        }
+        return (mDataLength >= size) ? size : 0;
+    }
+
+    /**
+     * Service DataのUUIDの上位64bitを取得する
+     * <br>
+     * 16/32bitの場合はBluetooth Base UUIDへ展開した値となる。
+     * 現在のAD StructureがService Dataでない場合はIndexOutOfBoundsExceptionとなる。
+     */
+    public long getServiceDataUuidMsb() {
+        return readUuidMsb(0, getServiceDataUuidSize());
+    }
+
+    /**
+     * Service DataのUUIDの下位64bitを取得する
+     * <br>
+     * 現在のAD StructureがService Dataでない場合はIndexOutOfBoundsExceptionとなる。
+     */
+    public long getServiceDataUuidLsb() {
+        return readUuidLsb(0, getServiceDataUuidSize());
+    }
+
+    /**
+     * Service DataのUUIDを取得する
+     * <br>
+     * UUIDを生成するため、アロケーションが発生する。
+     *
+     * @return UUID、現在のAD StructureがService Dataでない場合はnull
+     */
+    public UUID getServiceDataUuid() {
+        if (!isServiceData()) {
+            return null;
+        }
+        return new UUID(getServiceDataUuidMsb(), getServiceDataUuidLsb());
+    }
+
+    /**
+     * 会社識別子を取得する
+     *
+     * @return 会社識別子、現在のAD StructureがManufacturer Specific Dataでない場合は-1
+     */
+    public int getManufacturerId() {
+        if (mType != AD_TYPE_MANUFACTURER_DATA || mDataLength < 2) {
+            return -1;
+        }
+        return getUint16(0);
+    }
+
+    /**
+     * Service DataまたはManufacturer Specific Dataの、識別子を除いたペイロードの位置
+     * <br>
+     * Service Dataの場合はUUIDのバイト数、それ以外は会社識別子の2バイトを除く。
+     */
+    public int getPayloadOffset() {
+        return mDataOffset + getPayloadIdSize();
+    }
+
+    /**
+     * Service DataまたはManufacturer Specific Dataの、識別子を除いたペイロードの長さ
+     */
+    public int getPayloadLength() {
+        return Math.max(mDataLength - getPayloadIdSize(), 0);
+    }
+
+    /**
+     * ペイロードの前にある識別子のバイト数
+     */
+    private int getPayloadIdSize() {
+        switch (mType) {
+            case AD_TYPE_SERVICE_DATA_32:
+                return 4;
+            case AD_TYPE_SERVICE_DATA_128:
+                return 16;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * データ部のUUIDの上位64bitを読み込む
+     * <br>
+     * 16/32bitの場合はBluetooth Base UUIDへ展開する。
+     *
+     * @param offset データ部先頭からの位置
+     * @param size   UUIDのバイト数(2/4/16)
+     */
+    private long readUuidMsb(int offset, int size) {
+        checkIndex(offset, size);
+        if (size == 16) {
+            return readInt64(mDataOffset + offset + 8);
+        }
+
+        long shortUuid = (size == 2) ? getUint16(offset) : (getUint16(offset) | ((long) getUint16(offset + 2) << 16));
+        return (shortUuid << 32) | 0x1000L;
+    }
+
+    /**
+     * データ部のUUIDの下位64bitを読み込む
+     *
+     * @param offset データ部先頭からの位置
+     * @param size   UUIDのバイト数(2/4/16)
+     */
+    private long readUuidLsb(int offset, int size) {
+        checkIndex(offset, size);
+        if (size == 16) {
+            return readInt64(mDataOffset + offset);
+        }
+        return BASE_UUID_LSB;
+    }
+
+    /**
+     * リトルエンディアンの64bit値を読み込む
+     */
+    private long readInt64(int offset) {
+        long result = 0;
+        for (int i = 7; i >= 0; --i) {
+            result = (result << 8) | (mRecord[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    private void checkIndex(int index, int size) {
+        if (size <= 0 || index < 0 || index + size > mDataLength) {
+            throw new IndexOutOfBoundsException("index[" + index + "] size[" + size + "] length[" + mDataLength + "]");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * 時刻の取得元
+ * <br>
+ * 受信時刻の記録にはcurrentTimeMillis()を、キャッシュの失効判定やタイムアウト等の経過時間の計測にはnanoTime()を使用する。
+ * nanoTime()は単調増加するため、端末の時刻設定の変更による影響を受けない。
+ * <br>
+ * 記録したスキャン結果の再生時やテスト時に差し替えることで、実時間より速く進む仮想の時刻で動作させられる。
+ *
+ * @see BluetoothDeviceScanner#setClock(BluetoothClock)
+ */
+public interface BluetoothClock {
+    /**
+     * システム時刻
+     */
+    BluetoothClock SYSTEM = new BluetoothClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * 現在時刻(ミリ秒)
+     */
+    long currentTimeMillis();
+
+    /**
+     * 経過時間の計測に使用する単調増加の時刻(ナノ秒)
+     * <br>
+     * 値そのものに意味はなく、差分のみが有効となる。
+     * デフォルトではcurrentTimeMillis()を換算するため、仮想の時刻はcurrentTimeMillis()のみを実装すればよい。
+     */
+    default long nanoTime() {
+        return currentTimeMillis() * 1000 * 1000;
+    }
+}
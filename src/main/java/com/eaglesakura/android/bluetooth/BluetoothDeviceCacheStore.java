@@ -0,0 +1,215 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * デバイスキャッシュをファイルへ保存し、プロセスの再起動後に復元する
+ * <br>
+ * 復元したキャッシュにより、スキャン開始直後から近接デバイスの問い合わせに応答できる。
+ * 復元されたデバイスは、実際に受信した時点で新たに発見したものとして通知され、受信値で置き換えられる。
+ * <br>
+ * ファイルはヘッダに続き、デバイスごとに以下を並べたバイナリとなる。
+ * <pre>
+ * address(6byte) lastSeenTimeMs(long) rssi(float) recordLength(short) record(recordLength byte)
+ * </pre>
+ */
+public class BluetoothDeviceCacheStore {
+    static final int MAGIC = 0x42444331; // "BDC1"
+
+    static final int HEADER_BYTES = 4 + 4;
+
+    static final int ENTRY_FIXED_BYTES = 6 + 8 + 4 + 2;
+
+    /**
+     * ファイルから読み込んだデバイス
+     */
+    static final class Entry {
+        final BluetoothDevice device;
+
+        final int rssi;
+
+        final byte[] scanRecord;
+
+        /**
+         * 最後に受信した時刻
+         */
+        final long lastSeenTimeMs;
+
+        Entry(BluetoothDevice device, int rssi, byte[] scanRecord, long lastSeenTimeMs) {
+            this.device = device;
+            this.rssi = rssi;
+            this.scanRecord = scanRecord;
+            this.lastSeenTimeMs = lastSeenTimeMs;
+        }
+    }
+
+    final File mFile;
+
+    public BluetoothDeviceCacheStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 有効なキャッシュを保存する
+     * <br>
+     * 一時ファイルへ書き込んだ後に置き換えるため、書き込み中に終了しても以前の内容は失われない。
+     */
+    public void save(BluetoothDeviceScanner scanner) throws IOException {
+        final List<BluetoothDeviceCache> caches = scanner.getExistDeviceCaches();
+
+        List<byte[]> addresses = new ArrayList<>(caches.size());
+        List<BluetoothDeviceCache> entries = new ArrayList<>(caches.size());
+        int size = HEADER_BYTES;
+        for (BluetoothDeviceCache cache : caches) {
+            byte[] address = parseAddress(cache.getAddress());
+            if (address == null) {
+                continue;
+            }
+            addresses.add(address);
+            entries.add(cache);
+            size += ENTRY_FIXED_BYTES + getRecordLength(cache.getScanRecord());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(entries.size());
+        for (int i = 0; i < entries.size(); ++i) {
+            final BluetoothDeviceCache cache = entries.get(i);
+            final byte[] record = cache.getScanRecord();
+            final int recordLength = getRecordLength(record);
+
+            buffer.put(addresses.get(i));
+            buffer.putLong(cache.getUpdatedDate().getTime());
+            buffer.putFloat((float) cache.getRssiEstimate());
+            buffer.putShort((short) recordLength);
+            if (recordLength > 0) {
+                buffer.put(record, 0, recordLength);
+            }
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(temp);
+        try {
+            os.write(buffer.array());
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("rename failed :: " + mFile);
+        }
+    }
+
+    /**
+     * 保存したキャッシュをスキャナへ復元する
+     * <br>
+     * キャッシュの有効時間を過ぎたデバイスは復元しない。
+     * スキャナがすでに保持しているデバイスは上書きしない。
+     *
+     * @return 復元したデバイス数、ファイルが存在しない場合やBluetoothが利用できない場合は0
+     */
+    public int load(BluetoothDeviceScanner scanner) throws IOException {
+        if (!mFile.isFile()) {
+            return 0;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return load(scanner, buffer);
+        } finally {
+            file.close();
+        }
+    }
+
+    int load(BluetoothDeviceScanner scanner, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("invalid file :: " + mFile);
+        }
+
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            return 0;
+        }
+
+        final int count = buffer.getInt();
+        final byte[] address = new byte[6];
+        List<Entry> entries = new ArrayList<>(Math.max(Math.min(count, buffer.remaining() / ENTRY_FIXED_BYTES), 0));
+        for (int i = 0; i < count; ++i) {
+            if (buffer.remaining() < ENTRY_FIXED_BYTES) {
+                throw new IOException("broken file :: " + mFile);
+            }
+            buffer.get(address);
+            final long lastSeenTimeMs = buffer.getLong();
+            final float rssi = buffer.getFloat();
+            final int recordLength = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < recordLength) {
+                throw new IOException("broken file :: " + mFile);
+            }
+            byte[] record = null;
+            if (recordLength > 0) {
+                record = new byte[recordLength];
+                buffer.get(record);
+            }
+
+            BluetoothDevice device = adapter.getRemoteDevice(formatAddress(address));
+            entries.add(new Entry(device, Math.round(rssi), record, lastSeenTimeMs));
+        }
+        return scanner.restoreDeviceCaches(entries);
+    }
+
+    /**
+     * 保存したファイルを削除する
+     */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private static int getRecordLength(byte[] record) {
+        return record != null ? Math.min(record.length, 0xFFFF) : 0;
+    }
+
+    /**
+     * "00:11:22:33:44:55"形式のアドレスを変換する
+     *
+     * @return 変換できない場合はnull
+     */
+    static byte[] parseAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return null;
+        }
+        byte[] result = new byte[6];
+        for (int i = 0; i < 6; ++i) {
+            final int hi = Character.digit(address.charAt(i * 3), 16);
+            final int lo = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (hi < 0 || lo < 0 || (i < 5 && address.charAt(i * 3 + 2) != ':')) {
+                return null;
+            }
+            result[i] = (byte) ((hi << 4) | lo);
+        }
+        return result;
+    }
+
+    static String formatAddress(byte[] address) {
+        return String.format("%02X:%02X:%02X:%02X:%02X:%02X",
+                address[0] & 0xFF, address[1] & 0xFF, address[2] & 0xFF,
+                address[3] & 0xFF, address[4] & 0xFF, address[5] & 0xFF);
+    }
+}
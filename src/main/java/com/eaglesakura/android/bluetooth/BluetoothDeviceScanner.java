@@ -1,23 +1,30 @@
 package com.eaglesakura.android.bluetooth;
 
 import com.eaglesakura.android.bluetooth.beacon.BeaconData;
+import com.eaglesakura.android.bluetooth.rssi.RssiEstimator;
 import com.eaglesakura.android.thread.UIHandler;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothAdapter.LeScanCallback;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Build;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * BluetoothDeviceを自動スキャンする
@@ -29,8 +36,49 @@ public class BluetoothDeviceScanner {
 
     /**
      * 発見したデバイスのキャッシュ
+     * <br>
+     * アドレスをキーとして管理し、アドバタイズ受信ごとの検索をO(1)で行う。
+     * 列挙順は発見順を維持する。
+     */
+    Map<String, BluetoothDeviceCache> mDeviceCaches = new LinkedHashMap<>();
+
+    /**
+     * キャッシュを失効時刻順に並べたもの
+     * <br>
+     * 失効判定は先頭のみを確認すれば良いため、受信ごとに全件を走査する必要がない。
+     */
+    final DeviceExpiryQueue mExpiryQueue = new DeviceExpiryQueue();
+
+    /**
+     * キャッシュを距離の近い順に並べたもの
+     */
+    final NearDeviceIndex mNearDeviceIndex = new NearDeviceIndex();
+
+    /**
+     * 新たに発見したデバイス数
+     */
+    volatile long mFoundDeviceCount;
+
+    /**
+     * 失効判定を停止していた時間の合計
+     * <br>
+     * 失効判定はスキャン停止中の時間を除外した時刻(失効判定時刻)で行う。
+     */
+    volatile long mExpiryClockOffsetMs;
+
+    /**
+     * 失効判定を停止した時刻
+     * mExpiryPausedがtrueの間のみ有効となる
+     */
+    volatile long mExpiryPausedTimeMs;
+
+    /**
+     * 失効判定を停止していればtrue
+     * <br>
+     * 時計の値は0や負の値も取り得るため、時刻とは別に保持する。
+     * mExpiryPausedTimeMs、mExpiryClockOffsetMsを書き込んだ後に変更する。
      */
-    List<BluetoothDeviceCache> mDeviceCaches = new ArrayList<>();
+    volatile boolean mExpiryPaused;
 
     /**
      * 指定時間以上前に発見されたデバイスはclean対象となる
@@ -38,12 +86,66 @@ public class BluetoothDeviceScanner {
      */
     long mExistCacheTimeMs = 1000 * 15;
 
+    /**
+     * 0より大きい場合、デバイスごとに推定したアドバタイズ間隔のこの倍数の時間受信できなければ失効させる
+     */
+    int mExpiryMissedIntervals;
+
+    /**
+     * アドバタイズ間隔から求めたキャッシュ有効時間の最小値
+     */
+    long mMinExistCacheTimeMs;
+
+    /**
+     * アドバタイズ間隔から求めたキャッシュ有効時間の最大値
+     */
+    long mMaxExistCacheTimeMs;
+
+    /**
+     * アドバタイズ間隔として扱う最小の受信間隔
+     * BLEの仕様上の最小間隔(20ms)未満の受信は、一括受信等で同時に届いたものとして推定に含めない。
+     */
+    static final long MIN_ADVERTISING_INTERVAL_MS = 20;
+
+    static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    /**
+     * 0より大きい場合、キャッシュするデバイス数の上限
+     */
+    private int mMaxCacheDevices;
+
+    /**
+     * 0より大きい場合、キャッシュが保持するメモリの上限(byte)
+     */
+    private long mMaxCacheBytes;
+
+    /**
+     * 上限を超えた場合に削除するデバイスの選び方
+     */
+    private CacheEvictionPolicy mCacheEvictionPolicy = CacheEvictionPolicy.LeastRecentlySeen;
+
+    /**
+     * 上限を超えても削除しないデバイスのアドレス
+     */
+    private Set<String> mPinnedAddresses = Collections.emptySet();
+
+    /**
+     * キャッシュが保持するメモリの概算(byte)
+     */
+    private long mCacheBytes;
+
     /**
      * RSSIをキャッシュする時間
      * デフォルト時間は要調整
      */
     long mRssiCacheTimeMs = 1000 * 5;
 
+    /**
+     * 新たに発見したデバイスへ割り当てるRSSI推定
+     * nullの場合は平均RSSIを使用する
+     */
+    RssiEstimator.Factory mRssiEstimatorFactory;
+
     final Context mContext;
 
     final Runnable mScanStopRunnable = new Runnable() {
@@ -52,6 +154,11 @@ public class BluetoothDeviceScanner {
         public void run() {
             stopScan();
             mScanListener.onScanTimeout(BluetoothDeviceScanner.this);
+            for (DeviceScanListener listener : mListenerMatcher.listeners) {
+                if (listener != null) {
+                    listener.onScanTimeout(BluetoothDeviceScanner.this);
+                }
+            }
         }
     };
 
@@ -80,8 +187,41 @@ public class BluetoothDeviceScanner {
 
     /**
      * BLEデバイス検索
+     * API Levelに応じた実装がスキャン開始時に選択される
+     */
+    private LeScanBackend mLeScanBackend;
+
+    /**
+     * スキャン対象の条件
+     */
+    private volatile List<BluetoothScanFilter> mScanFilters = Collections.emptyList();
+
+    /**
+     * trueの場合、ペイロードが変化しない受信はRSSIのみの更新として通知する
+     */
+    private volatile boolean mRssiOnlyUpdateEnabled;
+
+    /**
+     * 0より大きい場合、スキャン結果をまとめて受け取る間隔
      */
-    private Object leScanCallback = null;
+    private long mScanReportDelayMs;
+
+    /**
+     * BLEスキャンの消費電力
+     * nullの場合は結果をまとめて受け取るかどうかに応じて選択する
+     */
+    private ScanPowerMode mScanPowerMode;
+
+    /**
+     * スキャン対象の条件を確認するための解析結果
+     * cacheLockを保持した状態で使用する
+     */
+    private final ScanPacket mScanPacket = new ScanPacket();
+
+    /**
+     * 追加のリスナとフィルタ
+     */
+    private volatile ScanListenerMatcher mListenerMatcher = ScanListenerMatcher.EMPTY;
 
     /**
      * ロックオブジェクト
@@ -89,221 +229,1236 @@ public class BluetoothDeviceScanner {
     private Object cacheLock = new Object();
 
     /**
-     * BLEデバイス検索実装クラス
-     * 旧APIでビルドできるように隠ぺいする
+     * リスナへのイベント配送
      */
-    @SuppressLint("NewApi")
-    private class LeScanCallbackImpl implements LeScanCallback {
+    final ScanEventDispatcher mEventDispatcher = new ScanEventDispatcher(this);
+
+    /**
+     * キャッシュのスナップショット
+     */
+    final ScanSnapshotPublisher mSnapshotPublisher = new ScanSnapshotPublisher();
+
+    /**
+     * キャッシュの時刻管理に使用する時計
+     */
+    volatile BluetoothClock mClock = BluetoothClock.SYSTEM;
+
+    /**
+     * スキャン結果の記録先
+     * 記録しない場合はnull
+     */
+    private volatile BluetoothScanRecorder mScanRecorder;
+
+    /**
+     * 負荷状況の記録
+     * 計測しない場合はnull
+     */
+    private volatile ScanMetricsRecorder mMetrics;
+
+    /**
+     * 負荷状況の定期レポート先
+     */
+    private BluetoothScanMetrics.Reporter mMetricsReporter;
+
+    private long mMetricsReportIntervalMs;
+
+    /**
+     * 前回レポートしたスナップショット
+     */
+    private BluetoothScanMetrics mLastReportedMetrics;
+
+    final Runnable mMetricsReportRunnable = new Runnable() {
         @Override
-        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-            synchronized (cacheLock) {
-                BluetoothDeviceCache cache = getDeviceCache(device);
-                if (cache == null) {
-                    // キャッシュがないので、新規ヒットしたデバイスである
-                    cache = new BluetoothDeviceCache(device, rssi, scanRecord);
-
-                    // キャッシュを追加する
-                    mDeviceCaches.add(cache);
-
-                    // コールバック呼び出し
-                    mScanListener.onDeviceFound(BluetoothDeviceScanner.this, cache);
-                } else {
-                    // キャッシュを更新する
-                    cache.sync(device, rssi, scanRecord);
-
-                    // コールバック呼び出し
-                    mScanListener.onDeviceUpdated(BluetoothDeviceScanner.this, cache);
-                }
+        public void run() {
+            reportMetrics();
+        }
+    };
+
+    /**
+     * スキャン結果をキャッシュへ反映し、リスナへ通知する
+     */
+    void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final ScanMetricsRecorder metrics = mMetrics;
+        final long startTimeNs = (metrics != null) ? System.nanoTime() : 0;
+        synchronized (cacheLock) {
+            ingestScanResult(device, rssi, scanRecord);
+            mSnapshotPublisher.publish(mDeviceCaches, uptimeMillis(), false);
+            if (metrics != null) {
+                metrics.recordIngest(System.nanoTime() - startTimeNs);
             }
         }
+        mEventDispatcher.flush();
     }
 
     /**
-     * 保持しているキャッシュをチェックし、不要なものを削除する
+     * 複数のスキャン結果を1回のロックでキャッシュへ反映し、リスナへ通知する
+     *
+     * @param batch cacheLockを保持した状態で実行される。スキャン結果ごとにingestScanResult()を呼び出す。
      */
-    public void cleanDeviceCaches() {
+    void onScanResults(Runnable batch) {
+        final ScanMetricsRecorder metrics = mMetrics;
+        final long startTimeNs = (metrics != null) ? System.nanoTime() : 0;
         synchronized (cacheLock) {
-            Iterator<BluetoothDeviceCache> iterator = mDeviceCaches.iterator();
-            while (iterator.hasNext()) {
-                BluetoothDeviceCache deviceCache = iterator.next();
-                if (!deviceCache.exist()) {
-                    iterator.remove();
-                }
+            batch.run();
+            mSnapshotPublisher.publish(mDeviceCaches, uptimeMillis(), false);
+            if (metrics != null) {
+                metrics.recordIngest(System.nanoTime() - startTimeNs);
             }
         }
+        mEventDispatcher.flush();
     }
 
     /**
-     * キャッシュしているデバイスを全て取得する。
-     * <br>
-     * このメソッドはコピーを返すため、外部の影響を受けない。
+     * キャッシュを更新し、イベントを発行する
      * <br>
-     * その際、無効なデバイスは排除する。
+     * cacheLockを保持した状態で呼び出す。リスナはここでは呼び出さない。
      */
-    public List<BluetoothDeviceCache> getExistDeviceCaches() {
-        cleanDeviceCaches();
-        synchronized (cacheLock) {
-            return new ArrayList<>(mDeviceCaches);
+    void ingestScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final ScanMetricsRecorder metrics = mMetrics;
+        if (metrics != null) {
+            ++metrics.advertisementCount;
+        }
+
+        final BluetoothClock clock = mClock;
+        final long currentTime = clock.currentTimeMillis();
+        final long uptimeMs = clock.nanoTime() / NANOS_PER_MILLI;
+        final BluetoothScanRecorder recorder = mScanRecorder;
+        if (recorder != null) {
+            recorder.record(currentTime, device.getAddress(), rssi, scanRecord);
+        }
+
+        final long expiryClockMs = getExpiryClockMs(uptimeMs);
+
+        // 通常デバイスの検索結果はアドバタイズを持たず、RSSIも取得できない場合がある
+        // 同じアドレスをLow Energyで受信済みであれば、その値を引き継いで1つのキャッシュにまとめる
+        // 引き継いだRSSIは新たな受信値ではないため、履歴へは加えない
+        final boolean rssiMeasured = (rssi != RSSI_UNKNOWN);
+        if (scanRecord == null || rssi == RSSI_UNKNOWN) {
+            final BluetoothDeviceCache known = mDeviceCaches.get(device.getAddress());
+            if (known != null && known.expireTimeMs > expiryClockMs) {
+                if (scanRecord == null) {
+                    scanRecord = known.scanRecord;
+                }
+                if (rssi == RSSI_UNKNOWN) {
+                    rssi = known.rssi;
+                }
+            }
+        }
+
+        // フィルタがある場合のみ、アドバタイズを1回だけ解析する
+        final List<BluetoothScanFilter> filters = mScanFilters;
+        final ScanListenerMatcher matcher = mListenerMatcher;
+        ScanPacket packet = null;
+        if (!filters.isEmpty() || matcher.hasFilters()) {
+            packet = mScanPacket.parse(device.getAddress(), rssi, scanRecord);
+        }
+
+        if (!matchesScanFilters(filters, packet)) {
+            if (metrics != null) {
+                ++metrics.filteredCount;
+            }
+            return;
+        }
+        final long listenerMask = matcher.match(packet);
+
+        // 失効したキャッシュがあれば削除する
+        evictExpiredDeviceCaches(expiryClockMs);
+
+        BluetoothDeviceCache cache = mDeviceCaches.get(device.getAddress());
+        if (cache == null) {
+            // キャッシュがないので、新規ヒットしたデバイスである
+            cache = new BluetoothDeviceCache(device, rssi, rssiMeasured, scanRecord, currentTime, uptimeMs, expiryClockMs);
+
+            // キャッシュを追加する
+            putDeviceCache(cache);
+            ++mFoundDeviceCount;
+            if (metrics != null) {
+                ++metrics.foundCount;
+            }
+
+            // 上限を超えた場合、追加したデバイス自身が削除されることもある
+            cache.listenerMask = listenerMask;
+            if (trimDeviceCaches(cache)) {
+                return;
+            }
+
+            // イベント発行
+            mEventDispatcher.publish(ScanEventDispatcher.EVENT_FOUND, cache, listenerMask);
+        } else if (cache.restored) {
+            // 復元したデバイスを実際に受信したので、受信値で置き換えて新規に発見したものとして扱う
+            final int retainedBytes = cache.retainedBytes;
+            cache.sync(device, rssi, rssiMeasured, scanRecord, currentTime, uptimeMs, expiryClockMs);
+            mExpiryQueue.offer(cache);
+            updateNearDeviceIndex(cache);
+            mSnapshotPublisher.markDirty(cache);
+            ++mFoundDeviceCount;
+            if (metrics != null) {
+                ++metrics.foundCount;
+            }
+
+            // アドバタイズが大きくなり上限を超えた場合、発見を通知する前に削除されることもある
+            cache.listenerMask = listenerMask;
+            if (cache.retainedBytes > retainedBytes && mMaxCacheBytes > 0 && trimDeviceCaches(cache)) {
+                return;
+            }
+
+            mEventDispatcher.publish(ScanEventDispatcher.EVENT_FOUND, cache, listenerMask);
+        } else {
+            // キャッシュを更新する
+            final int retainedBytes = cache.retainedBytes;
+            cache.sync(device, rssi, rssiMeasured, scanRecord, currentTime, uptimeMs, expiryClockMs);
+            mExpiryQueue.offer(cache);
+            updateNearDeviceIndex(cache);
+            mSnapshotPublisher.markDirty(cache);
+            if (metrics != null) {
+                ++metrics.updatedCount;
+            }
+
+            // アドバタイズが大きくなり上限を超えた場合
+            if (cache.retainedBytes > retainedBytes && mMaxCacheBytes > 0) {
+                trimDeviceCaches(null);
+                if (!mDeviceCaches.containsKey(cache.address)) {
+                    // 更新したデバイス自身が削除され、失効を通知済み
+                    return;
+                }
+            }
+
+            // イベント発行
+            cache.listenerMask = listenerMask;
+            if (mRssiOnlyUpdateEnabled && !cache.payloadChanged) {
+                mEventDispatcher.publish(ScanEventDispatcher.EVENT_RSSI_UPDATED, cache, listenerMask);
+            } else {
+                mEventDispatcher.publish(ScanEventDispatcher.EVENT_UPDATED, cache, listenerMask);
+            }
         }
     }
 
     /**
-     * キャッシュから指定したデバイスを削除する
+     * 保存されていたデバイスをまとめてキャッシュへ復元する
+     * <br>
+     * リスナへは通知せず、実際に受信した時点で発見として通知する。
+     * 全てのデバイスを1回のロックで復元し、スナップショットは最後に1回のみ公開する。
+     * 有効時間を過ぎているデバイスや保持済みのデバイスは復元しない。
+     *
+     * @return 復元したデバイス数
+     * @see BluetoothDeviceCacheStore
      */
-    public void remove(BluetoothDevice device) {
-        cleanDeviceCaches();
+    int restoreDeviceCaches(List<BluetoothDeviceCacheStore.Entry> entries) {
         synchronized (cacheLock) {
-            Iterator<BluetoothDeviceCache> iterator = mDeviceCaches.iterator();
-            while (iterator.hasNext()) {
-                BluetoothDeviceCache cache = iterator.next();
-                if (cache.device == device) {
-                    iterator.remove();
-                    return;
+            final long currentTime = mClock.currentTimeMillis();
+            final long uptimeMs = uptimeMillis();
+            final long expiryClockMs = getExpiryClockMs(uptimeMs);
+
+            List<BluetoothDeviceCache> restored = new ArrayList<>(entries.size());
+            for (BluetoothDeviceCacheStore.Entry entry : entries) {
+                final long seenTime = Math.min(entry.lastSeenTimeMs, currentTime);
+                if (mDeviceCaches.containsKey(entry.device.getAddress()) || (currentTime - seenTime) >= mExistCacheTimeMs) {
+                    continue;
+                }
+
+                // 保存時刻からの経過時間を失効判定時刻へ換算する
+                final long elapsedTimeMs = currentTime - seenTime;
+                BluetoothDeviceCache cache = new BluetoothDeviceCache(
+                        entry.device, entry.rssi, entry.rssi != RSSI_UNKNOWN, entry.scanRecord, seenTime, uptimeMs - elapsedTimeMs, expiryClockMs - elapsedTimeMs
+                );
+                cache.restored = true;
+
+                putDeviceCache(cache);
+                if (!trimDeviceCaches(cache)) {
+                    restored.add(cache);
+                }
+            }
+            mSnapshotPublisher.publish(mDeviceCaches, uptimeMs, true);
+
+            // 後から復元したデバイスにより削除されたものは数えない
+            int result = 0;
+            for (BluetoothDeviceCache cache : restored) {
+                if (mDeviceCaches.get(cache.address) == cache) {
+                    ++result;
                 }
             }
+            return result;
         }
     }
 
     /**
-     * キャッシュ時刻が有効なキャッシュ一覧を取得する
+     * スキャン対象の条件を満たしていればtrue
+     * <br>
+     * コントローラへオフロードできない場合に備え、常にソフトウェアでも確認する。
      */
-    private BluetoothDeviceCache getDeviceCache(BluetoothDevice device) {
+    private boolean matchesScanFilters(List<BluetoothScanFilter> filters, ScanPacket packet) {
+        if (filters.isEmpty()) {
+            return true;
+        }
 
-        // 不要なデータを削除する
-        cleanDeviceCaches();
+        for (BluetoothScanFilter filter : filters) {
+            if (filter.matches(packet)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // キャッシュチェック
-        for (BluetoothDeviceCache cache : mDeviceCaches) {
-            if (cache.address.equals(device.getAddress())) {
-                // 一致した
-                return cache;
+    /**
+     * キューから取り出したイベントをリスナへ通知する
+     *
+     * @param listenerMask 通知先となる追加のリスナ
+     * @param matcher      listenerMaskの位置に対応する判定器
+     */
+    void dispatchEvent(int type, BluetoothDeviceCache cache, long listenerMask, ScanListenerMatcher matcher) {
+        final ScanMetricsRecorder metrics = mMetrics;
+        final long startTimeNs = (metrics != null) ? System.nanoTime() : 0;
+
+        dispatchEvent(mScanListener, type, cache);
+        if (listenerMask != 0) {
+            final DeviceScanListener[] listeners = matcher.listeners;
+            for (int slot = 0; slot < listeners.length; ++slot) {
+                if ((listenerMask & (1L << slot)) != 0 && listeners[slot] != null) {
+                    dispatchEvent(listeners[slot], type, cache);
+                }
             }
         }
 
-        // キャッシュヒットしなかった
-        return null;
+        if (metrics != null) {
+            metrics.recordDispatch(System.nanoTime() - startTimeNs);
+        }
+    }
+
+    private void dispatchEvent(DeviceScanListener listener, int type, BluetoothDeviceCache cache) {
+        if (type == ScanEventDispatcher.EVENT_FOUND) {
+            listener.onDeviceFound(this, cache);
+        } else if (type == ScanEventDispatcher.EVENT_UPDATED) {
+            listener.onDeviceUpdated(this, cache);
+        } else if (type == ScanEventDispatcher.EVENT_RSSI_UPDATED) {
+            listener.onDeviceRssiUpdated(this, cache);
+        } else if (type == ScanEventDispatcher.EVENT_LOST) {
+            listener.onDeviceLost(this, cache);
+        }
     }
 
     /**
-     * Bluetoothデバイス検索
+     * まとめられた更新をリスナへ通知する
+     *
+     * @param type          EVENT_UPDATEDまたはEVENT_RSSI_UPDATED
+     * @param listenerMasks キャッシュごとの、通知先となる追加のリスナ
+     * @param matcher       listenerMasksの位置に対応する判定器
      */
-    private final BroadcastReceiver bluetoothReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            BleLog.debug("receive action :: " + action);
-            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-                // デバイス検出
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-                // リストに追加
-                if (device != null) {
-                    BluetoothDeviceCache cache = getDeviceCache(device);
+    void dispatchUpdatedEvents(int type, List<BluetoothDeviceCache> caches, long[] listenerMasks, ScanListenerMatcher matcher) {
+        final ScanMetricsRecorder metrics = mMetrics;
+        final long startTimeNs = (metrics != null) ? System.nanoTime() : 0;
 
-                    // 電波強度を取得
-                    int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, RSSI_UNKNOWN);
+        dispatchUpdatedEvents(mScanListener, type, caches);
 
-                    if (cache == null) {
-                        // キャッシュが見つからないので、新規にヒットしたデバイス
-                        cache = new BluetoothDeviceCache(device, rssi, null);
-                        mDeviceCaches.add(cache);
+        long allMask = 0;
+        for (long mask : listenerMasks) {
+            allMask |= mask;
+        }
+        if (allMask != 0) {
+            final DeviceScanListener[] listeners = matcher.listeners;
+            for (int slot = 0; slot < listeners.length; ++slot) {
+                final long bit = (1L << slot);
+                if ((allMask & bit) == 0 || listeners[slot] == null) {
+                    continue;
+                }
 
-                        mScanListener.onDeviceFound(BluetoothDeviceScanner.this, cache);
-                    } else {
-                        // キャッシュヒットしたので、更新する
-                        cache.sync(device, rssi, null);
-                        mScanListener.onDeviceUpdated(BluetoothDeviceScanner.this, cache);
+                List<BluetoothDeviceCache> matched = new ArrayList<>();
+                for (int i = 0; i < listenerMasks.length; ++i) {
+                    if ((listenerMasks[i] & bit) != 0) {
+                        matched.add(caches.get(i));
                     }
                 }
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                // スキャンを停止させる
-                UIHandler.postUI(() -> {
-                    BleLog.debug("stop scan");
-                    stopScan();
-                });
+                dispatchUpdatedEvents(listeners[slot], type, matched);
             }
         }
-    };
 
-    /**
-     * デバイススキャンを行う
-     */
-    @SuppressLint("InlinedApi")
-    public BluetoothDeviceScanner(Context context, BluetoothDeviceType mode) {
-        this.mContext = context;
-        this.mode = mode;
-
-        if (mode == BluetoothDeviceType.BluetoothLE) {
-            if (!BluetoothUtil.isSupportedBluetoothLeAPILevel()) {
-                throw new UnsupportedOperationException("BLE not support API LEVEL");
-            }
+        if (metrics != null) {
+            metrics.recordDispatch(System.nanoTime() - startTimeNs);
+        }
+    }
 
-            mBluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-            // コールバッククラスを設定する
-            leScanCallback = new LeScanCallbackImpl();
+    private void dispatchUpdatedEvents(DeviceScanListener listener, int type, List<BluetoothDeviceCache> caches) {
+        if (type == ScanEventDispatcher.EVENT_RSSI_UPDATED) {
+            listener.onDevicesRssiUpdated(this, caches);
+        } else {
+            listener.onDevicesUpdated(this, caches);
         }
     }
 
     /**
-     * リスナ指定を行う
+     * 距離を再計算し、近い順の並びへ反映する
      */
-    public void setScanListener(DeviceScanListener scanListener) {
-        this.mScanListener = scanListener;
+    private void updateNearDeviceIndex(BluetoothDeviceCache cache) {
+        cache.nearDistanceMeter = cache.calcDeviceDistanceMeter(true);
+        mNearDeviceIndex.update(cache);
     }
 
     /**
-     * キャッシュが有効な時間を指定する
-     *
-     * @param existCacheTimeMs キャッシュが有効な時間(ミリ秒)
+     * 経過時間の計測に使用する単調増加の時刻(ミリ秒)
      */
-    public void setExistCacheTimeMs(long existCacheTimeMs) {
-        this.mExistCacheTimeMs = existCacheTimeMs;
+    long uptimeMillis() {
+        return mClock.nanoTime() / NANOS_PER_MILLI;
     }
 
     /**
-     * RSSIキャッシュ時間を指定
+     * 失効判定時刻を取得する
+     * <br>
+     * 失効判定を停止している間は時刻が進まない。
      *
-     * @param rssiCacheTimeMs キャッシュが有効な時間(ミリ秒)
+     * @param uptimeMs uptimeMillis()で取得した時刻
      */
-    public void setRssiCacheTimeMs(long rssiCacheTimeMs) {
-        this.mRssiCacheTimeMs = rssiCacheTimeMs;
+    long getExpiryClockMs(long uptimeMs) {
+        if (mExpiryPaused) {
+            uptimeMs = mExpiryPausedTimeMs;
+        }
+        return uptimeMs - mExpiryClockOffsetMs;
     }
 
     /**
-     * スキャンを開始する
+     * キャッシュの失効判定を一時停止する
+     * <br>
+     * スキャンを一時的に止めている間、受信できないデバイスが失効しないようにする。
      */
-    @SuppressLint("NewApi")
-    public synchronized void startScan(long timeoutMs) {
-        BleLog.debug("scan mode :: " + mode);
-        if (mode == BluetoothDeviceType.BluetoothLE) {
-            mBluetoothAdapter = mBluetoothManager.getAdapter();
-            if (mBluetoothAdapter == null) {
-                throw new IllegalStateException("Bluetooth disabled...");
+    void pauseExpiry() {
+        synchronized (cacheLock) {
+            if (!mExpiryPaused) {
+                mExpiryPausedTimeMs = uptimeMillis();
+                mExpiryPaused = true;
             }
+        }
+    }
 
-            mBluetoothAdapter.startLeScan((LeScanCallback) leScanCallback);
-        } else {
-            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    /**
+     * キャッシュの失効判定を再開する
+     */
+    void resumeExpiry() {
+        synchronized (cacheLock) {
+            if (mExpiryPaused) {
+                mExpiryClockOffsetMs += (uptimeMillis() - mExpiryPausedTimeMs);
+                mExpiryPaused = false;
+            }
+        }
+    }
 
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(BluetoothDevice.ACTION_FOUND);
-            filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-            mContext.registerReceiver(bluetoothReceiver, filter);
-            mBluetoothAdapter.startDiscovery();
+    /**
+     * 失効時刻を過ぎたキャッシュを削除する
+     * <br>
+     * 失効時刻順に並んでいるため、コストは削除件数にのみ比例する。
+     *
+     * @param expiryClockMs 失効判定時刻
+     */
+    private void evictExpiredDeviceCaches(long expiryClockMs) {
+        final ScanMetricsRecorder metrics = mMetrics;
+        while (mExpiryQueue.hasExpired(expiryClockMs)) {
+            BluetoothDeviceCache cache = mExpiryQueue.poll();
+            removeDeviceCache(cache);
+            publishLost(cache);
+            if (metrics != null) {
+                ++metrics.evictedCount;
+            }
         }
-        UIHandler.postDelayedUI(mScanStopRunnable, timeoutMs);
     }
 
     /**
-     * スキャンを停止する。
-     * タイムアウトコールバックもキャンセルされる
+     * キャッシュを追加する
+     */
+    private void putDeviceCache(BluetoothDeviceCache cache) {
+        cache.pinned = mPinnedAddresses.contains(cache.address);
+        mDeviceCaches.put(cache.address, cache);
+        mCacheBytes += cache.retainedBytes;
+        mExpiryQueue.offer(cache);
+        updateNearDeviceIndex(cache);
+        mSnapshotPublisher.markDirty(cache);
+    }
+
+    /**
+     * キャッシュを削除する
+     */
+    private void removeDeviceCache(BluetoothDeviceCache cache) {
+        mDeviceCaches.remove(cache.address);
+        mCacheBytes -= cache.retainedBytes;
+        mExpiryQueue.remove(cache);
+        mNearDeviceIndex.remove(cache);
+        mSnapshotPublisher.markDirty(cache);
+    }
+
+    /**
+     * キャッシュが上限を超えていればtrue
+     */
+    private boolean isCacheOverCapacity() {
+        return (mMaxCacheDevices > 0 && mDeviceCaches.size() > mMaxCacheDevices)
+                || (mMaxCacheBytes > 0 && mCacheBytes > mMaxCacheBytes);
+    }
+
+    /**
+     * 上限を超えている間、固定されていないキャッシュを削除する
+     *
+     * @param added 直前に追加したキャッシュ。削除された場合は発見を通知していないため、失効も通知しない。
+     * @return addedが削除された場合true
+     */
+    private boolean trimDeviceCaches(BluetoothDeviceCache added) {
+        boolean addedRemoved = false;
+        final ScanMetricsRecorder metrics = mMetrics;
+        while (isCacheOverCapacity()) {
+            final BluetoothDeviceCache victim = (mCacheEvictionPolicy == CacheEvictionPolicy.WeakestRssi)
+                    ? findWeakestRssiUnpinned()
+                    : peekLeastRecentlySeenUnpinned();
+            if (victim == null) {
+                // 固定されたデバイスのみが残っている
+                break;
+            }
+
+            removeDeviceCache(victim);
+            if (victim == added) {
+                addedRemoved = true;
+            } else {
+                publishLost(victim);
+            }
+            if (metrics != null) {
+                ++metrics.capacityEvictedCount;
+            }
+        }
+        return addedRemoved;
+    }
+
+    /**
+     * 推定RSSIが最も弱い、固定されていないキャッシュを取得する
+     * <br>
+     * 距離と異なり送信出力に左右されない受信強度で比較する。
+     * 推定値は受信ごとに変化するため整列して保持せず、削除が必要になった時点で全件から探す。
+     * 同じ強度であれば先に登録されたキャッシュを選ぶ。
+     */
+    private BluetoothDeviceCache findWeakestRssiUnpinned() {
+        BluetoothDeviceCache result = null;
+        double weakestRssi = 0;
+        for (BluetoothDeviceCache cache : mDeviceCaches.values()) {
+            if (cache.pinned) {
+                continue;
+            }
+            final double rssi = cache.getRssiEstimate();
+            if (result == null || rssi < weakestRssi) {
+                result = cache;
+                weakestRssi = rssi;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 最も早く失効する、固定されていないキャッシュを取得する
+     * <br>
+     * 固定されたキャッシュは一時的にヒープから取り除き、検索後に戻す。
+     */
+    private BluetoothDeviceCache peekLeastRecentlySeenUnpinned() {
+        BluetoothDeviceCache result = mExpiryQueue.peek();
+        if (result == null || !result.pinned) {
+            return result;
+        }
+
+        List<BluetoothDeviceCache> pinned = new ArrayList<>();
+        while ((result = mExpiryQueue.peek()) != null && result.pinned) {
+            pinned.add(mExpiryQueue.poll());
+        }
+        for (BluetoothDeviceCache cache : pinned) {
+            mExpiryQueue.offer(cache);
+        }
+        return result;
+    }
+
+    /**
+     * 失効・削除したデバイスのイベントを発行する
+     * <br>
+     * 復元後に受信していないデバイスは、発見を通知していないため除外する。
+     */
+    private void publishLost(BluetoothDeviceCache cache) {
+        if (!cache.restored) {
+            mEventDispatcher.publish(ScanEventDispatcher.EVENT_LOST, cache, cache.listenerMask);
+        }
+    }
+
+    /**
+     * 保持しているキャッシュをチェックし、不要なものを削除する
+     */
+    public void cleanDeviceCaches() {
+        synchronized (cacheLock) {
+            final long uptimeMs = uptimeMillis();
+            evictExpiredDeviceCaches(getExpiryClockMs(uptimeMs));
+            mSnapshotPublisher.publish(mDeviceCaches, uptimeMs, true);
+        }
+        mEventDispatcher.flush();
+    }
+
+    /**
+     * キャッシュしているデバイスを全て取得する。
+     * <br>
+     * このメソッドはコピーを返すため、外部の影響を受けない。
+     * <br>
+     * その際、無効なデバイスは排除する。
+     * <br>
+     * 頻繁に参照する場合はgetScanSnapshot()を使用することで、ロックとコピーを避けられる。
+     */
+    public List<BluetoothDeviceCache> getExistDeviceCaches() {
+        cleanDeviceCaches();
+        synchronized (cacheLock) {
+            return new ArrayList<>(mDeviceCaches.values());
+        }
+    }
+
+    /**
+     * キャッシュの最新のスナップショットを取得する
+     * <br>
+     * スナップショットはスキャン結果の反映後に公開され、取得時にロックやコピーは行われない。
+     * 内容は変更されないため、UIスレッド等から任意のタイミングで参照できる。
+     * 失効したデバイスは次回の受信、またはcleanDeviceCaches()の呼び出し時に反映される。
+     *
+     * @return スナップショット、作成が無効な場合は空のスナップショット
+     * @see #setScanSnapshotEnabled(boolean)
+     */
+    public BluetoothScanSnapshot getScanSnapshot() {
+        return mSnapshotPublisher.getSnapshot();
+    }
+
+    /**
+     * 距離の近い順にデバイスを取得する
+     * <br>
+     * 距離は受信ごとに推定RSSI(推定方法が未指定の場合は平均RSSI)から計算され、並びは逐次更新されている。
+     * そのため、取得コストは取得件数にのみ比例する。
+     *
+     * @param num 最大取得数
+     */
+    public List<BluetoothDeviceCache> getNearestDevices(int num) {
+        List<BluetoothDeviceCache> result;
+        synchronized (cacheLock) {
+            evictExpiredDeviceCaches(getExpiryClockMs(uptimeMillis()));
+            result = mNearDeviceIndex.getNearest(num);
+        }
+        mEventDispatcher.flush();
+        return result;
+    }
+
+    /**
+     * 最も近い位置にあるデバイスを取得する
+     *
+     * @return デバイス、キャッシュが空の場合はnull
+     * @see #getNearestDevices(int)
+     */
+    public BluetoothDeviceCache getNearestDevice() {
+        List<BluetoothDeviceCache> devices = getNearestDevices(1);
+        return devices.isEmpty() ? null : devices.get(0);
+    }
+
+    /**
+     * キャッシュから指定したデバイスを削除する
+     */
+    public void remove(BluetoothDevice device) {
+        cleanDeviceCaches();
+        synchronized (cacheLock) {
+            BluetoothDeviceCache cache = mDeviceCaches.get(device.getAddress());
+            if (cache != null) {
+                removeDeviceCache(cache);
+                mSnapshotPublisher.publish(mDeviceCaches, uptimeMillis(), true);
+                publishLost(cache);
+            }
+        }
+        mEventDispatcher.flush();
+    }
+
+    /**
+     * Bluetoothデバイス検索
+     */
+    private final BroadcastReceiver bluetoothReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            BleLog.debug("receive action :: " + action);
+            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+                // デバイス検出
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+
+                // リストに追加
+                if (device != null) {
+                    // 電波強度を取得
+                    int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, RSSI_UNKNOWN);
+
+                    onScanResult(device, rssi, null);
+                }
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                UIHandler.postUI(() -> onDiscoveryFinished());
+            }
+        }
+    };
+
+    /**
+     * 通常デバイスの検索が終了した
+     * <br>
+     * 同時検索の場合はLow Energyデバイスの検索を継続し、通常デバイスの検索をやり直す。
+     */
+    synchronized void onDiscoveryFinished() {
+        if (mode == BluetoothDeviceType.BluetoothDual) {
+            if (mBluetoothAdapter != null) {
+                BleLog.debug("restart discovery");
+                mBluetoothAdapter.startDiscovery();
+            }
+        } else {
+            // スキャンを停止させる
+            BleLog.debug("stop scan");
+            stopScan();
+        }
+    }
+
+    /**
+     * デバイススキャンを行う
+     */
+    @SuppressLint("InlinedApi")
+    public BluetoothDeviceScanner(Context context, BluetoothDeviceType mode) {
+        this.mContext = context;
+        this.mode = mode;
+
+        if (mode.isLowEnergy()) {
+            if (!BluetoothUtil.isSupportedBluetoothLeAPILevel()) {
+                throw new UnsupportedOperationException("BLE not support API LEVEL");
+            }
+
+            mBluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        }
+    }
+
+    /**
+     * リスナ指定を行う
+     */
+    public void setScanListener(DeviceScanListener scanListener) {
+        this.mScanListener = scanListener;
+    }
+
+    /**
+     * 条件付きのリスナを追加する
+     * <br>
+     * 全てのリスナのフィルタは1つの判定器にまとめられ、アドバタイズごとに1回だけ判定される。
+     * いずれかのフィルタを満たしたデバイスのイベントのみが通知される。
+     * 登録済みのリスナを指定した場合、フィルタを置き換える。
+     * 登録後にフィルタの内容を変更してはならない。
+     *
+     * @param listener 追加するリスナ
+     * @param filters  通知する条件、空の場合は全てのイベントを通知する
+     */
+    public void addScanListener(DeviceScanListener listener, BluetoothScanFilter... filters) {
+        if (listener == null) {
+            throw new NullPointerException("listener == null");
+        }
+        synchronized (cacheLock) {
+            mListenerMatcher = mListenerMatcher.with(listener, filters);
+        }
+    }
+
+    /**
+     * addScanListener()で追加したリスナを削除する
+     */
+    public void removeScanListener(DeviceScanListener listener) {
+        synchronized (cacheLock) {
+            final int slot = mListenerMatcher.indexOf(listener);
+            if (slot < 0) {
+                return;
+            }
+            mListenerMatcher = mListenerMatcher.without(listener);
+
+            // 同じ位置へ後から追加されたリスナへ、失効を通知しないようにする
+            final long retainMask = ~(1L << slot);
+            for (BluetoothDeviceCache cache : mDeviceCaches.values()) {
+                cache.listenerMask &= retainMask;
+            }
+        }
+    }
+
+    /**
+     * 追加のリスナの判定器を取得する
+     */
+    ScanListenerMatcher getListenerMatcher() {
+        return mListenerMatcher;
+    }
+
+    /**
+     * スキャン結果をストリームとして購読する
+     * <br>
+     * イベントは購読者が要求した件数のみ通知され、それを超えたイベントは購読者ごとのバッファに保持される。
+     * バッファは指定した件数を超えないため、処理の遅い購読者がスキャン結果の反映を止めたり、メモリを消費し続けることはない。
+     * <br>
+     * 購読者は追加のリスナとして登録されるため、同時に登録できる数はaddScanListener()と共通となる。
+     *
+     * @param subscriber   購読者
+     * @param backpressure 要求を超えたイベントのバッファリング方法
+     * @param bufferSize   購読者ごとのバッファの上限
+     * @param filters      通知する条件、空の場合は全てのイベントを通知する
+     * @return 購読、subscriber.onSubscribe()にも渡される
+     */
+    public BluetoothScanSubscription subscribe(BluetoothScanSubscriber subscriber, BluetoothScanBackpressure backpressure, int bufferSize, BluetoothScanFilter... filters) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber == null");
+        }
+        ScanEventSubscription subscription = new ScanEventSubscription(this, subscriber, backpressure, bufferSize);
+        addScanListener(subscription, filters);
+        subscriber.onSubscribe(subscription);
+        return subscription;
+    }
+
+    /**
+     * キャッシュの現在の内容を取得する
+     */
+    BluetoothDeviceSnapshot newDeviceSnapshot(BluetoothDeviceCache cache) {
+        synchronized (cacheLock) {
+            return new BluetoothDeviceSnapshot(cache, mSnapshotPublisher.getSnapshot().version);
+        }
+    }
+
+    /**
+     * スキャン対象の条件を指定する
+     * <br>
+     * いずれかの条件を満たすデバイスのみがキャッシュされる。
+     * API21以降では条件はBluetoothコントローラへオフロードされるため、スキャン開始前に指定する。
+     *
+     * @param filters 条件、空の場合は全てのデバイスが対象となる
+     */
+    public void setScanFilters(BluetoothScanFilter... filters) {
+        mScanFilters = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(filters)));
+    }
+
+    /**
+     * スキャン結果をまとめて受け取る間隔を指定する
+     * <br>
+     * API21以降かつ端末が対応している場合のみ有効となる。
+     * まとめて受け取ることで、アドバタイズごとにアプリケーションプロセッサが起床することを防ぐ。
+     *
+     * @param scanReportDelayMs 間隔(ミリ秒)、0の場合は都度受け取る
+     */
+    public void setScanReportDelayMs(long scanReportDelayMs) {
+        mScanReportDelayMs = scanReportDelayMs;
+    }
+
+    /**
+     * BLEスキャンの消費電力を指定する
+     * <br>
+     * API21以降のみ有効となり、スキャン開始前に指定する。
+     * 指定しない場合、スキャン結果をまとめて受け取る際はLowPower、都度受け取る際はLowLatencyとなる。
+     *
+     * @param scanPowerMode 消費電力、nullの場合は自動で選択する
+     * @see #setScanReportDelayMs(long)
+     */
+    public void setScanPowerMode(ScanPowerMode scanPowerMode) {
+        mScanPowerMode = scanPowerMode;
+    }
+
+    /**
+     * BLEスキャンの実装を生成する
+     */
+    @SuppressLint("NewApi")
+    LeScanBackend newLeScanBackend(BluetoothAdapter adapter) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return new LollipopLeScanBackend(this, adapter);
+        } else {
+            return new LegacyLeScanBackend(this, adapter);
+        }
+    }
+
+    /**
+     * リスナ呼び出しを専用スレッドで行う場合はtrueを指定する
+     * <br>
+     * デフォルトはtrue。falseの場合、スキャン結果を受け取ったスレッドでリスナが呼び出される。
+     * いずれの場合もキャッシュのロック外で呼び出される。
+     * <br>
+     * スキャン開始前に指定する。
+     */
+    public void setAsyncDispatch(boolean asyncDispatch) {
+        mEventDispatcher.setAsync(asyncDispatch);
+    }
+
+    /**
+     * リスナへ配送するイベントキューを設定する
+     * <br>
+     * スキャン開始前に指定する。
+     *
+     * @param capacity       キューに保持できるイベント数
+     * @param overflowPolicy キューが溢れた場合の挙動
+     */
+    public void setEventQueue(int capacity, EventOverflowPolicy overflowPolicy) {
+        mEventDispatcher.setQueue(capacity, overflowPolicy);
+    }
+
+    /**
+     * デバイス更新通知をまとめる間隔を指定する
+     * <br>
+     * 指定した場合、更新は間隔ごとに1デバイス1件へまとめられ、
+     * DeviceScanListener.onDevicesUpdated()で一括して通知される。
+     * RSSIのみの更新も同様にまとめられ、間隔中にペイロードが変化しなかったデバイスは
+     * DeviceScanListener.onDevicesRssiUpdated()で通知される。
+     * 同期配送時は、間隔を過ぎた後に受信したスキャン結果を契機に通知される。
+     *
+     * @param coalesceTimeMs まとめる間隔(ミリ秒)。0以下の場合はまとめずに都度通知する。
+     */
+    public void setUpdateCoalesceTimeMs(long coalesceTimeMs) {
+        mEventDispatcher.setCoalesceTimeMs(coalesceTimeMs);
+    }
+
+    /**
+     * ペイロードが変化しない受信をRSSIのみの更新として扱う
+     * <br>
+     * 有効な場合、前回と同じアドバタイズデータを受信した際はonDeviceUpdated()の代わりに
+     * DeviceScanListener.onDeviceRssiUpdated()が通知される。
+     * ビーコンやADのパース結果は変化しないため、リスナは距離の再計算のみを行えば良い。
+     */
+    public void setRssiOnlyUpdateEnabled(boolean rssiOnlyUpdateEnabled) {
+        mRssiOnlyUpdateEnabled = rssiOnlyUpdateEnabled;
+    }
+
+    /**
+     * 配送待ちのイベント数を取得する
+     */
+    public int getEventQueueSize() {
+        return mEventDispatcher.getQueue().size();
+    }
+
+    /**
+     * 配送待ちイベント数の最大値を取得する
+     */
+    public int getMaxEventQueueSize() {
+        return mEventDispatcher.getQueue().getMaxSize();
+    }
+
+    /**
+     * キューが溢れたために破棄したイベント数を取得する
+     */
+    public long getDroppedEventCount() {
+        return mEventDispatcher.getQueue().getDroppedCount();
+    }
+
+    /**
+     * キャッシュの時刻管理に使用する時計を指定する
+     * <br>
+     * 記録したスキャン結果の再生時やテスト時に、時刻を制御するために使用する。
+     * 受信時刻にはcurrentTimeMillis()を、キャッシュの失効やRSSIの履歴にはnanoTime()を使用する。
+     *
+     * @param clock 時計、nullの場合はシステム時刻に戻す
+     */
+    public void setClock(BluetoothClock clock) {
+        mClock = (clock != null) ? clock : BluetoothClock.SYSTEM;
+    }
+
+    public BluetoothClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * 受信したスキャン結果を記録する
+     * <br>
+     * スキャン対象の条件による絞り込み前の全てのスキャン結果が記録される。
+     *
+     * @param recorder 記録先、nullの場合は記録を停止する
+     * @see BluetoothScanReplayer
+     */
+    public void setScanRecorder(BluetoothScanRecorder recorder) {
+        synchronized (cacheLock) {
+            mScanRecorder = recorder;
+        }
+    }
+
+    /**
+     * キャッシュのスナップショット作成を有効化する
+     * <br>
+     * 有効な場合、スキャン結果の反映ごとに変化したデバイスのみを差し替えたスナップショットが公開される。
+     *
+     * @see #getScanSnapshot()
+     */
+    public void setScanSnapshotEnabled(boolean enabled) {
+        synchronized (cacheLock) {
+            mSnapshotPublisher.setEnabled(enabled, mDeviceCaches, uptimeMillis());
+        }
+    }
+
+    /**
+     * スナップショットを公開する最短の間隔を指定する
+     * <br>
+     * 公開ごとに変化したデバイスを含むチャンクを複製するため、更新が多い場合は間隔を空けることでコストを抑えられる。
+     *
+     * @param publishIntervalMs 公開間隔(ミリ秒)。0の場合はスキャン結果の反映ごとに公開する
+     */
+    public void setScanSnapshotPublishIntervalMs(long publishIntervalMs) {
+        synchronized (cacheLock) {
+            mSnapshotPublisher.setPublishIntervalMs(publishIntervalMs);
+        }
+    }
+
+    /**
+     * 負荷状況の計測を有効化する
+     * <br>
+     * 無効な場合、計測のコストは受信ごとの参照1回のみとなる。
+     * 有効化した時点から計測が開始される。
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        synchronized (cacheLock) {
+            if (enabled == (mMetrics != null)) {
+                return;
+            }
+            mMetrics = enabled ? new ScanMetricsRecorder(mClock) : null;
+            mLastReportedMetrics = null;
+        }
+    }
+
+    public boolean isMetricsEnabled() {
+        return mMetrics != null;
+    }
+
+    /**
+     * 負荷状況のスナップショットを取得する
+     *
+     * @return 計測開始(またはリセット)からの累計、計測が無効な場合はnull
+     */
+    public BluetoothScanMetrics getScanMetrics() {
+        synchronized (cacheLock) {
+            final ScanMetricsRecorder metrics = mMetrics;
+            if (metrics == null) {
+                return null;
+            }
+
+            return metrics.snapshot(mClock, mDeviceCaches.size(), mCacheBytes);
+        }
+    }
+
+    /**
+     * 計測値をリセットする
+     */
+    public void resetScanMetrics() {
+        synchronized (cacheLock) {
+            if (mMetrics != null) {
+                mMetrics.reset(mClock);
+            }
+            mLastReportedMetrics = null;
+        }
+    }
+
+    /**
+     * 負荷状況を定期的にレポートする
+     * <br>
+     * レポートはUIスレッドから、前回のレポートからの差分として通知される。
+     * 計測が無効な間はレポートされない。
+     *
+     * @param reporter   レポート先、nullの場合は停止する
+     * @param intervalMs レポート間隔(ミリ秒)
+     */
+    public void setMetricsReporter(BluetoothScanMetrics.Reporter reporter, long intervalMs) {
+        if (reporter != null && intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs <= 0");
+        }
+
+        synchronized (cacheLock) {
+            mMetricsReporter = reporter;
+            mMetricsReportIntervalMs = intervalMs;
+            mLastReportedMetrics = getScanMetrics();
+        }
+
+        UIHandler.getInstance().removeCallbacks(mMetricsReportRunnable);
+        if (reporter != null) {
+            UIHandler.postDelayedUI(mMetricsReportRunnable, intervalMs);
+        }
+    }
+
+    void reportMetrics() {
+        final BluetoothScanMetrics.Reporter reporter;
+        BluetoothScanMetrics report = null;
+        synchronized (cacheLock) {
+            reporter = mMetricsReporter;
+            if (reporter == null) {
+                return;
+            }
+
+            BluetoothScanMetrics current = getScanMetrics();
+            if (current != null) {
+                final BluetoothScanMetrics last = mLastReportedMetrics;
+                // リセットされた場合は累計をそのまま通知する
+                report = (last != null && last.startUptimeMs == current.startUptimeMs) ? current.delta(last) : current;
+            }
+            mLastReportedMetrics = current;
+        }
+
+        if (report != null) {
+            reporter.onReport(this, report);
+        }
+        UIHandler.postDelayedUI(mMetricsReportRunnable, mMetricsReportIntervalMs);
+    }
+
+    /**
+     * キャッシュが有効な時間を指定する
+     *
+     * @param existCacheTimeMs キャッシュが有効な時間(ミリ秒)
+     */
+    public void setExistCacheTimeMs(long existCacheTimeMs) {
+        synchronized (cacheLock) {
+            this.mExistCacheTimeMs = existCacheTimeMs;
+            rebuildExpireTime();
+        }
+    }
+
+    /**
+     * デバイスごとのアドバタイズ間隔から失効時間を決める
+     * <br>
+     * 各デバイスの受信間隔から推定したアドバタイズ間隔の一定倍数の時間受信できなければ失効させる。
+     * 短い間隔で発信するデバイスは離れた後すぐに失効し、長い間隔のデバイスは受信の合間に失効しなくなる。
+     * 間隔を推定できるまでは、setExistCacheTimeMs()で指定した時間が使用される。
+     * <br>
+     * スキャン結果をまとめて受け取る場合、最小値はその間隔の2倍以上に引き上げられる。
+     *
+     * @param missedIntervals 失効させるまでに許容するアドバタイズの取りこぼし回数、0の場合は無効化する
+     * @param minCacheTimeMs  キャッシュが有効な時間の最小値
+     * @param maxCacheTimeMs  キャッシュが有効な時間の最大値
+     */
+    public void setAdaptiveExpiry(int missedIntervals, long minCacheTimeMs, long maxCacheTimeMs) {
+        if (minCacheTimeMs > maxCacheTimeMs) {
+            throw new IllegalArgumentException("minCacheTimeMs > maxCacheTimeMs");
+        }
+        synchronized (cacheLock) {
+            this.mExpiryMissedIntervals = missedIntervals;
+            this.mMinExistCacheTimeMs = minCacheTimeMs;
+            this.mMaxExistCacheTimeMs = maxCacheTimeMs;
+            rebuildExpireTime();
+        }
+    }
+
+    /**
+     * キャッシュの上限を指定する
+     * <br>
+     * 上限を超えた場合、指定した方法で選んだデバイスから削除し、失効したものとして通知する。
+     * 新たに発見したデバイス自身が選ばれた場合は、発見も通知されない。
+     * メモリ使用量はデバイスごとの固定的な使用量とアドバタイズのサイズから概算する。
+     *
+     * @param maxDevices     キャッシュするデバイス数の上限、0の場合は制限しない
+     * @param maxBytes       キャッシュが保持するメモリの上限(byte)、0の場合は制限しない
+     * @param evictionPolicy 削除するデバイスの選び方
+     * @see #setPinnedDevices(Collection)
+     */
+    public void setCacheCapacity(int maxDevices, long maxBytes, CacheEvictionPolicy evictionPolicy) {
+        synchronized (cacheLock) {
+            this.mMaxCacheDevices = maxDevices;
+            this.mMaxCacheBytes = maxBytes;
+            this.mCacheEvictionPolicy = evictionPolicy;
+            trimDeviceCaches(null);
+            mSnapshotPublisher.publish(mDeviceCaches, uptimeMillis(), true);
+        }
+        mEventDispatcher.flush();
+    }
+
+    /**
+     * キャッシュの上限を超えても削除しないデバイスを指定する
+     * <br>
+     * 固定したデバイスも失効時間を過ぎれば削除される。
+     *
+     * @param addresses デバイスのアドレス
+     */
+    public void setPinnedDevices(Collection<String> addresses) {
+        Set<String> pinnedAddresses = new HashSet<>();
+        for (String address : addresses) {
+            pinnedAddresses.add(address.toUpperCase());
+        }
+
+        synchronized (cacheLock) {
+            mPinnedAddresses = pinnedAddresses;
+            for (BluetoothDeviceCache cache : mDeviceCaches.values()) {
+                cache.pinned = pinnedAddresses.contains(cache.address);
+            }
+        }
+    }
+
+    /**
+     * 失効時刻を再計算する
+     */
+    private void rebuildExpireTime() {
+        for (BluetoothDeviceCache cache : mDeviceCaches.values()) {
+            cache.expireTimeMs = cache.seenExpiryClockMs + cache.getExistCacheTimeMs();
+        }
+        mExpiryQueue.rebuild();
+    }
+
+    /**
+     * RSSIキャッシュ時間を指定
+     *
+     * @param rssiCacheTimeMs キャッシュが有効な時間(ミリ秒)
+     */
+    public void setRssiCacheTimeMs(long rssiCacheTimeMs) {
+        this.mRssiCacheTimeMs = rssiCacheTimeMs;
+    }
+
+    /**
+     * 新たに発見したデバイスに割り当てるRSSI推定方法を指定する
+     * <br>
+     * 指定した場合、距離計算や近傍デバイスの選択は平均RSSIの代わりに推定値を使用する。
+     *
+     * @param rssiEstimatorFactory 推定方法、nullの場合は平均RSSIを使用する
+     */
+    public void setRssiEstimatorFactory(RssiEstimator.Factory rssiEstimatorFactory) {
+        this.mRssiEstimatorFactory = rssiEstimatorFactory;
+    }
+
+    /**
+     * スキャンを開始する
+     */
+    @SuppressLint("NewApi")
+    public synchronized void startScan(long timeoutMs) {
+        startScanImpl();
+        UIHandler.postDelayedUI(mScanStopRunnable, timeoutMs);
+    }
+
+    /**
+     * タイムアウトを設定せずにスキャンを開始する
+     */
+    @SuppressLint("NewApi")
+    synchronized void startScanImpl() {
+        BleLog.debug("scan mode :: " + mode);
+        if (mode.isLowEnergy()) {
+            mBluetoothAdapter = mBluetoothManager.getAdapter();
+            if (mBluetoothAdapter == null) {
+                throw new IllegalStateException("Bluetooth disabled...");
+            }
+
+            LeScanBackend backend = newLeScanBackend(mBluetoothAdapter);
+            try {
+                backend.start(mScanFilters, mScanReportDelayMs, mScanPowerMode);
+            } catch (IllegalStateException e) {
+                mBluetoothAdapter = null;
+                throw e;
+            }
+            mLeScanBackend = backend;
+        } else {
+            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+
+        if (mode.isClassic()) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(BluetoothDevice.ACTION_FOUND);
+            filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+            mContext.registerReceiver(bluetoothReceiver, filter);
+            mBluetoothAdapter.startDiscovery();
+        }
+    }
+
+    /**
+     * スキャンを停止する。
+     * タイムアウトコールバックもキャンセルされる
+     */
+    public synchronized void stopScan() {
+        suspendScan();
+
+        // 溜まっているイベントを配送し終えたら配送スレッドを停止する
+        mEventDispatcher.shutdown();
+    }
+
+    /**
+     * スキャンを停止する
+     * <br>
+     * リスナへの配送は継続されるため、すぐに再開するスキャンの停止に使用する。
      */
     @SuppressLint("NewApi")
-    public synchronized void stopScan() {
+    synchronized void suspendScan() {
         if (mBluetoothAdapter != null) {
-            if (mode == BluetoothDeviceType.BluetoothLE) {
-                mBluetoothAdapter.stopLeScan((LeScanCallback) leScanCallback);
-            } else {
+            if (mode.isLowEnergy() && mLeScanBackend != null) {
+                mLeScanBackend.stop();
+                mLeScanBackend = null;
+            }
+            if (mode.isClassic()) {
                 mContext.unregisterReceiver(bluetoothReceiver);
                 mBluetoothAdapter.cancelDiscovery();
             }
@@ -313,6 +1468,35 @@ public class BluetoothDeviceScanner {
         }
     }
 
+    /**
+     * BLEスキャンの開始に失敗した
+     * <br>
+     * 失敗したスキャンは停止したものとして扱い、リスナへ通知する。
+     *
+     * @param backend   失敗したスキャンの実装
+     * @param errorCode ScanCallbackのエラーコード
+     */
+    void onLeScanFailed(LeScanBackend backend, int errorCode) {
+        synchronized (this) {
+            if (mLeScanBackend != backend) {
+                // 停止済み
+                return;
+            }
+            mLeScanBackend = null;
+            if (!mode.isClassic()) {
+                UIHandler.getInstance().removeCallbacks(mScanStopRunnable);
+                mBluetoothAdapter = null;
+            }
+        }
+
+        mScanListener.onScanFailed(this, errorCode);
+        for (DeviceScanListener listener : mListenerMatcher.listeners) {
+            if (listener != null) {
+                listener.onScanFailed(this, errorCode);
+            }
+        }
+    }
+
     public interface DeviceScanListener {
         /**
          * デバイスを見つけた場合に呼び出される。
@@ -330,12 +1514,141 @@ public class BluetoothDeviceScanner {
          */
         void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceCache device);
 
+        /**
+         * RSSIのみの更新通知が有効な場合、ペイロードが変化せずにRSSIと受信時刻のみ更新された際に呼び出される。
+         * <br>
+         * デフォルトでは何もしない。
+         *
+         * @param self   コールバック呼び出し元
+         * @param device 更新されたデバイス
+         * @see BluetoothDeviceScanner#setRssiOnlyUpdateEnabled(boolean)
+         */
+        default void onDeviceRssiUpdated(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        }
+
+        /**
+         * デバイスのキャッシュが失効、または削除された場合に呼び出される。
+         * <br>
+         * 失効はスキャン結果の受信時、またはキャッシュの参照時に判定される。
+         * デフォルトでは何もしない。
+         *
+         * @param self   コールバック呼び出し元
+         * @param device 失効したデバイス
+         */
+        default void onDeviceLost(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        }
+
+        /**
+         * 更新通知をまとめる設定の場合、一定時間ごとに更新されたデバイスがまとめて通知される。
+         * <br>
+         * デフォルトではデバイスごとにonDeviceUpdated()を呼び出す。
+         *
+         * @param self    コールバック呼び出し元
+         * @param devices 前回の通知以降に更新されたデバイス。1デバイスにつき1件となる。
+         * @see BluetoothDeviceScanner#setUpdateCoalesceTimeMs(long)
+         */
+        default void onDevicesUpdated(BluetoothDeviceScanner self, List<BluetoothDeviceCache> devices) {
+            for (BluetoothDeviceCache device : devices) {
+                onDeviceUpdated(self, device);
+            }
+        }
+
+        /**
+         * 更新通知をまとめる設定の場合、一定時間ごとにRSSIのみ更新されたデバイスがまとめて通知される。
+         * <br>
+         * デフォルトではデバイスごとにonDeviceRssiUpdated()を呼び出す。
+         *
+         * @param self    コールバック呼び出し元
+         * @param devices 前回の通知以降にペイロードが変化せず、RSSIのみ更新されたデバイス。1デバイスにつき1件となる。
+         * @see BluetoothDeviceScanner#setUpdateCoalesceTimeMs(long)
+         * @see BluetoothDeviceScanner#setRssiOnlyUpdateEnabled(boolean)
+         */
+        default void onDevicesRssiUpdated(BluetoothDeviceScanner self, List<BluetoothDeviceCache> devices) {
+            for (BluetoothDeviceCache device : devices) {
+                onDeviceRssiUpdated(self, device);
+            }
+        }
+
         /**
          * スキャンがタイムアウトした
          *
          * @param self コールバック呼び出し元
          */
         void onScanTimeout(BluetoothDeviceScanner self);
+
+        /**
+         * BLEスキャンの開始に失敗した
+         * <br>
+         * スキャンは停止した状態となるため、必要であれば再度開始する。
+         * デフォルトでは何もしない。
+         *
+         * @param self      コールバック呼び出し元
+         * @param errorCode ScanCallbackのエラーコード
+         */
+        default void onScanFailed(BluetoothDeviceScanner self, int errorCode) {
+        }
+    }
+
+    /**
+     * イベントキューが溢れた場合の挙動
+     */
+    public enum EventOverflowPolicy {
+        /**
+         * 新たなイベントを破棄する
+         */
+        DropNewest,
+
+        /**
+         * 古いイベントから破棄する
+         * <br>
+         * 配送が完全に停止している場合は、キュー長の2倍を上限として新たなイベントを破棄する。
+         */
+        DropOldest,
+    }
+
+    /**
+     * BLEスキャンの消費電力
+     * <br>
+     * 消費電力の小さいモードほど受信間隔が長くなり、発見や距離の変化の反映が遅れる。
+     *
+     * @see #setScanPowerMode(ScanPowerMode)
+     */
+    public enum ScanPowerMode {
+        /**
+         * 消費電力を優先する
+         */
+        LowPower,
+
+        /**
+         * 消費電力と受信間隔の均衡をとる
+         */
+        Balanced,
+
+        /**
+         * 受信間隔を優先する
+         */
+        LowLatency,
+    }
+
+    /**
+     * キャッシュの上限を超えた場合に削除するデバイスの選び方
+     */
+    public enum CacheEvictionPolicy {
+        /**
+         * 最も長く受信していないデバイスから削除する
+         * <br>
+         * デバイスごとの失効時間が有効な場合は、最も失効が近いデバイスから削除する。
+         */
+        LeastRecentlySeen,
+
+        /**
+         * 推定RSSIの最も弱いデバイスから削除する
+         * <br>
+         * 推定方法が指定されていない場合は、有効なスキャンキャッシュ中のRSSI平均で比較する。
+         *
+         * @see #setRssiEstimatorFactory(RssiEstimator.Factory)
+         */
+        WeakestRssi,
     }
 
     /**
@@ -363,36 +1676,31 @@ public class BluetoothDeviceScanner {
         BeaconData beacon;
 
         /**
-         * 過去のRSSI値
+         * record
          */
-        private class RssiCache {
-            /**
-             * RSSI値
-             */
-            int cacheRssi;
-
-            /**
-             * RSSIの検知時刻
-             */
-            long timeMs;
-
-            private RssiCache(int rssi, long timeMs) {
-                this.cacheRssi = rssi;
-                this.timeMs = timeMs;
-            }
-        }
+        byte[] scanRecord;
 
+        /**
+         * 直前の受信でペイロードが変化していればtrue
+         */
+        boolean payloadChanged = true;
 
         /**
-         * record
+         * beaconのパース後にペイロードが変化していればtrue
          */
-        byte[] scanRecord;
+        boolean beaconStale;
 
         /**
          * 発見された時刻
          */
         final Date updatedDate;
 
+        /**
+         * 発見された時刻(uptimeMillis)
+         * RSSIの履歴と推定に使用する
+         */
+        long updatedUptimeMs;
+
         /**
          * 比較用のアドレス
          */
@@ -401,14 +1709,115 @@ public class BluetoothDeviceScanner {
         /**
          * 過去のRSSI値
          */
-        private List<RssiCache> rssiCaches = new ArrayList<RssiCache>();
+        private final RssiHistory rssiHistory = new RssiHistory();
+
+        /**
+         * RSSIの推定
+         */
+        private RssiEstimator rssiEstimator;
+
+        /**
+         * 最後に受信した失効判定時刻
+         */
+        long seenExpiryClockMs;
+
+        /**
+         * キャッシュが失効する失効判定時刻
+         */
+        long expireTimeMs;
+
+        /**
+         * キャッシュの上限を超えても削除しなければtrue
+         */
+        boolean pinned;
+
+        /**
+         * このキャッシュが保持するメモリの概算(byte)
+         */
+        int retainedBytes;
+
+        /**
+         * 推定したアドバタイズ間隔、推定できていなければ0
+         */
+        long advertisingIntervalMs;
+
+        /**
+         * 失効管理ヒープ内の位置
+         */
+        int expiryQueueIndex = DeviceExpiryQueue.INDEX_NONE;
+
+        /**
+         * 最後に受信した時点でのデバイスまでの距離
+         */
+        double nearDistanceMeter;
+
+        /**
+         * 距離順インデックスへの登録順
+         * 登録されていなければNearDeviceIndex.SEQUENCE_NONE
+         */
+        long nearSequence = NearDeviceIndex.SEQUENCE_NONE;
 
-        private BluetoothDeviceCache(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        /**
+         * 距離順インデックス内で並べる際に使用している距離
+         */
+        double nearSortedDistance;
+
+        /**
+         * スナップショットへの反映待ちであればtrue
+         */
+        boolean snapshotDirty;
+
+        /**
+         * 保存されていた内容から復元し、まだ受信していなければtrue
+         */
+        boolean restored;
+
+        /**
+         * 最後の受信時に判定した、通知先となる追加のリスナ
+         */
+        long listenerMask;
+
+        /**
+         * 更新通知の送信待ちであればtrue
+         * 配送スレッドからのみ参照する
+         */
+        boolean coalescePending;
+
+        /**
+         * 送信待ちの更新がRSSIのみであればtrue
+         * 配送スレッドからのみ参照する
+         */
+        boolean coalesceRssiOnly;
+
+        /**
+         * 送信待ちの更新の通知先となる追加のリスナ
+         * 配送スレッドからのみ参照する
+         */
+        long coalesceListenerMask;
+
+        /**
+         * @param rssiMeasured rssiが今回受信した値であればtrue、不明または他の受信から引き継いだ値であればfalse
+         */
+        private BluetoothDeviceCache(BluetoothDevice device, int rssi, boolean rssiMeasured, byte[] scanRecord, long currentTime, long uptimeMs, long expiryClockMs) {
             this.device = device;
             this.rssi = rssi;
             this.scanRecord = scanRecord;
+            this.retainedBytes = estimateRetainedBytes(scanRecord);
             this.address = device.getAddress();
-            this.updatedDate = new Date();
+            this.updatedDate = new Date(currentTime);
+            this.updatedUptimeMs = uptimeMs;
+            this.seenExpiryClockMs = expiryClockMs;
+            this.expireTimeMs = expiryClockMs + getExistCacheTimeMs();
+            if (rssiMeasured) {
+                this.rssiHistory.push(rssi, uptimeMs, mRssiCacheTimeMs);
+            }
+
+            if (mRssiEstimatorFactory != null) {
+                this.rssiEstimator = mRssiEstimatorFactory.newEstimator();
+                if (rssiMeasured) {
+                    this.rssiEstimator.update(rssi, uptimeMs);
+                }
+            }
         }
 
         public String getAddress() {
@@ -419,7 +1828,32 @@ public class BluetoothDeviceScanner {
          * キャッシュが有効であればtrue
          */
         public boolean exist() {
-            return (System.currentTimeMillis() - updatedDate.getTime()) < mExistCacheTimeMs;
+            return getExpiryClockMs(uptimeMillis()) < expireTimeMs;
+        }
+
+        /**
+         * 推定したアドバタイズ間隔を取得する
+         *
+         * @return アドバタイズ間隔(ミリ秒)、推定できていなければ0
+         */
+        public long getAdvertisingIntervalMs() {
+            return advertisingIntervalMs;
+        }
+
+        /**
+         * このデバイスのキャッシュが有効な時間を取得する
+         *
+         * @see BluetoothDeviceScanner#setAdaptiveExpiry(int, long, long)
+         */
+        public long getExistCacheTimeMs() {
+            final int missedIntervals = mExpiryMissedIntervals;
+            if (missedIntervals <= 0 || advertisingIntervalMs <= 0) {
+                return mExistCacheTimeMs;
+            }
+
+            final long minCacheTimeMs = Math.max(mMinExistCacheTimeMs, mScanReportDelayMs * 2);
+            final long cacheTimeMs = advertisingIntervalMs * missedIntervals;
+            return Math.min(Math.max(cacheTimeMs, minCacheTimeMs), Math.max(mMaxExistCacheTimeMs, minCacheTimeMs));
         }
 
         /**
@@ -438,11 +1872,50 @@ public class BluetoothDeviceScanner {
 
         /**
          * recordを取得する
+         * <br>
+         * 内容を参照する場合はgetAdvertisingData()を使用する。
          */
         public byte[] getScanRecord() {
             return scanRecord;
         }
 
+        /**
+         * アドバタイズデータを走査するカーソルを取得する
+         */
+        public AdvertisingDataCursor getAdvertisingData() {
+            return new AdvertisingDataCursor(scanRecord);
+        }
+
+        /**
+         * アドバタイズデータを走査するカーソルを取得する
+         * <br>
+         * 多数のキャッシュを走査する場合、カーソルを使い回すことでアロケーションを避けられる。
+         *
+         * @param cursor 再利用するカーソル
+         * @return 先頭へ戻したcursor
+         */
+        public AdvertisingDataCursor getAdvertisingData(AdvertisingDataCursor cursor) {
+            return cursor.reset(scanRecord);
+        }
+
+        /**
+         * 保存されていた内容から復元し、まだ受信していなければtrue
+         *
+         * @see BluetoothDeviceCacheStore
+         */
+        public boolean isRestored() {
+            return restored;
+        }
+
+        /**
+         * 直前の受信でペイロードが変化していればtrue
+         * <br>
+         * 発見時はtrueとなる。
+         */
+        public boolean isPayloadChanged() {
+            return payloadChanged;
+        }
+
         /**
          * 更新日時を取得する
          */
@@ -455,22 +1928,20 @@ public class BluetoothDeviceScanner {
          * <br>
          * 距離は概算となる。また、揺らぎがかなり大きいので、参考値程度に考える。
          *
-         * @param fromAverage trueの場合、平均のRSSIを使用する。falseの場合は最新のRSSIを使用する
+         * @param fromAverage trueの場合、推定RSSI(推定方法が未指定の場合は平均のRSSI)を使用する。falseの場合は最新のRSSIを使用する
          * @return デバイスからの距離(m)
          */
         public double calcDeviceDistanceMeter(boolean fromAverage) {
-
-            int calcRssi = this.rssi;
-            if (fromAverage) {
-                calcRssi = getRssiAverage();
-            }
-
             int txPower = -55;
             if (beacon != null) {
                 txPower = beacon.getTxPower();
             }
 
-            return calcDeviceDistance(calcRssi, txPower);
+            if (fromAverage) {
+                return calcDeviceDistance(getRssiEstimate(), txPower);
+            } else {
+                return calcDeviceDistance(this.rssi, txPower);
+            }
         }
 
         /**
@@ -479,16 +1950,19 @@ public class BluetoothDeviceScanner {
         public void parseBeacon() throws Exception {
             if (beacon == null) {
                 beacon = BeaconData.createInstance(device, rssi, scanRecord);
+                beaconStale = false;
             }
         }
 
         /**
          * Beacon情報をパースする
+         * <br>
+         * パース後にペイロードが変化していない場合、取得済みのBeacon情報をそのまま使用する。
          *
          * @param cacheClear 既に取得済みのBeacon情報のキャッシュを廃棄する
          */
         public void parseBeacon(boolean cacheClear) throws Exception {
-            if (cacheClear) {
+            if (cacheClear && beaconStale) {
                 beacon = null;
             }
             parseBeacon();
@@ -502,50 +1976,124 @@ public class BluetoothDeviceScanner {
         }
 
         /**
-         * 有効なスキャンキャッシュ中のRSSI平均を取得する
+         * RSSIの推定方法を指定する
+         * <br>
+         * 推定は指定後に受信したRSSIから開始される。
+         *
+         * @param rssiEstimator 推定方法、nullの場合は平均RSSIを使用する
          */
-        public int getRssiAverage() {
+        public void setRssiEstimator(RssiEstimator rssiEstimator) {
             synchronized (this) {
-                int rssiNum = 1 + rssiCaches.size();
-                int rssiSum = this.rssi;
+                if (rssiEstimator != null) {
+                    rssiEstimator.reset();
+                    if (rssi != RSSI_UNKNOWN) {
+                        rssiEstimator.update(rssi, updatedUptimeMs);
+                    }
+                }
+                this.rssiEstimator = rssiEstimator;
+            }
+        }
 
-                // キャシュを足し込む
-                for (RssiCache cache : rssiCaches) {
-                    rssiSum += cache.cacheRssi;
+        public RssiEstimator getRssiEstimator() {
+            return rssiEstimator;
+        }
+
+        /**
+         * 推定したRSSIを取得する
+         * <br>
+         * 推定方法が指定されていない場合、有効なスキャンキャッシュ中のRSSI平均を返す。
+         */
+        public double getRssiEstimate() {
+            synchronized (this) {
+                if (rssiEstimator != null) {
+                    double estimate = rssiEstimator.getEstimate();
+                    if (!Double.isNaN(estimate)) {
+                        return estimate;
+                    }
                 }
+                return rssiHistory.getAverage(this.rssi);
+            }
+        }
 
-                // 平均を返す
-                return rssiSum / rssiNum;
+        /**
+         * 有効なスキャンキャッシュ中のRSSI平均を取得する
+         */
+        public int getRssiAverage() {
+            synchronized (this) {
+                return rssiHistory.getAverage(this.rssi);
             }
         }
 
         /**
          * 同期を行う
+         *
+         * @param rssiMeasured rssiが今回受信した値であればtrue、不明または他の受信から引き継いだ値であればfalse
          */
-        private void sync(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        private void sync(BluetoothDevice device, int rssi, boolean rssiMeasured, byte[] scanRecord, long currentTime, long uptimeMs, long expiryClockMs) {
             assert device != null;
             assert device.getAddress().equals(address);
 
-            final long currentTime = System.currentTimeMillis();
+            if (!restored) {
+                updateAdvertisingInterval(expiryClockMs - seenExpiryClockMs);
+            }
+
             // キャッシュを保存する
             synchronized (this) {
-                Iterator<RssiCache> iterator = rssiCaches.iterator();
-                while (iterator.hasNext()) {
-                    RssiCache cache = iterator.next();
-                    if ((currentTime - cache.timeMs) > mRssiCacheTimeMs) {
-                        // 有効なキャッシュ時間を超えたらclean
-                        iterator.remove();
+                if (restored) {
+                    // 復元した値は受信値で置き換える
+                    rssiHistory.clear();
+                    if (rssiEstimator != null) {
+                        rssiEstimator.reset();
+                    }
+                    restored = false;
+                }
+                if (rssiMeasured) {
+                    rssiHistory.push(rssi, uptimeMs, mRssiCacheTimeMs);
+                    if (rssiEstimator != null) {
+                        rssiEstimator.update(rssi, uptimeMs);
                     }
                 }
+                updatedUptimeMs = uptimeMs;
+            }
 
-                rssiCaches.add(new RssiCache(this.rssi, updatedDate.getTime()));
+            // 同じペイロードであれば、パース済みの情報を維持する
+            payloadChanged = !Arrays.equals(this.scanRecord, scanRecord);
+            if (payloadChanged) {
+                this.scanRecord = scanRecord;
+                this.beaconStale = true;
+
+                final int bytes = estimateRetainedBytes(scanRecord);
+                mCacheBytes += (bytes - retainedBytes);
+                this.retainedBytes = bytes;
             }
 
             this.device = device;
-            this.scanRecord = scanRecord;
             this.rssi = rssi;
             this.updatedDate.setTime(currentTime);
+            this.seenExpiryClockMs = expiryClockMs;
+            this.expireTimeMs = expiryClockMs + getExistCacheTimeMs();
+
+        }
+
+        /**
+         * アドバタイズ間隔の推定を更新する
+         * <br>
+         * 取りこぼしがあると受信間隔は本来の間隔の倍数となるため、短くなる方向へは速く、長くなる方向へは遅く追従させる。
+         *
+         * @param receivedIntervalMs 前回からの受信間隔
+         */
+        private void updateAdvertisingInterval(long receivedIntervalMs) {
+            if (receivedIntervalMs < MIN_ADVERTISING_INTERVAL_MS) {
+                return;
+            }
 
+            if (advertisingIntervalMs <= 0) {
+                advertisingIntervalMs = receivedIntervalMs;
+            } else if (receivedIntervalMs < advertisingIntervalMs) {
+                advertisingIntervalMs -= (advertisingIntervalMs - receivedIntervalMs) / 2;
+            } else {
+                advertisingIntervalMs += (receivedIntervalMs - advertisingIntervalMs) / 8;
+            }
         }
 
         @Override
@@ -567,6 +2115,13 @@ public class BluetoothDeviceScanner {
         }
     }
 
+    /**
+     * キャッシュ1件が保持するメモリを概算する
+     */
+    static int estimateRetainedBytes(byte[] scanRecord) {
+        return ScanMetricsRecorder.CACHE_ENTRY_BYTES + (scanRecord != null ? scanRecord.length : 0);
+    }
+
     /**
      * ビーコンのみをフィルタリングする
      * <br>
@@ -593,31 +2148,26 @@ public class BluetoothDeviceScanner {
      * @return 距離(メートル)
      */
     public static double calcDeviceDistance(int rssi, int txPower) {
-        try {
-            // 距離をチェック
-            // http://qiita.com/shu223/items/7c4e87c47eca65724305
-            double distance = Math.pow(10.0, ((double) txPower - (double) rssi) / 20.0);
-            return distance;
+        return DeviceDistanceTable.getDistance(rssi, txPower);
+    }
 
-//            // 距離をチェック
-//            double distance = 0;
-//            double ratio = (double) rssi / (double) txPower;
-//            if (ratio < 1.0) {
-//                distance = Math.pow(ratio, 10);
-//            } else {
-//                distance = (0.89976) * Math.pow(ratio, 7.7095) + 0.111;
-//            }
-//
-//            return distance;
-        } catch (Exception e) {
-            return 0;
-        }
+    /**
+     * BLEデバイスへの距離を計算する。
+     * <br>
+     * フィルタリング等により小数となったRSSIを扱う。整数部の間は線形補間される。
+     *
+     * @param rssi    電波強度
+     * @param txPower BLEデバイス電波出力
+     * @return 距離(メートル)
+     */
+    public static double calcDeviceDistance(double rssi, int txPower) {
+        return DeviceDistanceTable.getDistance(rssi, txPower);
     }
 
     /**
      * 最も近い位置にあるデバイスを取得する
      * <br>
-     * 精度を上げるため、平均RSSIを使用してチェックする。
+     * 精度を上げるため、推定RSSI(推定方法が未指定の場合は平均RSSI)を使用してチェックする。
      *
      * @param devices 検索対象のデバイス一覧
      * @return デバイス
@@ -653,20 +2203,24 @@ public class BluetoothDeviceScanner {
      * 距離が近い順番にソートする
      */
     public static List<BluetoothDeviceCache> sortNearDevices(List<BluetoothDeviceCache> devices) {
+        // 比較ごとに距離を計算しないよう、事前に1回だけ計算しておく
+        final int size = devices.size();
+        final double[] distances = new double[size];
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            distances[i] = devices.get(i).calcDeviceDistanceMeter(true);
+            order[i] = i;
+        }
 
-        Collections.sort(devices, (lhs, rhs) -> {
-            double lDist = lhs.calcDeviceDistanceMeter(true);
-            double rDist = rhs.calcDeviceDistanceMeter(true);
-
-            if (lDist < rDist) {
-                return -1;
-            } else if (lDist > rDist) {
-                return 1;
-            } else {
-                return 0;
-            }
-        });
+        Arrays.sort(order, (lhs, rhs) -> Double.compare(distances[lhs], distances[rhs]));
 
+        List<BluetoothDeviceCache> sorted = new ArrayList<>(size);
+        for (Integer index : order) {
+            sorted.add(devices.get(index));
+        }
+        for (int i = 0; i < size; ++i) {
+            devices.set(i, sorted.get(i));
+        }
         return devices;
     }
 }
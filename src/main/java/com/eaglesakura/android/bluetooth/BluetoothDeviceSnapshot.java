@@ -0,0 +1,114 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+import com.eaglesakura.android.bluetooth.beacon.BeaconData;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * ある時点でのデバイスキャッシュの内容
+ * <br>
+ * 生成後は変更されないため、任意のスレッドから同期せずに参照できる。
+ */
+public final class BluetoothDeviceSnapshot {
+    final String address;
+
+    final BluetoothDevice device;
+
+    final int rssi;
+
+    final double rssiEstimate;
+
+    final byte[] scanRecord;
+
+    final BeaconData beacon;
+
+    final long updatedTimeMs;
+
+    final double distanceMeter;
+
+    final long version;
+
+    /**
+     * cacheLockを保持した状態で生成する
+     */
+    BluetoothDeviceSnapshot(BluetoothDeviceCache cache, long version) {
+        this.address = cache.address;
+        this.device = cache.device;
+        this.rssi = cache.rssi;
+        this.rssiEstimate = cache.getRssiEstimate();
+        this.scanRecord = cache.scanRecord;
+        this.beacon = cache.beacon;
+        this.updatedTimeMs = cache.updatedDate.getTime();
+        this.distanceMeter = cache.nearDistanceMeter;
+        this.version = version;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * 最後に受信した電波強度
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * 推定RSSI
+     */
+    public double getRssiEstimate() {
+        return rssiEstimate;
+    }
+
+    /**
+     * recordを取得する
+     * <br>
+     * 配列は他のスナップショットと共有されるため、変更してはならない。
+     */
+    public byte[] getScanRecord() {
+        return scanRecord;
+    }
+
+    /**
+     * アドバタイズデータを走査するカーソルを取得する
+     */
+    public AdvertisingDataCursor getAdvertisingData() {
+        return new AdvertisingDataCursor(scanRecord);
+    }
+
+    /**
+     * スナップショット作成時点でパース済みのビーコン情報
+     *
+     * @return ビーコン情報、パースされていない場合はnull
+     */
+    public BeaconData getBeacon() {
+        return beacon;
+    }
+
+    /**
+     * 最後に受信した時刻
+     */
+    public long getUpdatedTimeMs() {
+        return updatedTimeMs;
+    }
+
+    /**
+     * 推定RSSIから計算したデバイスまでの距離(m)
+     */
+    public double getDistanceMeter() {
+        return distanceMeter;
+    }
+
+    /**
+     * このデバイスが最後に変化したスナップショットのバージョン
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -10,4 +10,25 @@ public enum BluetoothDeviceType {
      * Low Energyデバイスを検索する
      */
     BluetoothLE,
+
+    /**
+     * 通常デバイスとLow Energyデバイスを同時に検索する
+     * <br>
+     * 同じアドレスで受信したデバイスは1つのキャッシュにまとめられる。
+     */
+    BluetoothDual;
+
+    /**
+     * Low Energyデバイスを検索する場合はtrue
+     */
+    boolean isLowEnergy() {
+        return this != Bluetooth;
+    }
+
+    /**
+     * 通常デバイスを検索する場合はtrue
+     */
+    boolean isClassic() {
+        return this != BluetoothLE;
+    }
 }
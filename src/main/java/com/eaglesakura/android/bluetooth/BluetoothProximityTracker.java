@@ -0,0 +1,358 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.DeviceScanListener;
+import com.eaglesakura.android.bluetooth.beacon.BeaconIdentity;
+import com.eaglesakura.android.bluetooth.beacon.BeaconIdentityMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * デバイスまでの距離を近・中・遠の圏域に分類し、圏域の変化のみを通知する
+ * <br>
+ * スキャナの追加のリスナとして登録し、受信ごとに計算済みの距離から圏域を判定する。
+ * 境界付近での揺らぎを抑えるため、現在の圏域から出るには境界をヒステリシス幅だけ越える必要があり、
+ * さらに新たな圏域に滞在時間以上留まった場合にのみ変化を通知する。
+ * <br>
+ * 判定はデバイスごとの状態のみを参照するため、受信1件あたりのコストは追跡するデバイス数に依存しない。
+ *
+ * @see BluetoothDeviceScanner#addScanListener(DeviceScanListener, BluetoothScanFilter...)
+ */
+public class BluetoothProximityTracker implements DeviceScanListener {
+    public enum Zone {
+        /**
+         * 圏外、または未判定
+         */
+        Unknown,
+
+        /**
+         * 近距離
+         */
+        Near,
+
+        /**
+         * 中距離
+         */
+        Mid,
+
+        /**
+         * 遠距離
+         */
+        Far,
+    }
+
+    public interface ZoneListener {
+        /**
+         * デバイスの圏域が変化した
+         * <br>
+         * 失効したデバイスはZone.Unknownへの変化として通知される。
+         *
+         * @param self    コールバック呼び出し元
+         * @param device  対象のデバイス
+         * @param oldZone 変化前の圏域
+         * @param newZone 変化後の圏域
+         */
+        void onZoneChanged(BluetoothProximityTracker self, BluetoothDeviceCache device, Zone oldZone, Zone newZone);
+    }
+
+    /**
+     * 圏域の境界
+     */
+    public static final class Bands {
+        /**
+         * この距離未満であれば近距離
+         */
+        final double nearMeter;
+
+        /**
+         * この距離以上であれば遠距離
+         */
+        final double farMeter;
+
+        /**
+         * 現在の圏域から出る際に、境界を越える必要がある幅
+         */
+        final double hysteresisMeter;
+
+        /**
+         * 新たな圏域に留まる必要がある時間
+         */
+        final long dwellTimeMs;
+
+        /**
+         * @param nearMeter       この距離未満であれば近距離
+         * @param farMeter        この距離以上であれば遠距離
+         * @param hysteresisMeter 現在の圏域から出る際に、境界を越える必要がある幅
+         * @param dwellTimeMs     変化を通知するまでに、新たな圏域に留まる必要がある時間
+         */
+        public Bands(double nearMeter, double farMeter, double hysteresisMeter, long dwellTimeMs) {
+            if (nearMeter > farMeter) {
+                throw new IllegalArgumentException("nearMeter > farMeter");
+            }
+            if (hysteresisMeter < 0 || dwellTimeMs < 0) {
+                throw new IllegalArgumentException("hysteresisMeter < 0 || dwellTimeMs < 0");
+            }
+            this.nearMeter = nearMeter;
+            this.farMeter = farMeter;
+            this.hysteresisMeter = hysteresisMeter;
+            this.dwellTimeMs = dwellTimeMs;
+        }
+
+        /**
+         * 現在の圏域を考慮して、距離が属する圏域を判定する
+         */
+        Zone classify(double distanceMeter, Zone current) {
+            double near = nearMeter;
+            double far = farMeter;
+            if (current == Zone.Near) {
+                near += hysteresisMeter;
+            } else if (current == Zone.Mid) {
+                near -= hysteresisMeter;
+                far += hysteresisMeter;
+            } else if (current == Zone.Far) {
+                far -= hysteresisMeter;
+                near -= hysteresisMeter;
+            }
+
+            if (distanceMeter < near) {
+                return Zone.Near;
+            } else if (distanceMeter >= far) {
+                return Zone.Far;
+            } else {
+                return Zone.Mid;
+            }
+        }
+    }
+
+    /**
+     * デバイスごとの判定状態
+     */
+    static final class ZoneState {
+        Bands bands;
+
+        /**
+         * bandsを決定した時点の設定のバージョン
+         */
+        int bandsVersion;
+
+        /**
+         * 通知済みの圏域
+         */
+        Zone zone = Zone.Unknown;
+
+        /**
+         * 滞在時間を計測中の圏域
+         * 計測していなければnull
+         */
+        Zone pendingZone;
+
+        /**
+         * pendingZoneに入った時刻
+         */
+        long pendingSinceMs;
+    }
+
+    private final Map<String, ZoneState> mStates = new HashMap<>();
+
+    private final Map<String, Bands> mDeviceBands = new HashMap<>();
+
+    /**
+     * ビーコンごとの圏域
+     * アドレスを区別しないため、キーのアドレスは常にBeaconIdentity.ADDRESS_NONEとなる
+     */
+    private final BeaconIdentityMap<Bands> mBeaconBands = new BeaconIdentityMap<>();
+
+    private Bands mDefaultBands;
+
+    /**
+     * 圏域の設定のバージョン
+     * 変更されたデバイスは次回の受信時に設定を選び直す
+     */
+    private int mBandsVersion;
+
+    /**
+     * ビーコンの識別用
+     */
+    private final ScanPacket mScanPacket = new ScanPacket();
+
+    private volatile ZoneListener mListener;
+
+    /**
+     * @param defaultBands 個別に設定されていないデバイスの圏域
+     */
+    public BluetoothProximityTracker(Bands defaultBands) {
+        mDefaultBands = defaultBands;
+    }
+
+    public void setListener(ZoneListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 個別に設定されていないデバイスの圏域を指定する
+     */
+    public synchronized void setDefaultBands(Bands bands) {
+        mDefaultBands = bands;
+        ++mBandsVersion;
+    }
+
+    /**
+     * アドレスを指定してデバイスの圏域を指定する
+     *
+     * @param bands 圏域、nullの場合は設定を解除する
+     */
+    public synchronized void setDeviceBands(String address, Bands bands) {
+        if (bands != null) {
+            mDeviceBands.put(address.toUpperCase(), bands);
+        } else {
+            mDeviceBands.remove(address.toUpperCase());
+        }
+        ++mBandsVersion;
+    }
+
+    /**
+     * iBeaconの圏域を指定する
+     * <br>
+     * アドレスによる指定が優先される。
+     *
+     * @param major Major値、BluetoothScanFilter.BEACON_VALUE_NONEの場合は問わない
+     * @param minor Minor値、BluetoothScanFilter.BEACON_VALUE_NONEの場合は問わない
+     * @param bands 圏域、nullの場合は設定を解除する
+     */
+    public synchronized void setBeaconBands(UUID uuid, int major, int minor, Bands bands) {
+        final BeaconIdentity key = new BeaconIdentity(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), major, minor, BeaconIdentity.ADDRESS_NONE);
+        if (bands != null) {
+            mBeaconBands.put(key, bands);
+        } else {
+            mBeaconBands.remove(key);
+        }
+        ++mBandsVersion;
+    }
+
+    /**
+     * デバイスの現在の圏域を取得する
+     */
+    public synchronized Zone getZone(String address) {
+        ZoneState state = mStates.get(address);
+        return state != null ? state.zone : Zone.Unknown;
+    }
+
+    /**
+     * 追跡中のデバイス数
+     */
+    public synchronized int getTrackingDeviceCount() {
+        return mStates.size();
+    }
+
+    @Override
+    public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        onSample(device);
+    }
+
+    @Override
+    public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        onSample(device);
+    }
+
+    @Override
+    public void onDeviceRssiUpdated(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        onSample(device);
+    }
+
+    @Override
+    public void onDeviceLost(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        Zone oldZone;
+        synchronized (this) {
+            ZoneState state = mStates.remove(device.address);
+            if (state == null || state.zone == Zone.Unknown) {
+                return;
+            }
+            oldZone = state.zone;
+        }
+        notifyZoneChanged(device, oldZone, Zone.Unknown);
+    }
+
+    @Override
+    public void onScanTimeout(BluetoothDeviceScanner self) {
+    }
+
+    /**
+     * 受信した距離から圏域を判定する
+     */
+    void onSample(BluetoothDeviceCache device) {
+        final double distanceMeter = device.nearDistanceMeter;
+        // 端末の時刻設定の変更で滞在時間がずれないよう、単調増加の時刻を使用する
+        final long timeMs = device.updatedUptimeMs;
+
+        Zone oldZone;
+        Zone newZone;
+        synchronized (this) {
+            ZoneState state = mStates.get(device.address);
+            if (state == null) {
+                state = new ZoneState();
+                mStates.put(device.address, state);
+            }
+            if (state.bands == null || state.bandsVersion != mBandsVersion || device.payloadChanged) {
+                state.bands = resolveBands(device);
+                state.bandsVersion = mBandsVersion;
+            }
+
+            final Zone zone = state.bands.classify(distanceMeter, state.zone);
+            if (zone == state.zone) {
+                state.pendingZone = null;
+                return;
+            }
+            if (zone != state.pendingZone) {
+                state.pendingZone = zone;
+                state.pendingSinceMs = timeMs;
+            }
+            if ((timeMs - state.pendingSinceMs) < state.bands.dwellTimeMs) {
+                return;
+            }
+
+            oldZone = state.zone;
+            newZone = zone;
+            state.zone = zone;
+            state.pendingZone = null;
+        }
+        notifyZoneChanged(device, oldZone, newZone);
+    }
+
+    private void notifyZoneChanged(BluetoothDeviceCache device, Zone oldZone, Zone newZone) {
+        final ZoneListener listener = mListener;
+        if (listener != null) {
+            listener.onZoneChanged(this, device, oldZone, newZone);
+        }
+    }
+
+    /**
+     * デバイスに適用する圏域を選ぶ
+     */
+    private Bands resolveBands(BluetoothDeviceCache device) {
+        Bands bands = mDeviceBands.get(device.address);
+        if (bands != null) {
+            return bands;
+        }
+
+        if (!mBeaconBands.isEmpty()) {
+            final ScanPacket packet = mScanPacket.parse(device.address, device.rssi, device.scanRecord);
+            if (packet.beacon) {
+                final int none = BluetoothScanFilter.BEACON_VALUE_NONE;
+                final long address = BeaconIdentity.ADDRESS_NONE;
+                bands = mBeaconBands.get(packet.beaconUuidMsb, packet.beaconUuidLsb, packet.beaconMajor, packet.beaconMinor, address);
+                if (bands == null) {
+                    bands = mBeaconBands.get(packet.beaconUuidMsb, packet.beaconUuidLsb, packet.beaconMajor, none, address);
+                }
+                if (bands == null) {
+                    bands = mBeaconBands.get(packet.beaconUuidMsb, packet.beaconUuidLsb, none, none, address);
+                }
+                if (bands != null) {
+                    return bands;
+                }
+            }
+        }
+        return mDefaultBands;
+    }
+}
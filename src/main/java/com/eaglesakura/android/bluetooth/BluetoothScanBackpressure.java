@@ -0,0 +1,41 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * 購読者の要求を超えたイベントのバッファリング方法
+ * <br>
+ * いずれの方法でも、購読者ごとのバッファは指定した件数を超えない。
+ *
+ * @see BluetoothDeviceScanner#subscribe(BluetoothScanSubscriber, BluetoothScanBackpressure, int, BluetoothScanFilter...)
+ */
+public enum BluetoothScanBackpressure {
+    /**
+     * デバイスごとに最新のイベントのみを保持する
+     * <br>
+     * 通知待ちのイベントがあるデバイスは、状態をまとめた1件に置き換える。
+     * 発見を通知する前に失効したデバイスは通知しない。
+     * 保持するデバイス数が上限を超えた場合、古いデバイスのイベントから破棄する。
+     */
+    LatestPerAddress,
+
+    /**
+     * 到着順に保持し、上限を超えた場合は古いイベントから破棄する
+     */
+    DropOldest,
+
+    /**
+     * 到着順に保持し、上限に達した場合は新たなイベントを破棄する
+     * <br>
+     * 購読者が要求するまで、バッファに残った古いイベントが保たれる。
+     * 配送スレッドは全ての購読者で共有しているため、バッファが埋まっても待機しない。
+     */
+    DropNewest,
+
+    /**
+     * 到着順に保持し、上限に達した場合は購読者が要求するまで待機する
+     * <br>
+     * 待機するのは購読ごとのスレッドのみであり、受信や配送スレッド、他の購読者は待機しない。
+     * イベントは破棄されないが、待機中に届いたイベントは購読ごとのキューに溜まり続けるため、
+     * 要求が止まる場合はcancel()で購読を解除する。
+     */
+    Block,
+}
@@ -0,0 +1,56 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * スキャン結果のストリームで通知されるイベント
+ * <br>
+ * 生成後は変更されないため、バッファリングした後や他のスレッドからも参照できる。
+ *
+ * @see BluetoothDeviceScanner#subscribe(BluetoothScanSubscriber, BluetoothScanBackpressure, int, BluetoothScanFilter...)
+ */
+public final class BluetoothScanEvent {
+    public enum Type {
+        /**
+         * デバイスを新たに発見した
+         */
+        Found,
+
+        /**
+         * デバイス情報が更新された
+         */
+        Updated,
+
+        /**
+         * デバイスが失効、または削除された
+         */
+        Lost,
+    }
+
+    final Type type;
+
+    final BluetoothDeviceSnapshot device;
+
+    BluetoothScanEvent(Type type, BluetoothDeviceSnapshot device) {
+        this.type = type;
+        this.device = device;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * イベント発生時点でのデバイス
+     */
+    public BluetoothDeviceSnapshot getDevice() {
+        return device;
+    }
+
+    public String getAddress() {
+        return device.address;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + device.address + ")";
+    }
+}
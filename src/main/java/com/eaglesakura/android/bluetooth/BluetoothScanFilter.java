@@ -0,0 +1,220 @@
+package com.eaglesakura.android.bluetooth;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * スキャン対象のデバイスを絞り込む条件
+ * <br>
+ * 指定した条件を全て満たすアドバタイズのみが対象となる。
+ * API21以降では可能な限りBluetoothコントローラへオフロードされる。
+ */
+public class BluetoothScanFilter {
+    /**
+     * 会社識別子を指定しないことを示す
+     */
+    public static final int MANUFACTURER_ID_NONE = -1;
+
+    /**
+     * Major/Minorを指定しないことを示す
+     */
+    public static final int BEACON_VALUE_NONE = -1;
+
+    /**
+     * 電波強度の下限を指定しないことを示す
+     */
+    public static final int RSSI_NONE = Integer.MIN_VALUE;
+
+    String deviceAddress;
+
+    Set<String> deviceAddresses;
+
+    UUID serviceUuid;
+
+    int manufacturerId = MANUFACTURER_ID_NONE;
+
+    UUID beaconUuid;
+
+    int beaconMajor = BEACON_VALUE_NONE;
+
+    int beaconMinor = BEACON_VALUE_NONE;
+
+    int minRssi = RSSI_NONE;
+
+    /**
+     * 対象とするデバイスのアドレスを指定する
+     */
+    public BluetoothScanFilter setDeviceAddress(String deviceAddress) {
+        this.deviceAddress = deviceAddress != null ? deviceAddress.toUpperCase() : null;
+        return this;
+    }
+
+    /**
+     * 対象とするデバイスのアドレスを複数指定する
+     * <br>
+     * いずれかのアドレスに一致すれば対象となる。
+     * コントローラへはオフロードされない。
+     */
+    public BluetoothScanFilter setDeviceAddresses(Collection<String> deviceAddresses) {
+        if (deviceAddresses == null) {
+            this.deviceAddresses = null;
+        } else {
+            this.deviceAddresses = new HashSet<>();
+            for (String address : deviceAddresses) {
+                this.deviceAddresses.add(address.toUpperCase());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * アドバタイズに含まれるService UUIDを指定する
+     */
+    public BluetoothScanFilter setServiceUuid(UUID serviceUuid) {
+        this.serviceUuid = serviceUuid;
+        return this;
+    }
+
+    /**
+     * Manufacturer Specific Dataの会社識別子を指定する
+     * <br>
+     * iBeaconの場合は0x004C
+     */
+    public BluetoothScanFilter setManufacturerId(int manufacturerId) {
+        this.manufacturerId = manufacturerId;
+        return this;
+    }
+
+    /**
+     * iBeaconのUUID/Major/Minorを指定する
+     *
+     * @param uuid  ビーコンのUUID
+     * @param major Major値、指定しない場合はBEACON_VALUE_NONE
+     * @param minor Minor値、指定しない場合はBEACON_VALUE_NONE
+     */
+    public BluetoothScanFilter setBeacon(UUID uuid, int major, int minor) {
+        this.beaconUuid = uuid;
+        this.beaconMajor = major;
+        this.beaconMinor = minor;
+        return this;
+    }
+
+    /**
+     * 電波強度の下限を指定する
+     * <br>
+     * 指定した値よりも弱い電波は対象外となる。
+     */
+    public BluetoothScanFilter setMinRssi(int minRssi) {
+        this.minRssi = minRssi;
+        return this;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public Set<String> getDeviceAddresses() {
+        return deviceAddresses != null ? Collections.unmodifiableSet(deviceAddresses) : null;
+    }
+
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    public int getManufacturerId() {
+        return manufacturerId;
+    }
+
+    public UUID getBeaconUuid() {
+        return beaconUuid;
+    }
+
+    public int getBeaconMajor() {
+        return beaconMajor;
+    }
+
+    public int getBeaconMinor() {
+        return beaconMinor;
+    }
+
+    public int getMinRssi() {
+        return minRssi;
+    }
+
+    /**
+     * 条件を満たしていればtrue
+     * <br>
+     * 電波強度の条件は判定しない。
+     *
+     * @param address    デバイスアドレス
+     * @param scanRecord アドバタイズデータ
+     */
+    public boolean matches(String address, byte[] scanRecord) {
+        return matches(address, Integer.MAX_VALUE, scanRecord);
+    }
+
+    /**
+     * 条件を満たしていればtrue
+     *
+     * @param address    デバイスアドレス
+     * @param rssi       電波強度
+     * @param scanRecord アドバタイズデータ
+     */
+    public boolean matches(String address, int rssi, byte[] scanRecord) {
+        return matches(new ScanPacket().parse(address, rssi, scanRecord));
+    }
+
+    /**
+     * アドバタイズの内容を参照せずに判定できる場合true
+     */
+    boolean isAddressOnly() {
+        return serviceUuid == null && manufacturerId == MANUFACTURER_ID_NONE && beaconUuid == null;
+    }
+
+    /**
+     * 解析済みのアドバタイズが条件を満たしていればtrue
+     */
+    boolean matches(ScanPacket packet) {
+        final String address = packet.address;
+        if (deviceAddress != null && !deviceAddress.equalsIgnoreCase(address)) {
+            return false;
+        }
+        if (deviceAddresses != null && (address == null || !deviceAddresses.contains(address.toUpperCase()))) {
+            return false;
+        }
+        if (packet.rssi < minRssi) {
+            return false;
+        }
+
+        if (isAddressOnly()) {
+            return true;
+        }
+        if (packet.scanRecord == null) {
+            return false;
+        }
+
+        if (manufacturerId != MANUFACTURER_ID_NONE && !packet.containsManufacturerId(manufacturerId)) {
+            return false;
+        }
+        if (serviceUuid != null && !packet.containsServiceUuid(serviceUuid.getMostSignificantBits(), serviceUuid.getLeastSignificantBits())) {
+            return false;
+        }
+        if (beaconUuid != null) {
+            if (!packet.beacon
+                    || packet.beaconUuidMsb != beaconUuid.getMostSignificantBits()
+                    || packet.beaconUuidLsb != beaconUuid.getLeastSignificantBits()) {
+                return false;
+            }
+            if (beaconMajor != BEACON_VALUE_NONE && packet.beaconMajor != beaconMajor) {
+                return false;
+            }
+            if (beaconMinor != BEACON_VALUE_NONE && packet.beaconMinor != beaconMinor) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
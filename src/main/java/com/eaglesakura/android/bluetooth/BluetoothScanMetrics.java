@@ -0,0 +1,223 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * スキャナの負荷状況のスナップショット
+ * <br>
+ * 件数は計測開始(またはリセット)からの累計となる。
+ * 定期レポートでは前回のレポートからの差分が通知される。
+ *
+ * @see BluetoothDeviceScanner#setMetricsEnabled(boolean)
+ */
+public final class BluetoothScanMetrics {
+    /**
+     * 集計の開始時刻
+     */
+    final long startTimeMs;
+
+    /**
+     * 集計の終了時刻
+     */
+    final long endTimeMs;
+
+    /**
+     * 集計の開始時の単調増加の時刻
+     * 集計期間の長さは端末の時刻設定の変更に影響されないよう、こちらから求める。
+     */
+    final long startUptimeMs;
+
+    /**
+     * 集計の終了時の単調増加の時刻
+     */
+    final long endUptimeMs;
+
+    /**
+     * 受信したアドバタイズ数
+     */
+    final long advertisementCount;
+
+    /**
+     * スキャン対象の条件により除外したアドバタイズ数
+     */
+    final long filteredCount;
+
+    /**
+     * 新たに発見したデバイス数
+     */
+    final long foundCount;
+
+    /**
+     * 更新されたデバイス数
+     */
+    final long updatedCount;
+
+    /**
+     * 失効により削除したキャッシュ数
+     */
+    final long evictedCount;
+
+    /**
+     * キャッシュの上限により削除したキャッシュ数
+     */
+    final long capacityEvictedCount;
+
+    /**
+     * 集計時点のキャッシュ数
+     */
+    final int cacheSize;
+
+    /**
+     * 集計時点のキャッシュが保持しているメモリの概算(byte)
+     */
+    final long retainedBytes;
+
+    /**
+     * スキャン結果の処理時間
+     */
+    final LatencyHistogram ingestLatency;
+
+    /**
+     * リスナの処理時間
+     */
+    final LatencyHistogram dispatchLatency;
+
+    BluetoothScanMetrics(long startTimeMs, long endTimeMs, long startUptimeMs, long endUptimeMs,
+                         long advertisementCount, long filteredCount, long foundCount, long updatedCount, long evictedCount, long capacityEvictedCount,
+                         int cacheSize, long retainedBytes,
+                         LatencyHistogram ingestLatency, LatencyHistogram dispatchLatency) {
+        this.startTimeMs = startTimeMs;
+        this.endTimeMs = endTimeMs;
+        this.startUptimeMs = startUptimeMs;
+        this.endUptimeMs = endUptimeMs;
+        this.advertisementCount = advertisementCount;
+        this.filteredCount = filteredCount;
+        this.foundCount = foundCount;
+        this.updatedCount = updatedCount;
+        this.evictedCount = evictedCount;
+        this.capacityEvictedCount = capacityEvictedCount;
+        this.cacheSize = cacheSize;
+        this.retainedBytes = retainedBytes;
+        this.ingestLatency = ingestLatency;
+        this.dispatchLatency = dispatchLatency;
+    }
+
+    /**
+     * 前回のスナップショットからの差分を取得する
+     * <br>
+     * キャッシュ数と保持メモリはthisの値となる。
+     */
+    BluetoothScanMetrics delta(BluetoothScanMetrics previous) {
+        return new BluetoothScanMetrics(
+                previous.endTimeMs, endTimeMs, previous.endUptimeMs, endUptimeMs,
+                advertisementCount - previous.advertisementCount,
+                filteredCount - previous.filteredCount,
+                foundCount - previous.foundCount,
+                updatedCount - previous.updatedCount,
+                evictedCount - previous.evictedCount,
+                capacityEvictedCount - previous.capacityEvictedCount,
+                cacheSize, retainedBytes,
+                ingestLatency.delta(previous.ingestLatency),
+                dispatchLatency.delta(previous.dispatchLatency)
+        );
+    }
+
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    public long getEndTimeMs() {
+        return endTimeMs;
+    }
+
+    /**
+     * 集計期間の長さ(ミリ秒)
+     * <br>
+     * スキャナの時計の単調増加の時刻から求めるため、端末の時刻設定を変更しても変化しない。
+     *
+     * @see BluetoothDeviceScanner#setClock(BluetoothClock)
+     */
+    public long getElapsedTimeMs() {
+        return endUptimeMs - startUptimeMs;
+    }
+
+    public long getAdvertisementCount() {
+        return advertisementCount;
+    }
+
+    /**
+     * 1秒あたりの受信アドバタイズ数
+     */
+    public double getAdvertisementsPerSecond() {
+        final long timeMs = getElapsedTimeMs();
+        if (timeMs <= 0) {
+            return 0;
+        }
+        return (double) advertisementCount * 1000.0 / (double) timeMs;
+    }
+
+    public long getFilteredCount() {
+        return filteredCount;
+    }
+
+    public long getFoundCount() {
+        return foundCount;
+    }
+
+    public long getUpdatedCount() {
+        return updatedCount;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * キャッシュの上限により削除したキャッシュ数
+     *
+     * @see BluetoothDeviceScanner#setCacheCapacity(int, long, BluetoothDeviceScanner.CacheEvictionPolicy)
+     */
+    public long getCapacityEvictedCount() {
+        return capacityEvictedCount;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * スキャン結果1件(またはバッチ1回)をキャッシュへ反映するまでの時間
+     */
+    public LatencyHistogram getIngestLatency() {
+        return ingestLatency;
+    }
+
+    /**
+     * リスナ呼び出し1回あたりの時間
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("adv[%d / %.1f per sec] filtered[%d] found[%d] updated[%d] evicted[%d / capacity %d] cache[%d / %d bytes] ingest{%s} dispatch{%s}",
+                advertisementCount, getAdvertisementsPerSecond(), filteredCount, foundCount, updatedCount, evictedCount, capacityEvictedCount,
+                cacheSize, retainedBytes, ingestLatency, dispatchLatency);
+    }
+
+    /**
+     * 定期的にスナップショットを受け取る
+     *
+     * @see BluetoothDeviceScanner#setMetricsReporter(Reporter, long)
+     */
+    public interface Reporter {
+        /**
+         * @param self    コールバック呼び出し元
+         * @param metrics 前回のレポートからの差分
+         */
+        void onReport(BluetoothDeviceScanner self, BluetoothScanMetrics metrics);
+    }
+}
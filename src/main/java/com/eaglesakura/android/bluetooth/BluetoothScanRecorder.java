@@ -0,0 +1,254 @@
+package com.eaglesakura.android.bluetooth;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 受信したスキャン結果をバイナリ形式で記録する
+ * <br>
+ * 記録した内容はBluetoothScanReplayerで再生できる。
+ * ヘッダに続き、スキャン結果ごとに以下を並べる。
+ * <pre>
+ * timeDelta(zigzag varint) address(6byte) rssi(short) recordLength + 1(varint, 0はnull) record
+ * </pre>
+ * 時刻は直前のスキャン結果からの差分として格納する。
+ * <br>
+ * スキャナからはキューへ追加するのみで、書き込みは専用のスレッドで行う。
+ * 出力先の書き込みが遅い場合もスキャン結果の反映を待たせず、キューが溢れた分は記録せずに破棄する。
+ *
+ * @see BluetoothDeviceScanner#setScanRecorder(BluetoothScanRecorder)
+ */
+public class BluetoothScanRecorder implements Closeable {
+    static final int MAGIC = 0x42535231; // "BSR1"
+
+    /**
+     * 書き込み待ちのスキャン結果の最大数
+     */
+    static final int DEFAULT_QUEUE_SIZE = 4096;
+
+    /**
+     * 書き込み待ちのスキャン結果
+     */
+    static final class Entry {
+        final long timeMs;
+
+        final String address;
+
+        final int rssi;
+
+        final byte[] scanRecord;
+
+        Entry(long timeMs, String address, int rssi, byte[] scanRecord) {
+            this.timeMs = timeMs;
+            this.address = address;
+            this.rssi = rssi;
+            this.scanRecord = scanRecord;
+        }
+    }
+
+    /**
+     * 書き込みスレッドの終了を示す
+     */
+    private static final Entry END = new Entry(0, null, 0, null);
+
+    private final OutputStream mStream;
+
+    private final BlockingQueue<Entry> mQueue;
+
+    private final Thread mThread;
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private volatile boolean mClosed;
+
+    private long mLastTimeMs;
+
+    private long mRecordCount;
+
+    /**
+     * 書き込みに失敗した場合の例外
+     */
+    private IOException mError;
+
+    public BluetoothScanRecorder(OutputStream stream) throws IOException {
+        this(stream, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param queueSize 書き込み待ちのスキャン結果の最大数
+     */
+    public BluetoothScanRecorder(OutputStream stream, int queueSize) throws IOException {
+        mStream = new BufferedOutputStream(stream);
+        writeInt32(mStream, MAGIC);
+
+        mQueue = new ArrayBlockingQueue<>(queueSize);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "BleScanRecorder");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * スキャン結果を記録する
+     * <br>
+     * スキャナのcacheLockを保持した状態で呼び出されるため、キューへ追加するのみで待機しない。
+     * キューが溢れている場合は記録せずに破棄する。
+     */
+    void record(long timeMs, String address, int rssi, byte[] scanRecord) {
+        if (mClosed) {
+            return;
+        }
+        if (!mQueue.offer(new Entry(timeMs, address, rssi, scanRecord))) {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 書き込みスレッドの処理
+     * <br>
+     * キューが空になった時点で出力先へフラッシュする。
+     */
+    private void writeLoop() {
+        try {
+            while (true) {
+                final Entry entry = mQueue.take();
+                if (entry == END) {
+                    return;
+                }
+                write(entry);
+                if (mQueue.isEmpty()) {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            BleLog.debug("recorder interrupted");
+        }
+    }
+
+    /**
+     * 書き込みに失敗した場合、以降は記録しない。
+     */
+    private synchronized void write(Entry entry) {
+        if (mError != null) {
+            return;
+        }
+
+        final byte[] addressBytes = BluetoothDeviceCacheStore.parseAddress(entry.address);
+        if (addressBytes == null) {
+            return;
+        }
+
+        try {
+            writeVarLong(mStream, zigzag(entry.timeMs - mLastTimeMs));
+            mStream.write(addressBytes);
+            mStream.write(entry.rssi & 0xFF);
+            mStream.write((entry.rssi >> 8) & 0xFF);
+            if (entry.scanRecord == null) {
+                writeVarLong(mStream, 0);
+            } else {
+                writeVarLong(mStream, entry.scanRecord.length + 1);
+                mStream.write(entry.scanRecord);
+            }
+            mLastTimeMs = entry.timeMs;
+            ++mRecordCount;
+        } catch (IOException e) {
+            BleLog.debug("record failed :: %s", e);
+            mError = e;
+        }
+    }
+
+    private synchronized void flush() {
+        if (mError != null) {
+            return;
+        }
+        try {
+            mStream.flush();
+        } catch (IOException e) {
+            BleLog.debug("flush failed :: %s", e);
+            mError = e;
+        }
+    }
+
+    /**
+     * 書き込み待ちのキューが溢れて破棄したスキャン結果の数
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * 記録したスキャン結果の数
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * 書き込みに失敗していれば、その例外
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    /**
+     * 書き込み待ちのスキャン結果を全て書き込んだ後、出力先を閉じる
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        try {
+            // 書き込みスレッドが終了している場合はキューが空かないため、待機を打ち切る
+            while (!mQueue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                if (!mThread.isAlive()) {
+                    break;
+                }
+            }
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("close interrupted");
+        }
+
+        synchronized (this) {
+            mStream.close();
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeInt32(OutputStream stream, int value) throws IOException {
+        stream.write(value & 0xFF);
+        stream.write((value >> 8) & 0xFF);
+        stream.write((value >> 16) & 0xFF);
+        stream.write((value >> 24) & 0xFF);
+    }
+
+    static void writeVarLong(OutputStream stream, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            stream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        stream.write((int) value);
+    }
+}
@@ -0,0 +1,201 @@
+package com.eaglesakura.android.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BluetoothScanRecorderで記録したスキャン結果をスキャナへ再生する
+ * <br>
+ * スキャン結果は実際の受信と同じ経路でキャッシュへ反映される。
+ * 再生中のスキャナの時計は記録時の時刻を返すため、キャッシュの失効等も記録時と同様に動作する。
+ * 実機なしに負荷試験や、キャッシュ・フィルタ・リスナの回帰テストを行うために使用する。
+ */
+public class BluetoothScanReplayer {
+    private final InputStream mStream;
+
+    /**
+     * 再生速度
+     */
+    private double mSpeed = 1.0;
+
+    private long mLastTimeMs;
+
+    /**
+     * 再生中の時刻
+     */
+    private volatile long mCurrentTimeMs;
+
+    private final BluetoothClock mClock = () -> mCurrentTimeMs;
+
+    private final Map<String, BluetoothDevice> mDevices = new HashMap<>();
+
+    /**
+     * 記録したアドレスからデバイスを生成する
+     * nullの場合はデフォルトのBluetoothAdapterから取得する
+     */
+    private DeviceFactory mDeviceFactory;
+
+    public BluetoothScanReplayer(InputStream stream) throws IOException {
+        mStream = new BufferedInputStream(stream);
+        if (readInt32(mStream) != BluetoothScanRecorder.MAGIC) {
+            throw new IOException("invalid record");
+        }
+    }
+
+    /**
+     * 再生速度を指定する
+     *
+     * @param speed 1.0で記録時と同じ間隔、2.0で2倍速となる。0以下の場合は待機せずに再生する
+     */
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * 記録したアドレスからデバイスを生成する方法を指定する
+     * <br>
+     * BluetoothAdapterを利用できない環境で再生する場合に指定する。
+     *
+     * @param deviceFactory 生成方法、nullの場合はデフォルトのBluetoothAdapterから取得する
+     */
+    public void setDeviceFactory(DeviceFactory deviceFactory) {
+        mDeviceFactory = deviceFactory;
+    }
+
+    /**
+     * 再生中の時刻を返す時計
+     */
+    public BluetoothClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * 全てのスキャン結果を再生する
+     * <br>
+     * 再生を開始するとスキャナの時計は再生中の時刻へ差し替えられ、終了後もそのまま維持される。
+     *
+     * @return 再生したスキャン結果の数
+     */
+    public int replay(BluetoothDeviceScanner scanner) throws IOException, InterruptedException {
+        return replay(scanner, Integer.MAX_VALUE);
+    }
+
+    /**
+     * スキャン結果を指定数まで再生する
+     *
+     * @param maxCount 最大再生数
+     * @return 再生したスキャン結果の数
+     * @throws IOException 記録が壊れている場合、またはデバイスの生成方法が指定されずBluetoothAdapterも利用できない場合
+     */
+    public int replay(BluetoothDeviceScanner scanner, int maxCount) throws IOException, InterruptedException {
+        DeviceFactory deviceFactory = mDeviceFactory;
+        if (deviceFactory == null) {
+            final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter == null) {
+                throw new IOException("Bluetooth not supported");
+            }
+            deviceFactory = adapter::getRemoteDevice;
+        }
+        final byte[] address = new byte[6];
+        int count = 0;
+        long startRealTimeMs = 0;
+        long startTimeMs = 0;
+
+        while (count < maxCount) {
+            long delta;
+            try {
+                delta = BluetoothScanRecorder.unzigzag(readVarLong(mStream));
+            } catch (EOFException e) {
+                break;
+            }
+            readFully(mStream, address);
+            final int rssi = (short) (readByte(mStream) | (readByte(mStream) << 8));
+            final long recordLength = readVarLong(mStream);
+            byte[] scanRecord = null;
+            if (recordLength > 0) {
+                scanRecord = new byte[(int) (recordLength - 1)];
+                readFully(mStream, scanRecord);
+            }
+
+            final long timeMs = mLastTimeMs + delta;
+            mLastTimeMs = timeMs;
+
+            if (count == 0) {
+                startRealTimeMs = System.nanoTime() / BluetoothDeviceScanner.NANOS_PER_MILLI;
+                startTimeMs = timeMs;
+                mCurrentTimeMs = timeMs;
+                scanner.setClock(mClock);
+            } else if (mSpeed > 0) {
+                // 記録時の間隔に合わせて待機する
+                final long waitMs = startRealTimeMs + (long) ((timeMs - startTimeMs) / mSpeed) - (System.nanoTime() / BluetoothDeviceScanner.NANOS_PER_MILLI);
+                if (waitMs > 0) {
+                    Thread.sleep(waitMs);
+                }
+            }
+            mCurrentTimeMs = timeMs;
+
+            scanner.onScanResult(getDevice(deviceFactory, address), rssi, scanRecord);
+            ++count;
+        }
+        return count;
+    }
+
+    private BluetoothDevice getDevice(DeviceFactory deviceFactory, byte[] addressBytes) {
+        final String address = BluetoothDeviceCacheStore.formatAddress(addressBytes);
+        BluetoothDevice device = mDevices.get(address);
+        if (device == null) {
+            device = deviceFactory.getRemoteDevice(address);
+            mDevices.put(address, device);
+        }
+        return device;
+    }
+
+    /**
+     * 記録したアドレスからデバイスを生成する
+     */
+    public interface DeviceFactory {
+        BluetoothDevice getRemoteDevice(String address);
+    }
+
+    private static int readByte(InputStream stream) throws IOException {
+        final int value = stream.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private static void readFully(InputStream stream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int read = stream.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    static int readInt32(InputStream stream) throws IOException {
+        return readByte(stream) | (readByte(stream) << 8) | (readByte(stream) << 16) | (readByte(stream) << 24);
+    }
+
+    static long readVarLong(InputStream stream) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int value = readByte(stream);
+            result |= (long) (value & 0x7F) << shift;
+            if ((value & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("invalid varint");
+    }
+}
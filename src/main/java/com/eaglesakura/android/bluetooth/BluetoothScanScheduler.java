@@ -0,0 +1,181 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.thread.UIHandler;
+
+/**
+ * スキャンを間欠的に実行する
+ * <br>
+ * 常駐してデバイスの在圏を確認する場合、連続スキャンは電池消費が大きく、重複したデータも多い。
+ * 一定時間スキャンした後に一定時間停止することを繰り返し、
+ * 新たなデバイスが見つかる頻度に応じて停止時間を調整する。
+ * <br>
+ * 停止中の時間はキャッシュの失効判定から除外される。
+ */
+public class BluetoothScanScheduler {
+    final BluetoothDeviceScanner mScanner;
+
+    /**
+     * 1回あたりのスキャン時間
+     */
+    private long mScanWindowMs = 1000 * 2;
+
+    /**
+     * スキャンを停止する時間の初期値
+     */
+    private long mScanIntervalMs = 1000 * 8;
+
+    /**
+     * スキャンを停止する時間の最小値
+     */
+    private long mMinScanIntervalMs = 1000 * 2;
+
+    /**
+     * スキャンを停止する時間の最大値
+     */
+    private long mMaxScanIntervalMs = 1000 * 30;
+
+    /**
+     * 新たなデバイスが見つからなかった場合に停止時間を伸ばす倍率
+     * 見つかった場合は同じ倍率で縮める
+     */
+    private float mBackoff = 1.5f;
+
+    /**
+     * 現在の停止時間
+     */
+    long mCurrentScanIntervalMs;
+
+    /**
+     * スキャン開始時点の発見済みデバイス数
+     */
+    private long mWindowStartFoundCount;
+
+    private boolean mRunning;
+
+    private final Runnable mScanWindowStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startScanWindow();
+        }
+    };
+
+    private final Runnable mScanWindowEndRunnable = new Runnable() {
+        @Override
+        public void run() {
+            endScanWindow();
+        }
+    };
+
+    public BluetoothScanScheduler(BluetoothDeviceScanner scanner) {
+        mScanner = scanner;
+    }
+
+    /**
+     * 1回あたりのスキャン時間を指定する
+     */
+    public void setScanWindowMs(long scanWindowMs) {
+        mScanWindowMs = scanWindowMs;
+    }
+
+    /**
+     * スキャンを停止する時間を指定する
+     *
+     * @param scanIntervalMs    停止時間の初期値
+     * @param minScanIntervalMs 新たなデバイスが頻繁に見つかる場合の最小値
+     * @param maxScanIntervalMs 新たなデバイスが見つからない場合の最大値
+     */
+    public void setScanIntervalMs(long scanIntervalMs, long minScanIntervalMs, long maxScanIntervalMs) {
+        if (minScanIntervalMs > scanIntervalMs || scanIntervalMs > maxScanIntervalMs) {
+            throw new IllegalArgumentException("min[" + minScanIntervalMs + "] interval[" + scanIntervalMs + "] max[" + maxScanIntervalMs + "]");
+        }
+        mScanIntervalMs = scanIntervalMs;
+        mMinScanIntervalMs = minScanIntervalMs;
+        mMaxScanIntervalMs = maxScanIntervalMs;
+    }
+
+    /**
+     * 停止時間を調整する倍率を指定する
+     * 1.0の場合は停止時間を固定する
+     */
+    public void setBackoff(float backoff) {
+        if (backoff < 1.0f) {
+            throw new IllegalArgumentException("backoff < 1.0");
+        }
+        mBackoff = backoff;
+    }
+
+    /**
+     * 現在の停止時間を取得する
+     */
+    public synchronized long getCurrentScanIntervalMs() {
+        return mCurrentScanIntervalMs;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * 間欠スキャンを開始する
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mCurrentScanIntervalMs = mScanIntervalMs;
+        startScanWindow();
+    }
+
+    /**
+     * 間欠スキャンを停止する
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+
+        UIHandler.getInstance().removeCallbacks(mScanWindowStartRunnable);
+        UIHandler.getInstance().removeCallbacks(mScanWindowEndRunnable);
+        mScanner.stopScan();
+        mScanner.resumeExpiry();
+    }
+
+    private synchronized void startScanWindow() {
+        if (!mRunning) {
+            return;
+        }
+
+        mScanner.resumeExpiry();
+        mWindowStartFoundCount = mScanner.mFoundDeviceCount;
+        mScanner.startScanImpl();
+        UIHandler.postDelayedUI(mScanWindowEndRunnable, mScanWindowMs);
+    }
+
+    private synchronized void endScanWindow() {
+        if (!mRunning) {
+            return;
+        }
+
+        mScanner.suspendScan();
+        mScanner.pauseExpiry();
+
+        adaptScanInterval(mScanner.mFoundDeviceCount - mWindowStartFoundCount);
+        UIHandler.postDelayedUI(mScanWindowStartRunnable, mCurrentScanIntervalMs);
+    }
+
+    /**
+     * 直前のスキャンで見つかったデバイス数から停止時間を調整する
+     *
+     * @param foundDeviceCount 新たに見つかったデバイス数
+     */
+    synchronized void adaptScanInterval(long foundDeviceCount) {
+        if (foundDeviceCount > 0) {
+            // 環境が変化しているので、スキャン頻度を上げる
+            mCurrentScanIntervalMs = Math.max((long) (mCurrentScanIntervalMs / mBackoff), mMinScanIntervalMs);
+        } else {
+            mCurrentScanIntervalMs = Math.min((long) (mCurrentScanIntervalMs * mBackoff), mMaxScanIntervalMs);
+        }
+    }
+}
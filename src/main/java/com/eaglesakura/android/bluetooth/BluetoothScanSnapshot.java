@@ -0,0 +1,291 @@
+package com.eaglesakura.android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * バージョン付きのデバイスキャッシュ全体のスナップショット
+ * <br>
+ * スキャン結果の反映後にまとめて公開され、公開後は変更されない。
+ * 取得側はロックやコピーを行わずに参照できる。
+ * <br>
+ * デバイスは固定長のチャンクに分けて保持し、公開時には変化したチャンクのみを複製して他のバージョンと共有する。
+ * また、バージョンごとに変化したアドレスを記録しているため、差分の取得は変化した件数のみに比例する。
+ *
+ * @see BluetoothDeviceScanner#getScanSnapshot()
+ */
+public final class BluetoothScanSnapshot {
+    static final int CHUNK_BITS = 7;
+
+    /**
+     * 1チャンクに含まれる要素数
+     */
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * アドレス索引の削除済みを示す値
+     */
+    static final int INDEX_REMOVED = -1;
+
+    /**
+     * 空のスナップショット
+     */
+    static final BluetoothScanSnapshot EMPTY = new BluetoothScanSnapshot(
+            0, new BluetoothDeviceSnapshot[0][], 0, 0, new int[1][CHUNK_SIZE], CHUNK_MASK, null
+    );
+
+    /**
+     * 1回の公開で変化したアドレス
+     */
+    static final class ChangeLog {
+        final long version;
+
+        /**
+         * 直前に公開されたバージョン
+         */
+        final long prevVersion;
+
+        /**
+         * 追加または更新されたアドレス
+         */
+        final String[] updated;
+
+        /**
+         * 削除されたアドレス
+         */
+        final String[] removed;
+
+        /**
+         * 直前の記録
+         * 履歴が切り詰められた場合はnullとなる
+         */
+        ChangeLog prev;
+
+        ChangeLog(long version, long prevVersion, String[] updated, String[] removed, ChangeLog prev) {
+            this.version = version;
+            this.prevVersion = prevVersion;
+            this.updated = updated;
+            this.removed = removed;
+            this.prev = prev;
+        }
+
+        int size() {
+            return updated.length + removed.length;
+        }
+    }
+
+    final long version;
+
+    /**
+     * 発見順のデバイス
+     * 削除されたデバイスはnullとなる
+     */
+    final BluetoothDeviceSnapshot[][] slots;
+
+    /**
+     * 使用済みのslots数
+     */
+    final int slotCount;
+
+    final int size;
+
+    /**
+     * アドレスからslotsの位置+1を引くオープンアドレス法の索引
+     * 0は未使用、INDEX_REMOVEDは削除済みを示す
+     */
+    final int[][] index;
+
+    final int indexMask;
+
+    /**
+     * このバージョンで変化したアドレス
+     * 差分を復元できない場合はnull
+     */
+    final ChangeLog changes;
+
+    /**
+     * getDevices()の結果
+     * 必要になるまで生成しない
+     */
+    private volatile List<BluetoothDeviceSnapshot> mDeviceList;
+
+    BluetoothScanSnapshot(long version, BluetoothDeviceSnapshot[][] slots, int slotCount, int size, int[][] index, int indexMask, ChangeLog changes) {
+        this.version = version;
+        this.slots = slots;
+        this.slotCount = slotCount;
+        this.size = size;
+        this.index = index;
+        this.indexMask = indexMask;
+        this.changes = changes;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 全てのデバイスを発見順に取得する
+     */
+    public List<BluetoothDeviceSnapshot> getDevices() {
+        List<BluetoothDeviceSnapshot> result = mDeviceList;
+        if (result == null) {
+            List<BluetoothDeviceSnapshot> devices = new ArrayList<>(size);
+            for (int i = 0; i < slotCount; ++i) {
+                final BluetoothDeviceSnapshot device = slots[i >> CHUNK_BITS][i & CHUNK_MASK];
+                if (device != null) {
+                    devices.add(device);
+                }
+            }
+            result = Collections.unmodifiableList(devices);
+            mDeviceList = result;
+        }
+        return result;
+    }
+
+    /**
+     * アドレスを指定してデバイスを取得する
+     *
+     * @return デバイス、含まれていない場合はnull
+     */
+    public BluetoothDeviceSnapshot get(String address) {
+        final int slot = findSlot(slots, index, indexMask, address);
+        return (slot >= 0) ? slots[slot >> CHUNK_BITS][slot & CHUNK_MASK] : null;
+    }
+
+    /**
+     * 指定したバージョン以降の変化を取得する
+     *
+     * @param sinceVersion 以前に取得したスナップショットのバージョン
+     */
+    public Delta getChangesSince(long sinceVersion) {
+        if (sinceVersion >= version) {
+            return new Delta(sinceVersion, version, false, Collections.<BluetoothDeviceSnapshot>emptyList(), Collections.<String>emptyList());
+        }
+
+        // 新しい記録から遡り、指定したバージョンまでに変化したアドレスを集める
+        Set<String> addresses = new LinkedHashSet<>();
+        ChangeLog log = changes;
+        while (true) {
+            if (log == null) {
+                // 履歴が残っていないため、全件を通知する
+                return new Delta(sinceVersion, version, true, getDevices(), Collections.<String>emptyList());
+            }
+            Collections.addAll(addresses, log.updated);
+            Collections.addAll(addresses, log.removed);
+            if (log.prevVersion <= sinceVersion) {
+                break;
+            }
+            log = log.prev;
+        }
+
+        List<BluetoothDeviceSnapshot> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String address : addresses) {
+            final BluetoothDeviceSnapshot device = get(address);
+            if (device != null) {
+                updated.add(device);
+            } else {
+                removed.add(address);
+            }
+        }
+        return new Delta(sinceVersion, version, false, updated, removed);
+    }
+
+    /**
+     * アドレス索引の探索開始位置
+     */
+    static int indexHash(String address) {
+        final int h = address.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * アドレスに対応するslotsの位置を取得する
+     *
+     * @return 位置、含まれていない場合は-1
+     */
+    static int findSlot(BluetoothDeviceSnapshot[][] slots, int[][] index, int indexMask, String address) {
+        int i = indexHash(address) & indexMask;
+        while (true) {
+            final int value = index[i >> CHUNK_BITS][i & CHUNK_MASK];
+            if (value == 0) {
+                return -1;
+            }
+            if (value > 0) {
+                final int slot = value - 1;
+                final BluetoothDeviceSnapshot device = slots[slot >> CHUNK_BITS][slot & CHUNK_MASK];
+                if (device != null && device.address.equals(address)) {
+                    return slot;
+                }
+            }
+            i = (i + 1) & indexMask;
+        }
+    }
+
+    /**
+     * スナップショット間の差分
+     */
+    public static final class Delta {
+        final long fromVersion;
+
+        final long toVersion;
+
+        final boolean full;
+
+        final List<BluetoothDeviceSnapshot> updated;
+
+        final List<String> removed;
+
+        Delta(long fromVersion, long toVersion, boolean full, List<BluetoothDeviceSnapshot> updated, List<String> removed) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.full = full;
+            this.updated = updated;
+            this.removed = removed;
+        }
+
+        public long getFromVersion() {
+            return fromVersion;
+        }
+
+        public long getToVersion() {
+            return toVersion;
+        }
+
+        /**
+         * 差分が復元できず、全件が含まれている場合はtrue
+         * <br>
+         * 取得側は保持している内容を全て破棄し、getUpdated()で置き換える必要がある。
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * 追加または更新されたデバイス
+         */
+        public List<BluetoothDeviceSnapshot> getUpdated() {
+            return updated;
+        }
+
+        /**
+         * 削除されたデバイスのアドレス
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        public boolean isEmpty() {
+            return !full && updated.isEmpty() && removed.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * スキャン結果のストリームの購読者
+ * <br>
+ * イベントは要求した件数を超えて通知されない。
+ * 呼び出しは常に1スレッドずつ行われるが、呼び出し元のスレッドは固定されない。
+ *
+ * @see BluetoothDeviceScanner#subscribe(BluetoothScanSubscriber, BluetoothScanBackpressure, int, BluetoothScanFilter...)
+ */
+public interface BluetoothScanSubscriber {
+    /**
+     * 購読が開始された
+     * <br>
+     * subscription.request()を呼び出すまで、イベントは通知されない。
+     *
+     * @param subscription 購読の制御
+     */
+    void onSubscribe(BluetoothScanSubscription subscription);
+
+    /**
+     * イベントが発生した
+     *
+     * @param event 通知されたイベント
+     */
+    void onNext(BluetoothScanEvent event);
+}
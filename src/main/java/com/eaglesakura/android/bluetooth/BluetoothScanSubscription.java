@@ -0,0 +1,27 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * スキャン結果のストリームの購読
+ */
+public interface BluetoothScanSubscription {
+    /**
+     * 追加でイベントを要求する
+     * <br>
+     * 要求はonNext()の中からも呼び出せる。
+     *
+     * @param n 要求する件数、Long.MAX_VALUEの場合は無制限
+     */
+    void request(long n);
+
+    /**
+     * 購読を終了する
+     * <br>
+     * 通知待ちのイベントは破棄される。
+     */
+    void cancel();
+
+    /**
+     * バッファの上限を超えて破棄したイベント数
+     */
+    long getDroppedCount();
+}
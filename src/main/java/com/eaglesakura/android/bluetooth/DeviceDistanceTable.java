@@ -0,0 +1,81 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * RSSIとTxPowerからデバイスまでの距離を求めるための事前計算テーブル
+ * <br>
+ * 距離は 10^((txPower - rssi) / 20) で求められる。
+ * RSSIとTxPowerはいずれも狭い範囲の整数であるため、差分ごとの値を事前に計算しておき、
+ * 受信やソートのたびにMath.pow()を呼び出すことを避ける。
+ * 小数のRSSIは前後のテーブル値から線形補間する。
+ */
+final class DeviceDistanceTable {
+    /**
+     * テーブルで扱う (txPower - rssi) の最小値
+     */
+    static final int MIN_POWER_DIFF = -160;
+
+    /**
+     * テーブルで扱う (txPower - rssi) の最大値
+     * byteのTxPowerとRSSI_UNKNOWNの組み合わせを含む
+     */
+    static final int MAX_POWER_DIFF = 400;
+
+    private static final double[] DISTANCE_TABLE;
+
+    static {
+        DISTANCE_TABLE = new double[MAX_POWER_DIFF - MIN_POWER_DIFF + 1];
+        for (int i = 0; i < DISTANCE_TABLE.length; ++i) {
+            DISTANCE_TABLE[i] = calcDistance(MIN_POWER_DIFF + i);
+        }
+    }
+
+    private DeviceDistanceTable() {
+    }
+
+    /**
+     * テーブルを使用せずに距離を計算する
+     */
+    static double calcDistance(double powerDiff) {
+        // http://qiita.com/shu223/items/7c4e87c47eca65724305
+        return Math.pow(10.0, powerDiff / 20.0);
+    }
+
+    /**
+     * 距離を取得する
+     *
+     * @param rssi    電波強度
+     * @param txPower BLEデバイス電波出力
+     */
+    static double getDistance(int rssi, int txPower) {
+        final int powerDiff = txPower - rssi;
+        if (powerDiff < MIN_POWER_DIFF || powerDiff > MAX_POWER_DIFF) {
+            return calcDistance(powerDiff);
+        }
+        return DISTANCE_TABLE[powerDiff - MIN_POWER_DIFF];
+    }
+
+    /**
+     * 距離を取得する
+     * <br>
+     * 整数でない場合は前後の値から線形補間する。
+     *
+     * @param rssi    電波強度
+     * @param txPower BLEデバイス電波出力
+     */
+    static double getDistance(double rssi, int txPower) {
+        final double powerDiff = txPower - rssi;
+        if (!(powerDiff >= MIN_POWER_DIFF && powerDiff < MAX_POWER_DIFF)) {
+            // 範囲外もしくはNaN
+            return calcDistance(powerDiff);
+        }
+
+        final double position = powerDiff - MIN_POWER_DIFF;
+        final int index = (int) position;
+        final double fraction = position - index;
+        final double value = DISTANCE_TABLE[index];
+        if (fraction == 0) {
+            return value;
+        }
+        return value + (DISTANCE_TABLE[index + 1] - value) * fraction;
+    }
+}
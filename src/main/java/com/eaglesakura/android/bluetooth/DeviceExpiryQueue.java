@@ -0,0 +1,156 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+
+import java.util.Arrays;
+
+/**
+ * デバイスキャッシュを失効時刻順に管理するヒープ
+ * <br>
+ * 各キャッシュは自身のヒープ内位置を保持するため、更新時の並べ替えはO(log n)で行え、
+ * アドバタイズ受信ごとの確認は先頭要素のチェックのみで済む。
+ * <br>
+ * スレッドセーフではないため、呼び出し元でロックを行うこと。
+ */
+final class DeviceExpiryQueue {
+    /**
+     * ヒープに登録されていないことを示すindex
+     */
+    static final int INDEX_NONE = -1;
+
+    private BluetoothDeviceCache[] mHeap = new BluetoothDeviceCache[64];
+
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * 最も早く失効するキャッシュを取得する
+     */
+    BluetoothDeviceCache peek() {
+        return mSize == 0 ? null : mHeap[0];
+    }
+
+    /**
+     * 指定時刻までに失効したキャッシュが存在すればtrue
+     */
+    boolean hasExpired(long nowMs) {
+        return mSize > 0 && mHeap[0].expireTimeMs <= nowMs;
+    }
+
+    /**
+     * キャッシュを登録する。登録済みであれば失効時刻の変更を反映する。
+     */
+    void offer(BluetoothDeviceCache cache) {
+        int index = cache.expiryQueueIndex;
+        if (index == INDEX_NONE) {
+            if (mSize == mHeap.length) {
+                mHeap = Arrays.copyOf(mHeap, mSize * 2);
+            }
+            index = mSize++;
+            mHeap[index] = cache;
+            cache.expiryQueueIndex = index;
+            siftUp(index);
+        } else {
+            // 失効時刻は前後どちらにも動きうる
+            siftUp(index);
+            siftDown(cache.expiryQueueIndex);
+        }
+    }
+
+    /**
+     * 最も早く失効するキャッシュを取り出す
+     */
+    BluetoothDeviceCache poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        BluetoothDeviceCache result = mHeap[0];
+        removeAt(0);
+        return result;
+    }
+
+    /**
+     * 指定したキャッシュをヒープから外す
+     */
+    void remove(BluetoothDeviceCache cache) {
+        if (cache.expiryQueueIndex != INDEX_NONE) {
+            removeAt(cache.expiryQueueIndex);
+        }
+    }
+
+    /**
+     * 全ての失効時刻が書き換えられた場合に並べ直す
+     */
+    void rebuild() {
+        for (int i = (mSize / 2) - 1; i >= 0; --i) {
+            siftDown(i);
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; ++i) {
+            mHeap[i].expiryQueueIndex = INDEX_NONE;
+            mHeap[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private void removeAt(int index) {
+        BluetoothDeviceCache removed = mHeap[index];
+        removed.expiryQueueIndex = INDEX_NONE;
+
+        final int last = --mSize;
+        if (index != last) {
+            BluetoothDeviceCache moved = mHeap[last];
+            mHeap[index] = moved;
+            moved.expiryQueueIndex = index;
+            siftUp(index);
+            siftDown(moved.expiryQueueIndex);
+        }
+        mHeap[last] = null;
+    }
+
+    private void siftUp(int index) {
+        BluetoothDeviceCache cache = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            BluetoothDeviceCache parentCache = mHeap[parent];
+            if (parentCache.expireTimeMs <= cache.expireTimeMs) {
+                break;
+            }
+            mHeap[index] = parentCache;
+            parentCache.expiryQueueIndex = index;
+            index = parent;
+        }
+        mHeap[index] = cache;
+        cache.expiryQueueIndex = index;
+    }
+
+    private void siftDown(int index) {
+        BluetoothDeviceCache cache = mHeap[index];
+        final int half = mSize >>> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            int right = child + 1;
+            if (right < mSize && mHeap[right].expireTimeMs < mHeap[child].expireTimeMs) {
+                child = right;
+            }
+            BluetoothDeviceCache childCache = mHeap[child];
+            if (cache.expireTimeMs <= childCache.expireTimeMs) {
+                break;
+            }
+            mHeap[index] = childCache;
+            childCache.expiryQueueIndex = index;
+            index = child;
+        }
+        mHeap[index] = cache;
+        cache.expiryQueueIndex = index;
+    }
+}
@@ -0,0 +1,124 @@
+package com.eaglesakura.android.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * 処理時間の分布
+ * <br>
+ * ナノ秒単位の処理時間を2のべき乗ごとの区間で数える。
+ * 区間の数は固定のため、記録時のアロケーションは発生しない。
+ * パーセンタイルは区間の上限値として概算される。
+ */
+public final class LatencyHistogram {
+    /**
+     * 区間の数
+     * 区間iは[2^(i-1), 2^i)ナノ秒を表す(区間0は0ナノ秒)
+     */
+    static final int BUCKET_COUNT = 64;
+
+    private final long[] mBuckets;
+
+    private long mCount;
+
+    private long mTotalNs;
+
+    private long mMaxNs;
+
+    LatencyHistogram() {
+        mBuckets = new long[BUCKET_COUNT];
+    }
+
+    LatencyHistogram(LatencyHistogram origin) {
+        mBuckets = origin.mBuckets.clone();
+        mCount = origin.mCount;
+        mTotalNs = origin.mTotalNs;
+        mMaxNs = origin.mMaxNs;
+    }
+
+    /**
+     * 処理時間を記録する
+     */
+    void record(long timeNs) {
+        if (timeNs < 0) {
+            timeNs = 0;
+        }
+        ++mBuckets[BUCKET_COUNT - Long.numberOfLeadingZeros(timeNs)];
+        ++mCount;
+        mTotalNs += timeNs;
+        if (timeNs > mMaxNs) {
+            mMaxNs = timeNs;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(mBuckets, 0);
+        mCount = 0;
+        mTotalNs = 0;
+        mMaxNs = 0;
+    }
+
+    /**
+     * 差分を取得する
+     * <br>
+     * 最大値は区間内の値を復元できないため、thisの値となる。
+     *
+     * @param previous 以前に取得した同じ計測の分布
+     */
+    LatencyHistogram delta(LatencyHistogram previous) {
+        LatencyHistogram result = new LatencyHistogram(this);
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            result.mBuckets[i] -= previous.mBuckets[i];
+        }
+        result.mCount -= previous.mCount;
+        result.mTotalNs -= previous.mTotalNs;
+        return result;
+    }
+
+    /**
+     * 記録数
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * 平均処理時間(ナノ秒)
+     */
+    public long getMeanNs() {
+        return mCount > 0 ? (mTotalNs / mCount) : 0;
+    }
+
+    /**
+     * 最大処理時間(ナノ秒)
+     */
+    public long getMaxNs() {
+        return mMaxNs;
+    }
+
+    /**
+     * 指定したパーセンタイルの処理時間(ナノ秒)を概算する
+     *
+     * @param percentile 0.0 〜 100.0
+     */
+    public long getPercentileNs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        final long threshold = Math.max((long) Math.ceil(mCount * percentile / 100.0), 1);
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            sum += mBuckets[i];
+            if (sum >= threshold) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count[%d] mean[%d ns] p50[%d ns] p99[%d ns] max[%d ns]",
+                mCount, getMeanNs(), getPercentileNs(50), getPercentileNs(99), mMaxNs);
+    }
+}
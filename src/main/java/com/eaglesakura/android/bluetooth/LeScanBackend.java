@@ -0,0 +1,25 @@
+package com.eaglesakura.android.bluetooth;
+
+import java.util.List;
+
+/**
+ * BLEスキャンの実装
+ * <br>
+ * API Levelに応じて実装を切り替える。スキャン結果はBluetoothDeviceScannerへ渡される。
+ */
+interface LeScanBackend {
+    /**
+     * スキャンを開始する
+     *
+     * @param filters       スキャン対象の条件。空の場合は全てのデバイスが対象となる。
+     * @param reportDelayMs 0より大きい場合、結果をまとめて受け取る間隔
+     * @param powerMode     スキャンの消費電力、nullの場合は結果をまとめて受け取るかどうかに応じて選択する
+     * @throws IllegalStateException Bluetoothが無効な場合
+     */
+    void start(List<BluetoothScanFilter> filters, long reportDelayMs, BluetoothDeviceScanner.ScanPowerMode powerMode);
+
+    /**
+     * スキャンを停止する
+     */
+    void stop();
+}
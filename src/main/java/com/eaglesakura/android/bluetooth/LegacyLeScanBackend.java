@@ -0,0 +1,40 @@
+package com.eaglesakura.android.bluetooth;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothAdapter.LeScanCallback;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.List;
+
+/**
+ * BluetoothAdapter.startLeScan()によるスキャン
+ * <br>
+ * API18〜20で使用する。フィルタは全てソフトウェアで処理される。
+ */
+@SuppressLint("NewApi")
+class LegacyLeScanBackend implements LeScanBackend, LeScanCallback {
+    private final BluetoothDeviceScanner mScanner;
+
+    private final BluetoothAdapter mAdapter;
+
+    LegacyLeScanBackend(BluetoothDeviceScanner scanner, BluetoothAdapter adapter) {
+        mScanner = scanner;
+        mAdapter = adapter;
+    }
+
+    @Override
+    public void start(List<BluetoothScanFilter> filters, long reportDelayMs, BluetoothDeviceScanner.ScanPowerMode powerMode) {
+        mAdapter.startLeScan(this);
+    }
+
+    @Override
+    public void stop() {
+        mAdapter.stopLeScan(this);
+    }
+
+    @Override
+    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        mScanner.onScanResult(device, rssi, scanRecord);
+    }
+}
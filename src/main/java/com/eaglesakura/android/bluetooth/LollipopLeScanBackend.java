@@ -0,0 +1,169 @@
+package com.eaglesakura.android.bluetooth;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BluetoothLeScannerによるスキャン
+ * <br>
+ * API21以降で使用する。フィルタはScanFilterへ変換してコントローラへオフロードし、
+ * 対応している端末では結果をまとめて受け取ることでアプリケーションプロセッサの起床回数を減らす。
+ */
+@TargetApi(21)
+class LollipopLeScanBackend extends ScanCallback implements LeScanBackend {
+    /**
+     * BluetoothLeScannerへのアクセス
+     * テスト時は差し替えられる
+     */
+    interface LeScanner {
+        void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback);
+
+        void stopScan(ScanCallback callback);
+
+        /**
+         * バッチスキャンに対応していればtrue
+         */
+        boolean isBatchingSupported();
+    }
+
+    private final BluetoothDeviceScanner mScanner;
+
+    private final LeScanner mLeScanner;
+
+    LollipopLeScanBackend(BluetoothDeviceScanner scanner, BluetoothAdapter adapter) {
+        this(scanner, new LeScanner() {
+            /**
+             * スキャン中のBluetoothLeScanner
+             * Bluetoothが無効な間は取得できないため、開始時に取得する
+             */
+            BluetoothLeScanner mImpl;
+
+            @Override
+            public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+                BluetoothLeScanner impl = adapter.getBluetoothLeScanner();
+                if (impl == null) {
+                    throw new IllegalStateException("Bluetooth disabled...");
+                }
+                impl.startScan(filters, settings, callback);
+                mImpl = impl;
+            }
+
+            @Override
+            public void stopScan(ScanCallback callback) {
+                if (mImpl != null) {
+                    mImpl.stopScan(callback);
+                    mImpl = null;
+                }
+            }
+
+            @Override
+            public boolean isBatchingSupported() {
+                return adapter.isOffloadedScanBatchingSupported();
+            }
+        });
+    }
+
+    LollipopLeScanBackend(BluetoothDeviceScanner scanner, LeScanner leScanner) {
+        mScanner = scanner;
+        mLeScanner = leScanner;
+    }
+
+    @Override
+    public void start(List<BluetoothScanFilter> filters, long reportDelayMs, BluetoothDeviceScanner.ScanPowerMode powerMode) {
+        final boolean batching = reportDelayMs > 0 && mLeScanner.isBatchingSupported();
+        if (powerMode == null) {
+            // まとめて受け取る場合は即応性を求めないため、消費電力を優先する
+            powerMode = batching ? BluetoothDeviceScanner.ScanPowerMode.LowPower : BluetoothDeviceScanner.ScanPowerMode.LowLatency;
+        }
+
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(toScanMode(powerMode));
+        if (batching) {
+            settings.setReportDelay(reportDelayMs);
+        }
+
+        mLeScanner.startScan(toScanFilters(filters), settings.build(), this);
+    }
+
+    static int toScanMode(BluetoothDeviceScanner.ScanPowerMode powerMode) {
+        switch (powerMode) {
+            case LowPower:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            case Balanced:
+                return ScanSettings.SCAN_MODE_BALANCED;
+            default:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        }
+    }
+
+    @Override
+    public void stop() {
+        mLeScanner.stopScan(this);
+    }
+
+    /**
+     * フィルタをコントローラへオフロード可能な形式に変換する
+     */
+    static List<ScanFilter> toScanFilters(List<BluetoothScanFilter> filters) {
+        if (filters == null || filters.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<ScanFilter> result = new ArrayList<>(filters.size());
+        for (BluetoothScanFilter filter : filters) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            if (filter.getDeviceAddress() != null) {
+                builder.setDeviceAddress(filter.getDeviceAddress());
+            }
+            if (filter.getServiceUuid() != null) {
+                builder.setServiceUuid(new ParcelUuid(filter.getServiceUuid()));
+            }
+            if (filter.getManufacturerId() != BluetoothScanFilter.MANUFACTURER_ID_NONE) {
+                // 空データの指定は、会社識別子のみの一致となる
+                builder.setManufacturerData(filter.getManufacturerId(), new byte[0]);
+            } else if (filter.getBeaconUuid() != null) {
+                // ビーコンの内容はソフトウェアで確認する
+                builder.setManufacturerData(ScanPacket.BEACON_MANUFACTURER_ID, new byte[0]);
+            }
+            result.add(builder.build());
+        }
+        return result;
+    }
+
+    private static byte[] getScanRecordBytes(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        return record != null ? record.getBytes() : null;
+    }
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+        mScanner.onScanResult(result.getDevice(), result.getRssi(), getScanRecordBytes(result));
+    }
+
+    @Override
+    public void onBatchScanResults(List<ScanResult> results) {
+        // 1回のロックでまとめてキャッシュへ反映する
+        mScanner.onScanResults(() -> {
+            for (ScanResult result : results) {
+                mScanner.ingestScanResult(result.getDevice(), result.getRssi(), getScanRecordBytes(result));
+            }
+        });
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+        BleLog.debug("scan failed :: %d", errorCode);
+        mScanner.onLeScanFailed(this, errorCode);
+    }
+}
@@ -0,0 +1,146 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * デバイスキャッシュを距離の近い順に保持する
+ * <br>
+ * (距離, 登録順)で整列した配列として保持し、位置の特定と挿入位置の探索は二分探索で行う。
+ * 要素の移動はSystem.arraycopyでまとめて行い、各キャッシュの位置を書き換えないため、
+ * 追加・更新・削除のいずれも探索O(log n)と1回の配列コピーで完了する。
+ * RSSIの推定値は受信ごとに少しずつしか変化しないため、更新時の移動量はほぼ一定となり、
+ * 近い順にk件を取得するコストはO(k)となる。
+ * <br>
+ * スレッドセーフではないため、呼び出し元でロックを行うこと。
+ */
+final class NearDeviceIndex {
+    /**
+     * インデックスに登録されていないことを示す登録順
+     */
+    static final long SEQUENCE_NONE = 0;
+
+    private BluetoothDeviceCache[] mCaches = new BluetoothDeviceCache[64];
+
+    private int mSize;
+
+    /**
+     * 次に登録するキャッシュの登録順
+     * 同じ距離のキャッシュを区別するために使用する
+     */
+    private long mNextSequence = SEQUENCE_NONE + 1;
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * キャッシュを登録する。登録済みであれば距離の変化を反映する。
+     * <br>
+     * 呼び出し前にBluetoothDeviceCache.nearDistanceMeterを更新しておく。
+     */
+    void update(BluetoothDeviceCache cache) {
+        final double distance = cache.nearDistanceMeter;
+        if (cache.nearSequence == SEQUENCE_NONE) {
+            if (mSize == mCaches.length) {
+                mCaches = Arrays.copyOf(mCaches, mSize * 2);
+            }
+            cache.nearSequence = mNextSequence++;
+            cache.nearSortedDistance = distance;
+
+            final int index = lowerBound(distance, cache.nearSequence);
+            System.arraycopy(mCaches, index, mCaches, index + 1, mSize - index);
+            mCaches[index] = cache;
+            ++mSize;
+            return;
+        }
+
+        if (Double.compare(distance, cache.nearSortedDistance) == 0) {
+            return;
+        }
+
+        // 自身が古い距離で並んだままの配列から移動先を探す
+        final int from = indexOf(cache);
+        int to = lowerBound(distance, cache.nearSequence);
+        cache.nearSortedDistance = distance;
+        if (to > from) {
+            // 遠ざかった場合は間の要素を前方へ詰める
+            // 移動先の探索では自身も手前の要素として数えているため、1つ前が移動先となる
+            --to;
+            System.arraycopy(mCaches, from + 1, mCaches, from, to - from);
+        } else if (to < from) {
+            // 近づいた場合は間の要素を後方へずらす
+            System.arraycopy(mCaches, to, mCaches, to + 1, from - to);
+        }
+        mCaches[to] = cache;
+    }
+
+    /**
+     * キャッシュを削除する
+     */
+    void remove(BluetoothDeviceCache cache) {
+        if (cache.nearSequence == SEQUENCE_NONE) {
+            return;
+        }
+        final int index = indexOf(cache);
+        System.arraycopy(mCaches, index + 1, mCaches, index, mSize - index - 1);
+        mCaches[--mSize] = null;
+        cache.nearSequence = SEQUENCE_NONE;
+    }
+
+    /**
+     * 登録済みのキャッシュの位置を取得する
+     */
+    private int indexOf(BluetoothDeviceCache cache) {
+        final int index = lowerBound(cache.nearSortedDistance, cache.nearSequence);
+        assert mCaches[index] == cache;
+        return index;
+    }
+
+    /**
+     * (distance, sequence)以上となる最初の要素の位置を二分探索する
+     */
+    private int lowerBound(double distance, long sequence) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(mCaches[mid], distance, sequence) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(BluetoothDeviceCache cache, double distance, long sequence) {
+        final int result = Double.compare(cache.nearSortedDistance, distance);
+        return (result != 0) ? result : Long.compare(cache.nearSequence, sequence);
+    }
+
+    /**
+     * 近い順にデバイスを取得する
+     *
+     * @param num 最大取得数
+     */
+    List<BluetoothDeviceCache> getNearest(int num) {
+        final int resultNum = Math.min(num, mSize);
+        List<BluetoothDeviceCache> result = new ArrayList<>(resultNum);
+        for (int i = 0; i < resultNum; ++i) {
+            result.add(mCaches[i]);
+        }
+        return result;
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; ++i) {
+            mCaches[i].nearSequence = SEQUENCE_NONE;
+            mCaches[i] = null;
+        }
+        mSize = 0;
+    }
+}
@@ -0,0 +1,103 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * 過去のRSSI値を固定長のリングバッファで保持する
+ * <br>
+ * 値と時刻はプリミティブ配列に格納し、合計値を逐次更新するため、
+ * 追加時のアロケーションは発生せず、平均値の取得はO(1)となる。
+ * <br>
+ * スレッドセーフではないため、呼び出し元で同期を行うこと。
+ */
+final class RssiHistory {
+    /**
+     * デフォルトの保持件数
+     */
+    static final int DEFAULT_CAPACITY = 64;
+
+    private final int[] mRssi;
+
+    private final long[] mTimeMs;
+
+    /**
+     * 最も古い値の位置
+     */
+    private int mHead;
+
+    private int mSize;
+
+    private long mRssiSum;
+
+    RssiHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    RssiHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mRssi = new int[capacity];
+        mTimeMs = new long[capacity];
+    }
+
+    /**
+     * RSSIを追加する
+     * <br>
+     * 有効時間を過ぎた古い値は同時に削除される。容量を超えた場合は最も古い値を上書きする。
+     *
+     * @param rssi     電波強度
+     * @param timeMs   検知時刻
+     * @param windowMs 値を保持する時間(ミリ秒)
+     */
+    void push(int rssi, long timeMs, long windowMs) {
+        // 有効なキャッシュ時間を超えたらclean
+        while (mSize > 0 && (timeMs - mTimeMs[mHead]) > windowMs) {
+            removeOldest();
+        }
+
+        if (mSize == mRssi.length) {
+            removeOldest();
+        }
+
+        int tail = mHead + mSize;
+        if (tail >= mRssi.length) {
+            tail -= mRssi.length;
+        }
+        mRssi[tail] = rssi;
+        mTimeMs[tail] = timeMs;
+        mRssiSum += rssi;
+        ++mSize;
+    }
+
+    private void removeOldest() {
+        mRssiSum -= mRssi[mHead];
+        if (++mHead == mRssi.length) {
+            mHead = 0;
+        }
+        --mSize;
+    }
+
+    /**
+     * 保持している値の件数
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * 保持している値の平均を取得する
+     *
+     * @param defValue 値が存在しない場合の戻り値
+     */
+    int getAverage(int defValue) {
+        if (mSize == 0) {
+            return defValue;
+        }
+        return (int) (mRssiSum / mSize);
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+        mRssiSum = 0;
+    }
+}
@@ -0,0 +1,328 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.EventOverflowPolicy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * スキャンイベントをリスナへ配送する
+ * <br>
+ * 受信スレッドはキューへイベントを追加するのみで、リスナ呼び出しは専用スレッドで行う。
+ * 非同期配送を無効化した場合、受信スレッドがロック外でキューを処理する。
+ */
+final class ScanEventDispatcher {
+    /**
+     * デバイスを新たに発見した
+     */
+    static final int EVENT_FOUND = 1;
+
+    /**
+     * デバイス情報が更新された
+     */
+    static final int EVENT_UPDATED = 2;
+
+    /**
+     * ペイロードが変化せず、RSSIのみ更新された
+     */
+    static final int EVENT_RSSI_UPDATED = 3;
+
+    /**
+     * デバイスが失効、または削除された
+     */
+    static final int EVENT_LOST = 4;
+
+    /**
+     * デフォルトのキュー長
+     */
+    static final int DEFAULT_QUEUE_CAPACITY = 1024 * 4;
+
+    private final BluetoothDeviceScanner mScanner;
+
+    private volatile ScanEventQueue mQueue = new ScanEventQueue(DEFAULT_QUEUE_CAPACITY, EventOverflowPolicy.DropOldest);
+
+    /**
+     * 専用スレッドで配送する場合true
+     */
+    private volatile boolean mAsync = true;
+
+    /**
+     * 同期配送時に、同時に1スレッドのみがキューを処理するためのカウンタ
+     */
+    private final AtomicInteger mDrainWip = new AtomicInteger();
+
+    /**
+     * 配送スレッド
+     */
+    private volatile Thread mThread;
+
+    /**
+     * 配送スレッドが稼働中であればtrue
+     */
+    private volatile boolean mRunning;
+
+    /**
+     * 配送スレッドが待機中であればtrue
+     */
+    private volatile boolean mParked;
+
+    /**
+     * 更新通知をまとめる間隔
+     * 0以下であればまとめない
+     */
+    private volatile long mCoalesceTimeMs;
+
+    /**
+     * 通知待ちの更新
+     * キューを処理するスレッドからのみ参照する
+     */
+    private final List<BluetoothDeviceCache> mPendingUpdates = new ArrayList<>();
+
+    /**
+     * 通知待ちの更新を送信する時刻
+     */
+    private long mPendingFlushTimeMs;
+
+    /**
+     * 通知待ちの更新のマスクを確認した判定器
+     */
+    private ScanListenerMatcher mPendingMatcher = ScanListenerMatcher.EMPTY;
+
+    ScanEventDispatcher(BluetoothDeviceScanner scanner) {
+        mScanner = scanner;
+    }
+
+    void setAsync(boolean async) {
+        mAsync = async;
+        if (!async) {
+            shutdown();
+        }
+    }
+
+    boolean isAsync() {
+        return mAsync;
+    }
+
+    void setCoalesceTimeMs(long coalesceTimeMs) {
+        mCoalesceTimeMs = coalesceTimeMs;
+    }
+
+    void setQueue(int capacity, EventOverflowPolicy overflowPolicy) {
+        mQueue = new ScanEventQueue(capacity, overflowPolicy);
+    }
+
+    ScanEventQueue getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * イベントを発行する
+     * <br>
+     * キャッシュのロック中に呼び出されるため、キューへの追加のみを行う。
+     * listenerMaskは現在の判定器の位置で指定する。
+     */
+    void publish(int type, BluetoothDeviceCache cache, long listenerMask) {
+        final ScanListenerMatcher matcher = (listenerMask != 0) ? mScanner.getListenerMatcher() : null;
+        if (!mQueue.offer(type, cache, listenerMask, matcher)) {
+            return;
+        }
+
+        if (mAsync) {
+            if (!mRunning) {
+                start();
+            } else if (mParked) {
+                LockSupport.unpark(mThread);
+            }
+        }
+    }
+
+    /**
+     * 同期配送時、溜まったイベントを呼び出し元スレッドで配送する
+     * <br>
+     * キャッシュのロック外から呼び出す。
+     */
+    void flush() {
+        if (mAsync) {
+            return;
+        }
+
+        if (mDrainWip.getAndIncrement() != 0) {
+            // 他のスレッドが処理中なので任せる
+            return;
+        }
+
+        int missed = 1;
+        do {
+            drain();
+            missed = mDrainWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        final ScanEventQueue queue = mQueue;
+        final boolean coalesce = mCoalesceTimeMs > 0;
+        ScanEventQueue.Node node;
+        while ((node = queue.poll()) != null) {
+            // 発行後に削除されたリスナや、同じ位置へ追加されたリスナへは通知しない
+            final ScanListenerMatcher matcher = mScanner.getListenerMatcher();
+            final long listenerMask = matcher.retainLive(node.listenerMask, node.matcher);
+            if (coalesce && (node.type == EVENT_UPDATED || node.type == EVENT_RSSI_UPDATED)) {
+                addPendingUpdate(node.type, node.cache, listenerMask, matcher);
+                continue;
+            }
+            if (node.type == EVENT_LOST && node.cache.coalescePending) {
+                // 失効したデバイスの更新は通知しない
+                mPendingUpdates.remove(node.cache);
+                node.cache.coalescePending = false;
+                node.cache.coalesceRssiOnly = false;
+                node.cache.coalesceListenerMask = 0;
+            }
+
+            try {
+                mScanner.dispatchEvent(node.type, node.cache, listenerMask, matcher);
+            } catch (Exception e) {
+                BleLog.debug("dispatch failed :: %s", e);
+            }
+        }
+
+        if (!mPendingUpdates.isEmpty() && (!coalesce || mScanner.uptimeMillis() >= mPendingFlushTimeMs)) {
+            flushPendingUpdates();
+        }
+    }
+
+    /**
+     * 更新を通知待ちに加える
+     * 同一デバイスの更新は1件にまとめ、1回でもペイロードが変化していれば通常の更新として通知する
+     */
+    private void addPendingUpdate(int type, BluetoothDeviceCache cache, long listenerMask, ScanListenerMatcher matcher) {
+        retainLivePendingUpdates(matcher);
+        if (cache.coalescePending) {
+            cache.coalesceListenerMask |= listenerMask;
+            if (type == EVENT_UPDATED) {
+                cache.coalesceRssiOnly = false;
+            }
+            return;
+        }
+
+        if (mPendingUpdates.isEmpty()) {
+            mPendingFlushTimeMs = mScanner.uptimeMillis() + mCoalesceTimeMs;
+        }
+        cache.coalescePending = true;
+        cache.coalesceRssiOnly = (type == EVENT_RSSI_UPDATED);
+        cache.coalesceListenerMask = listenerMask;
+        mPendingUpdates.add(cache);
+    }
+
+    /**
+     * 判定器が変化していれば、通知待ちの更新のマスクを現在の位置へ合わせる
+     */
+    private void retainLivePendingUpdates(ScanListenerMatcher matcher) {
+        if (matcher == mPendingMatcher) {
+            return;
+        }
+        for (BluetoothDeviceCache cache : mPendingUpdates) {
+            cache.coalesceListenerMask = matcher.retainLive(cache.coalesceListenerMask, mPendingMatcher);
+        }
+        mPendingMatcher = matcher;
+    }
+
+    private void flushPendingUpdates() {
+        final ScanListenerMatcher matcher = mScanner.getListenerMatcher();
+        retainLivePendingUpdates(matcher);
+
+        List<BluetoothDeviceCache> updated = new ArrayList<>();
+        List<BluetoothDeviceCache> rssiUpdated = new ArrayList<>();
+        for (BluetoothDeviceCache cache : mPendingUpdates) {
+            if (cache.coalesceRssiOnly) {
+                rssiUpdated.add(cache);
+            } else {
+                updated.add(cache);
+            }
+        }
+        mPendingUpdates.clear();
+
+        dispatchPendingUpdates(EVENT_UPDATED, updated, matcher);
+        dispatchPendingUpdates(EVENT_RSSI_UPDATED, rssiUpdated, matcher);
+    }
+
+    private void dispatchPendingUpdates(int type, List<BluetoothDeviceCache> caches, ScanListenerMatcher matcher) {
+        if (caches.isEmpty()) {
+            return;
+        }
+
+        long[] listenerMasks = new long[caches.size()];
+        for (int i = 0; i < listenerMasks.length; ++i) {
+            BluetoothDeviceCache cache = caches.get(i);
+            listenerMasks[i] = cache.coalesceListenerMask;
+            cache.coalescePending = false;
+            cache.coalesceRssiOnly = false;
+            cache.coalesceListenerMask = 0;
+        }
+
+        try {
+            mScanner.dispatchUpdatedEvents(type, caches, listenerMasks, matcher);
+        } catch (Exception e) {
+            BleLog.debug("dispatch failed :: %s", e);
+        }
+    }
+
+    private synchronized void start() {
+        mRunning = true;
+        if (mThread == null) {
+            mThread = new Thread(this::loop, "BleScanDispatcher");
+            mThread.setDaemon(true);
+            mThread.start();
+        } else {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * 配送スレッドを停止する
+     * <br>
+     * 溜まっているイベントは配送してから停止する。
+     */
+    synchronized void shutdown() {
+        mRunning = false;
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            drain();
+
+            if (!mRunning && !mPendingUpdates.isEmpty()) {
+                // 停止前にまとめた更新を送信する
+                flushPendingUpdates();
+            }
+
+            synchronized (this) {
+                if (!mRunning && mQueue.isEmpty()) {
+                    mThread = null;
+                    return;
+                }
+            }
+
+            mParked = true;
+            if (mRunning && mQueue.isEmpty()) {
+                if (mPendingUpdates.isEmpty()) {
+                    LockSupport.park(this);
+                } else {
+                    // まとめた更新の送信時刻まで待機する
+                    // 仮想の時刻で動作している場合も、受信ごとに起こされて送信時刻を確認する
+                    long waitMs = mPendingFlushTimeMs - mScanner.uptimeMillis();
+                    if (waitMs > 0) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMs));
+                    }
+                }
+            }
+            mParked = false;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.EventOverflowPolicy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * スキャンイベントを受け渡すロックフリーのキュー
+ * <br>
+ * 複数スレッドからの追加と、単一スレッドからの取り出しに対応する(MPSC)。
+ * 追加はアトミック操作のみで完了し、取り出し側の処理時間の影響を受けない。
+ */
+final class ScanEventQueue {
+    static final class Node {
+        int type;
+
+        BluetoothDeviceCache cache;
+
+        /**
+         * 通知先となる追加のリスナ
+         */
+        long listenerMask;
+
+        /**
+         * listenerMaskを判定した判定器
+         */
+        ScanListenerMatcher matcher;
+
+        volatile Node next;
+
+        Node(int type, BluetoothDeviceCache cache, long listenerMask, ScanListenerMatcher matcher) {
+            this.type = type;
+            this.cache = cache;
+            this.listenerMask = listenerMask;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * 取り出し側が参照する先頭(ダミー)ノード
+     */
+    private Node mHead;
+
+    /**
+     * 追加側が参照する末尾ノード
+     */
+    private final AtomicReference<Node> mTail;
+
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private volatile int mMaxSize;
+
+    private final int mCapacity;
+
+    private final EventOverflowPolicy mEventOverflowPolicy;
+
+    ScanEventQueue(int capacity, EventOverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mCapacity = capacity;
+        mEventOverflowPolicy = overflowPolicy;
+
+        Node stub = new Node(0, null, 0, null);
+        mHead = stub;
+        mTail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * イベントを追加する
+     * 任意のスレッドから呼び出せる。
+     *
+     * @return 破棄された場合false
+     */
+    boolean offer(int type, BluetoothDeviceCache cache) {
+        return offer(type, cache, 0, null);
+    }
+
+    /**
+     * イベントを追加する
+     * 任意のスレッドから呼び出せる。
+     *
+     * @param listenerMask 通知先となる追加のリスナ
+     * @param matcher      listenerMaskを判定した判定器
+     * @return 破棄された場合false
+     */
+    boolean offer(int type, BluetoothDeviceCache cache, long listenerMask, ScanListenerMatcher matcher) {
+        final int limit = (mEventOverflowPolicy == EventOverflowPolicy.DropNewest) ? mCapacity : (mCapacity * 2);
+        final int size = mSize.incrementAndGet();
+        if (size > limit) {
+            mSize.decrementAndGet();
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        if (size > mMaxSize) {
+            mMaxSize = size;
+        }
+
+        Node node = new Node(type, cache, listenerMask, matcher);
+        Node prev = mTail.getAndSet(node);
+        prev.next = node;
+        return true;
+    }
+
+    /**
+     * 先頭のイベントを取り出す
+     * 取り出し側のスレッドからのみ呼び出せる。
+     * <br>
+     * 戻り値のノードは次回のpoll()呼び出しまで有効となる。
+     *
+     * @return イベント、キューが空であればnull
+     */
+    Node poll() {
+        // DropOldestの場合、容量を超えた分を先に破棄する
+        if (mEventOverflowPolicy == EventOverflowPolicy.DropOldest) {
+            while (mSize.get() > mCapacity && pollNode() != null) {
+                mDroppedCount.incrementAndGet();
+            }
+        }
+        return pollNode();
+    }
+
+    private Node pollNode() {
+        Node next = mHead.next;
+        if (next == null) {
+            // 空か、追加途中のノードが連結されていない
+            return null;
+        }
+
+        // 取り出したノードをそのまま新たなダミーとする
+        mHead.cache = null;
+        mHead.matcher = null;
+        mHead = next;
+        mSize.decrementAndGet();
+        return next;
+    }
+
+    /**
+     * キューが空であればtrue
+     */
+    boolean isEmpty() {
+        return mHead.next == null;
+    }
+
+    /**
+     * 現在のキュー長
+     */
+    int size() {
+        return mSize.get();
+    }
+
+    /**
+     * 過去最大のキュー長(概算)
+     */
+    int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * 溢れて破棄されたイベント数
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
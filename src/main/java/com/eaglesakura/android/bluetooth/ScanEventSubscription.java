@@ -0,0 +1,308 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.DeviceScanListener;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * スキャン結果のストリームの購読
+ * <br>
+ * スキャナの追加のリスナとして登録され、配送スレッドから受け取ったイベントをバッファリングする。
+ * 購読者へは要求された件数のみを、request()の呼び出し元または配送スレッドから通知する。
+ * Blockの場合は購読ごとのスレッドがバッファへ移し、バッファが埋まっている間はそのスレッドのみが待機する。
+ */
+final class ScanEventSubscription implements BluetoothScanSubscription, DeviceScanListener {
+    private final BluetoothDeviceScanner mScanner;
+
+    private final BluetoothScanSubscriber mSubscriber;
+
+    private final BluetoothScanBackpressure mBackpressure;
+
+    private final int mBufferSize;
+
+    /**
+     * 到着順のイベント
+     * LatestPerAddress以外で使用する
+     */
+    private final ArrayDeque<BluetoothScanEvent> mQueue = new ArrayDeque<>();
+
+    /**
+     * デバイスごとの最新のイベント
+     * LatestPerAddressで使用する
+     */
+    private final LinkedHashMap<String, BluetoothScanEvent> mLatestEvents = new LinkedHashMap<>();
+
+    /**
+     * バッファへ移す前のイベント
+     * Blockで使用する
+     */
+    private final BlockingQueue<BluetoothScanEvent> mInbox;
+
+    /**
+     * バッファが空くまで待機してイベントを移すスレッド
+     * Blockで使用する
+     */
+    private final Thread mThread;
+
+    /**
+     * 未処理の要求数
+     */
+    private final AtomicLong mRequested = new AtomicLong();
+
+    private final AtomicInteger mDrainWip = new AtomicInteger();
+
+    private volatile boolean mCancelled;
+
+    private volatile long mDroppedCount;
+
+    ScanEventSubscription(BluetoothDeviceScanner scanner, BluetoothScanSubscriber subscriber, BluetoothScanBackpressure backpressure, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize <= 0");
+        }
+        mScanner = scanner;
+        mSubscriber = subscriber;
+        mBackpressure = backpressure;
+        mBufferSize = bufferSize;
+
+        if (backpressure == BluetoothScanBackpressure.Block) {
+            mInbox = new LinkedBlockingQueue<>();
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    transferLoop();
+                }
+            }, "BleScanSubscription");
+            mThread.setDaemon(true);
+            mThread.start();
+        } else {
+            mInbox = null;
+            mThread = null;
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n <= 0");
+        }
+
+        long current;
+        long next;
+        do {
+            current = mRequested.get();
+            if (current == Long.MAX_VALUE) {
+                return;
+            }
+            next = current + n;
+            if (next < 0) {
+                next = Long.MAX_VALUE;
+            }
+        } while (!mRequested.compareAndSet(current, next));
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        mScanner.removeScanListener(this);
+        synchronized (this) {
+            mQueue.clear();
+            mLatestEvents.clear();
+            notifyAll();
+        }
+        if (mThread != null) {
+            mThread.interrupt();
+            mInbox.clear();
+        }
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 通知待ちのイベント数
+     */
+    synchronized int getBufferedCount() {
+        return (mBackpressure == BluetoothScanBackpressure.LatestPerAddress) ? mLatestEvents.size() : mQueue.size();
+    }
+
+    @Override
+    public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        offer(BluetoothScanEvent.Type.Found, device);
+    }
+
+    @Override
+    public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        offer(BluetoothScanEvent.Type.Updated, device);
+    }
+
+    @Override
+    public void onDeviceRssiUpdated(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        offer(BluetoothScanEvent.Type.Updated, device);
+    }
+
+    @Override
+    public void onDeviceLost(BluetoothDeviceScanner self, BluetoothDeviceCache device) {
+        offer(BluetoothScanEvent.Type.Lost, device);
+    }
+
+    @Override
+    public void onScanTimeout(BluetoothDeviceScanner self) {
+    }
+
+    /**
+     * 配送スレッドからイベントを受け取る
+     */
+    private void offer(BluetoothScanEvent.Type type, BluetoothDeviceCache device) {
+        if (mCancelled) {
+            return;
+        }
+
+        final BluetoothScanEvent event = new BluetoothScanEvent(type, mScanner.newDeviceSnapshot(device));
+        if (mInbox != null) {
+            // 配送スレッドは待機させず、購読ごとのスレッドへ渡す
+            mInbox.offer(event);
+            return;
+        }
+
+        synchronized (this) {
+            if (mBackpressure == BluetoothScanBackpressure.LatestPerAddress) {
+                offerLatest(event);
+            } else if (mBackpressure == BluetoothScanBackpressure.DropOldest) {
+                if (mQueue.size() >= mBufferSize) {
+                    mQueue.poll();
+                    ++mDroppedCount;
+                }
+                mQueue.offer(event);
+            } else if (mQueue.size() >= mBufferSize) {
+                ++mDroppedCount;
+            } else {
+                mQueue.offer(event);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * 購読ごとのスレッドの処理
+     * <br>
+     * バッファが空くまで待機し、受け取った順にバッファへ移す。
+     */
+    private void transferLoop() {
+        try {
+            while (!mCancelled) {
+                final BluetoothScanEvent event = mInbox.take();
+                synchronized (this) {
+                    while (mQueue.size() >= mBufferSize && !mCancelled) {
+                        wait();
+                    }
+                    if (mCancelled) {
+                        return;
+                    }
+                    mQueue.offer(event);
+                }
+                drain();
+            }
+        } catch (InterruptedException e) {
+            BleLog.debug("subscription interrupted");
+        }
+    }
+
+    /**
+     * 通知待ちのイベントと状態をまとめる
+     */
+    private void offerLatest(BluetoothScanEvent event) {
+        final BluetoothScanEvent pending = mLatestEvents.get(event.device.address);
+        if (pending == null) {
+            if (mLatestEvents.size() >= mBufferSize) {
+                Iterator<Map.Entry<String, BluetoothScanEvent>> iterator = mLatestEvents.entrySet().iterator();
+                iterator.next();
+                iterator.remove();
+                ++mDroppedCount;
+            }
+            mLatestEvents.put(event.device.address, event);
+            return;
+        }
+
+        BluetoothScanEvent.Type type = event.type;
+        if (type == BluetoothScanEvent.Type.Lost) {
+            if (pending.type == BluetoothScanEvent.Type.Found) {
+                // 発見を通知する前に失効した
+                mLatestEvents.remove(event.device.address);
+                return;
+            }
+        } else if (pending.type == BluetoothScanEvent.Type.Found) {
+            type = BluetoothScanEvent.Type.Found;
+        } else if (pending.type == BluetoothScanEvent.Type.Lost) {
+            // 失効を通知する前に再び受信したため、購読者からは更新に見える
+            type = BluetoothScanEvent.Type.Updated;
+        }
+        mLatestEvents.put(event.device.address, (type == event.type) ? event : new BluetoothScanEvent(type, event.device));
+    }
+
+    private synchronized BluetoothScanEvent poll() {
+        BluetoothScanEvent event;
+        if (mBackpressure == BluetoothScanBackpressure.LatestPerAddress) {
+            Iterator<BluetoothScanEvent> iterator = mLatestEvents.values().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            event = iterator.next();
+            iterator.remove();
+        } else {
+            event = mQueue.poll();
+            if (event != null && mBackpressure == BluetoothScanBackpressure.Block) {
+                notifyAll();
+            }
+        }
+        return event;
+    }
+
+    /**
+     * 要求された件数までイベントを通知する
+     * <br>
+     * 同時に1スレッドのみが通知を行い、他のスレッドからの呼び出しは処理中のスレッドへ任せる。
+     */
+    private void drain() {
+        if (mDrainWip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            final long requested = mRequested.get();
+            long emitted = 0;
+            while (emitted != requested && !mCancelled) {
+                final BluetoothScanEvent event = poll();
+                if (event == null) {
+                    break;
+                }
+
+                try {
+                    mSubscriber.onNext(event);
+                } catch (Exception e) {
+                    BleLog.debug("onNext failed :: %s", e);
+                }
+                ++emitted;
+            }
+
+            if (emitted != 0 && requested != Long.MAX_VALUE) {
+                mRequested.addAndGet(-emitted);
+            }
+            missed = mDrainWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,351 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.DeviceScanListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 追加のリスナごとのフィルタをまとめて判定する
+ * <br>
+ * 各フィルタはアドレス、ビーコンUUID、Service UUID、会社識別子のうち最も絞り込める条件をキーとして索引され、
+ * 受信ごとにアドバタイズに含まれる値から候補となるフィルタのみを取り出して判定する。
+ * 判定結果は、通知先のリスナの位置をビットで表したマスクとなる。
+ * <br>
+ * 生成後は変更されず、リスナの追加・削除時は新たに生成し直す。
+ */
+final class ScanListenerMatcher {
+    /**
+     * 登録できるリスナの最大数
+     */
+    static final int MAX_LISTENERS = 64;
+
+    static final ScanListenerMatcher EMPTY = new ScanListenerMatcher(new DeviceScanListener[0], new BluetoothScanFilter[0][], new int[0]);
+
+    /**
+     * 位置ごとのリスナ、空き位置はnull
+     * 削除されたリスナの位置は詰めずに維持し、他のリスナの位置が変わらないようにする。
+     * 空き位置は新たなリスナへ再利用されるため、配送待ちのイベントはgenerationsで割り当ての変化を確認する。
+     */
+    final DeviceScanListener[] listeners;
+
+    /**
+     * 位置ごとの世代
+     * 位置へ新たなリスナを割り当てるたびに増加する。
+     */
+    final int[] generations;
+
+    /**
+     * 位置ごとのフィルタ
+     */
+    final BluetoothScanFilter[][] listenerFilters;
+
+    /**
+     * フィルタを持たないリスナのマスク
+     */
+    private final long mUnfilteredMask;
+
+    private final BluetoothScanFilter[] mFilters;
+
+    /**
+     * フィルタごとの、通知先リスナのビット
+     */
+    private final long[] mFilterMasks;
+
+    private final Map<String, int[]> mAddressIndex = new HashMap<>();
+
+    private final LongIndex mBeaconUuidIndex = new LongIndex();
+
+    private final LongIndex mServiceUuidIndex = new LongIndex();
+
+    private final LongIndex mManufacturerIdIndex = new LongIndex();
+
+    /**
+     * キーを持たず、常に判定するフィルタ
+     */
+    private final int[] mUnindexedFilters;
+
+    private ScanListenerMatcher(DeviceScanListener[] listeners, BluetoothScanFilter[][] listenerFilters, int[] generations) {
+        this.listeners = listeners;
+        this.listenerFilters = listenerFilters;
+        this.generations = generations;
+
+        List<BluetoothScanFilter> filters = new ArrayList<>();
+        List<Long> filterMasks = new ArrayList<>();
+        long unfilteredMask = 0;
+        for (int slot = 0; slot < listeners.length; ++slot) {
+            if (listeners[slot] == null) {
+                continue;
+            }
+            if (listenerFilters[slot].length == 0) {
+                unfilteredMask |= (1L << slot);
+            }
+            for (BluetoothScanFilter filter : listenerFilters[slot]) {
+                filters.add(filter);
+                filterMasks.add(1L << slot);
+            }
+        }
+        mUnfilteredMask = unfilteredMask;
+        mFilters = filters.toArray(new BluetoothScanFilter[filters.size()]);
+        mFilterMasks = new long[mFilters.length];
+
+        Map<String, List<Integer>> addressIndex = new HashMap<>();
+        List<Integer> unindexed = new ArrayList<>();
+        for (int i = 0; i < mFilters.length; ++i) {
+            mFilterMasks[i] = filterMasks.get(i);
+
+            final BluetoothScanFilter filter = mFilters[i];
+            if (filter.deviceAddress != null) {
+                addIndex(addressIndex, filter.deviceAddress, i);
+            } else if (filter.deviceAddresses != null) {
+                for (String address : filter.deviceAddresses) {
+                    addIndex(addressIndex, address, i);
+                }
+            } else if (filter.beaconUuid != null) {
+                mBeaconUuidIndex.add(hashUuid(filter.beaconUuid.getMostSignificantBits(), filter.beaconUuid.getLeastSignificantBits()), i);
+            } else if (filter.serviceUuid != null) {
+                mServiceUuidIndex.add(hashUuid(filter.serviceUuid.getMostSignificantBits(), filter.serviceUuid.getLeastSignificantBits()), i);
+            } else if (filter.manufacturerId != BluetoothScanFilter.MANUFACTURER_ID_NONE) {
+                mManufacturerIdIndex.add(filter.manufacturerId, i);
+            } else {
+                unindexed.add(i);
+            }
+        }
+
+        for (Map.Entry<String, List<Integer>> entry : addressIndex.entrySet()) {
+            mAddressIndex.put(entry.getKey(), toIntArray(entry.getValue()));
+        }
+        mUnindexedFilters = toIntArray(unindexed);
+    }
+
+    /**
+     * リスナを追加した判定器を生成する
+     * 登録済みのリスナであればフィルタを置き換える
+     */
+    ScanListenerMatcher with(DeviceScanListener listener, BluetoothScanFilter[] filters) {
+        int slot = indexOf(listener);
+        if (slot < 0) {
+            slot = indexOf(null);
+        }
+        if (slot < 0) {
+            slot = listeners.length;
+            if (slot >= MAX_LISTENERS) {
+                throw new IllegalStateException("listeners > " + MAX_LISTENERS);
+            }
+        }
+
+        final int length = Math.max(listeners.length, slot + 1);
+        DeviceScanListener[] newListeners = Arrays.copyOf(listeners, length);
+        BluetoothScanFilter[][] newFilters = Arrays.copyOf(listenerFilters, length);
+        int[] newGenerations = Arrays.copyOf(generations, length);
+        if (newListeners[slot] != listener) {
+            ++newGenerations[slot];
+        }
+        newListeners[slot] = listener;
+        newFilters[slot] = filters.clone();
+        return new ScanListenerMatcher(newListeners, newFilters, newGenerations);
+    }
+
+    /**
+     * リスナを削除した判定器を生成する
+     */
+    ScanListenerMatcher without(DeviceScanListener listener) {
+        final int slot = indexOf(listener);
+        if (slot < 0) {
+            return this;
+        }
+
+        DeviceScanListener[] newListeners = listeners.clone();
+        BluetoothScanFilter[][] newFilters = listenerFilters.clone();
+        newListeners[slot] = null;
+        newFilters[slot] = null;
+        return new ScanListenerMatcher(newListeners, newFilters, generations);
+    }
+
+    /**
+     * 別の判定器で作成したマスクから、その後に削除・再割り当てされた位置を取り除く
+     *
+     * @param mask   originで判定したマスク
+     * @param origin maskを判定した判定器
+     * @return 現在も同じリスナが割り当てられている位置のみのマスク
+     */
+    long retainLive(long mask, ScanListenerMatcher origin) {
+        if (origin == this || mask == 0) {
+            return mask;
+        }
+
+        long result = 0;
+        long bits = mask;
+        while (bits != 0) {
+            final int slot = Long.numberOfTrailingZeros(bits);
+            bits &= (bits - 1);
+            if (slot < listeners.length && listeners[slot] != null
+                    && slot < origin.generations.length && generations[slot] == origin.generations[slot]) {
+                result |= (1L << slot);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * リスナの位置を取得する
+     *
+     * @return 位置、登録されていない場合は-1
+     */
+    int indexOf(DeviceScanListener listener) {
+        for (int i = 0; i < listeners.length; ++i) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * リスナが登録されていなければtrue
+     */
+    boolean isEmpty() {
+        for (DeviceScanListener listener : listeners) {
+            if (listener != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * アドバタイズの解析が必要であればtrue
+     */
+    boolean hasFilters() {
+        return mFilters.length > 0;
+    }
+
+    /**
+     * 通知先のリスナを判定する
+     *
+     * @return 通知先の位置を表すマスク
+     */
+    long match(ScanPacket packet) {
+        long mask = mUnfilteredMask;
+        if (mFilters.length == 0) {
+            return mask;
+        }
+
+        if (packet.address != null) {
+            mask = matchFilters(mAddressIndex.get(packet.address), packet, mask);
+        }
+        if (packet.beacon) {
+            mask = matchFilters(mBeaconUuidIndex.get(hashUuid(packet.beaconUuidMsb, packet.beaconUuidLsb)), packet, mask);
+        }
+        for (int i = 0; i < packet.serviceUuidCount; ++i) {
+            mask = matchFilters(mServiceUuidIndex.get(hashUuid(packet.serviceUuidMsb[i], packet.serviceUuidLsb[i])), packet, mask);
+        }
+        for (int i = 0; i < packet.manufacturerIdCount; ++i) {
+            mask = matchFilters(mManufacturerIdIndex.get(packet.manufacturerIds[i]), packet, mask);
+        }
+        return matchFilters(mUnindexedFilters, packet, mask);
+    }
+
+    private long matchFilters(int[] candidates, ScanPacket packet, long mask) {
+        if (candidates == null) {
+            return mask;
+        }
+        for (int index : candidates) {
+            final long filterMask = mFilterMasks[index];
+            // 通知先に決まっているリスナのフィルタは判定しない
+            if ((mask & filterMask) == 0 && mFilters[index].matches(packet)) {
+                mask |= filterMask;
+            }
+        }
+        return mask;
+    }
+
+    private static long hashUuid(long msb, long lsb) {
+        return msb * 31 + lsb;
+    }
+
+    private static void addIndex(Map<String, List<Integer>> index, String key, int value) {
+        List<Integer> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<>();
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static int[] toIntArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * long値をキーとしたフィルタ位置の索引
+     * <br>
+     * オープンアドレス法で格納し、検索時にボクシングを行わない。
+     * キーの衝突は判定時にフィルタを評価するため問題とならない。
+     */
+    static final class LongIndex {
+        private long[] mKeys = new long[0];
+
+        private int[][] mValues = new int[0][];
+
+        private int mSize;
+
+        void add(long key, int value) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                grow();
+            }
+
+            final int slot = findSlot(mKeys, mValues, key);
+            if (mValues[slot] == null) {
+                mKeys[slot] = key;
+                mValues[slot] = new int[]{value};
+                ++mSize;
+            } else {
+                int[] values = Arrays.copyOf(mValues[slot], mValues[slot].length + 1);
+                values[values.length - 1] = value;
+                mValues[slot] = values;
+            }
+        }
+
+        /**
+         * @return フィルタ位置、存在しなければnull
+         */
+        int[] get(long key) {
+            if (mSize == 0) {
+                return null;
+            }
+            return mValues[findSlot(mKeys, mValues, key)];
+        }
+
+        private void grow() {
+            final long[] oldKeys = mKeys;
+            final int[][] oldValues = mValues;
+            final int capacity = Math.max(oldKeys.length * 2, 8);
+            mKeys = new long[capacity];
+            mValues = new int[capacity][];
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldValues[i] != null) {
+                    final int slot = findSlot(mKeys, mValues, oldKeys[i]);
+                    mKeys[slot] = oldKeys[i];
+                    mValues[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int findSlot(long[] keys, int[][] values, long key) {
+            final int mask = keys.length - 1;
+            int slot = (((int) (key ^ (key >>> 32)) * 0x9E3779B9) >>> 1) & mask;
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.eaglesakura.android.bluetooth;
+
+/**
+ * スキャナの負荷状況を記録する
+ * <br>
+ * 受信側の件数はスキャナのcacheLockを保持した状態で更新するため、アトミック操作を必要としない。
+ * リスナの処理時間は配送スレッドから記録されるため、分布ごとに同期する。
+ */
+final class ScanMetricsRecorder {
+    /**
+     * キャッシュ1件あたりの固定的なメモリ使用量の概算(byte)
+     * <br>
+     * オブジェクトヘッダ、参照、RSSI履歴のリングバッファを含む。
+     */
+    static final int CACHE_ENTRY_BYTES = 256 + RssiHistory.DEFAULT_CAPACITY * (4 + 8);
+
+    private long mStartTimeMs;
+
+    private long mStartUptimeMs;
+
+    long advertisementCount;
+
+    long filteredCount;
+
+    long foundCount;
+
+    long updatedCount;
+
+    long evictedCount;
+
+    long capacityEvictedCount;
+
+    /**
+     * cacheLockにより保護される
+     */
+    private final LatencyHistogram mIngestLatency = new LatencyHistogram();
+
+    /**
+     * @param clock 計測開始時刻の取得元となるスキャナの時計
+     */
+    ScanMetricsRecorder(BluetoothClock clock) {
+        mStartTimeMs = clock.currentTimeMillis();
+        mStartUptimeMs = clock.nanoTime() / BluetoothDeviceScanner.NANOS_PER_MILLI;
+    }
+
+    /**
+     * mDispatchLatency自身により保護される
+     */
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+
+    /**
+     * cacheLockを保持した状態で呼び出す
+     */
+    void recordIngest(long timeNs) {
+        mIngestLatency.record(timeNs);
+    }
+
+    void recordDispatch(long timeNs) {
+        synchronized (mDispatchLatency) {
+            mDispatchLatency.record(timeNs);
+        }
+    }
+
+    /**
+     * スナップショットを作成する
+     * <br>
+     * cacheLockを保持した状態で呼び出す。
+     *
+     * @param clock 集計終了時刻の取得元となるスキャナの時計
+     */
+    BluetoothScanMetrics snapshot(BluetoothClock clock, int cacheSize, long retainedBytes) {
+        LatencyHistogram dispatchLatency;
+        synchronized (mDispatchLatency) {
+            dispatchLatency = new LatencyHistogram(mDispatchLatency);
+        }
+        return new BluetoothScanMetrics(
+                mStartTimeMs, clock.currentTimeMillis(),
+                mStartUptimeMs, clock.nanoTime() / BluetoothDeviceScanner.NANOS_PER_MILLI,
+                advertisementCount, filteredCount, foundCount, updatedCount, evictedCount, capacityEvictedCount,
+                cacheSize, retainedBytes,
+                new LatencyHistogram(mIngestLatency), dispatchLatency
+        );
+    }
+
+    /**
+     * cacheLockを保持した状態で呼び出す
+     *
+     * @param clock 計測開始時刻の取得元となるスキャナの時計
+     */
+    void reset(BluetoothClock clock) {
+        mStartTimeMs = clock.currentTimeMillis();
+        mStartUptimeMs = clock.nanoTime() / BluetoothDeviceScanner.NANOS_PER_MILLI;
+        advertisementCount = 0;
+        filteredCount = 0;
+        foundCount = 0;
+        updatedCount = 0;
+        evictedCount = 0;
+        capacityEvictedCount = 0;
+        mIngestLatency.clear();
+        synchronized (mDispatchLatency) {
+            mDispatchLatency.clear();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.eaglesakura.android.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * フィルタ判定のために1回だけ解析したアドバタイズの内容
+ * <br>
+ * 配列は必要に応じて拡張した後は再利用されるため、解析時のアロケーションは発生しない。
+ * スレッドセーフではないため、スキャナのcacheLockを保持した状態で使用する。
+ */
+final class ScanPacket {
+    /**
+     * iBeaconの会社識別子
+     */
+    static final int BEACON_MANUFACTURER_ID = 0x004C;
+
+    String address;
+
+    int rssi;
+
+    byte[] scanRecord;
+
+    int[] manufacturerIds = new int[2];
+
+    int manufacturerIdCount;
+
+    long[] serviceUuidMsb = new long[4];
+
+    long[] serviceUuidLsb = new long[4];
+
+    int serviceUuidCount;
+
+    /**
+     * iBeaconのアドバタイズであればtrue
+     */
+    boolean beacon;
+
+    long beaconUuidMsb;
+
+    long beaconUuidLsb;
+
+    int beaconMajor;
+
+    int beaconMinor;
+
+    private final AdvertisingDataCursor mCursor = new AdvertisingDataCursor();
+
+    /**
+     * アドバタイズを解析する
+     */
+    ScanPacket parse(String address, int rssi, byte[] scanRecord) {
+        this.address = address;
+        this.rssi = rssi;
+        this.scanRecord = scanRecord;
+        manufacturerIdCount = 0;
+        serviceUuidCount = 0;
+        beacon = false;
+
+        final AdvertisingDataCursor cursor = mCursor.reset(scanRecord);
+        while (cursor.next()) {
+            if (cursor.getType() == AdvertisingDataCursor.AD_TYPE_MANUFACTURER_DATA) {
+                final int manufacturerId = cursor.getManufacturerId();
+                if (manufacturerId < 0) {
+                    continue;
+                }
+                if (manufacturerIdCount == manufacturerIds.length) {
+                    manufacturerIds = Arrays.copyOf(manufacturerIds, manufacturerIdCount * 2);
+                }
+                manufacturerIds[manufacturerIdCount++] = manufacturerId;
+
+                if (manufacturerId == BEACON_MANUFACTURER_ID) {
+                    parseBeacon(cursor);
+                }
+            } else {
+                final int count = cursor.getServiceUuidCount();
+                for (int i = 0; i < count; ++i) {
+                    if (serviceUuidCount == serviceUuidMsb.length) {
+                        serviceUuidMsb = Arrays.copyOf(serviceUuidMsb, serviceUuidCount * 2);
+                        serviceUuidLsb = Arrays.copyOf(serviceUuidLsb, serviceUuidCount * 2);
+                    }
+                    serviceUuidMsb[serviceUuidCount] = cursor.getServiceUuidMsb(i);
+                    serviceUuidLsb[serviceUuidCount] = cursor.getServiceUuidLsb(i);
+                    ++serviceUuidCount;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * iBeaconのペイロードを解析する
+     * <br>
+     * 会社識別子に続き、0x02 0x15 UUID(16) Major(2) Minor(2) TxPower(1)がビッグエンディアンで並ぶ。
+     */
+    private void parseBeacon(AdvertisingDataCursor cursor) {
+        if (cursor.getDataLength() < 2 + 2 + 16 + 2 + 2 || cursor.getUint8(2) != 0x02 || cursor.getUint8(3) != 0x15) {
+            return;
+        }
+
+        final byte[] record = cursor.getRecord();
+        final int offset = cursor.getDataOffset() + 4;
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 8; ++i) {
+            msb = (msb << 8) | (record[offset + i] & 0xFF);
+            lsb = (lsb << 8) | (record[offset + 8 + i] & 0xFF);
+        }
+        beacon = true;
+        beaconUuidMsb = msb;
+        beaconUuidLsb = lsb;
+        beaconMajor = ((record[offset + 16] & 0xFF) << 8) | (record[offset + 17] & 0xFF);
+        beaconMinor = ((record[offset + 18] & 0xFF) << 8) | (record[offset + 19] & 0xFF);
+    }
+
+    boolean containsManufacturerId(int manufacturerId) {
+        for (int i = 0; i < manufacturerIdCount; ++i) {
+            if (manufacturerIds[i] == manufacturerId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean containsServiceUuid(long msb, long lsb) {
+        for (int i = 0; i < serviceUuidCount; ++i) {
+            if (serviceUuidMsb[i] == msb && serviceUuidLsb[i] == lsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
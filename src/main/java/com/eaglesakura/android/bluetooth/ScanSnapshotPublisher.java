@@ -0,0 +1,340 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+import com.eaglesakura.android.bluetooth.BluetoothScanSnapshot.ChangeLog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.eaglesakura.android.bluetooth.BluetoothScanSnapshot.CHUNK_BITS;
+import static com.eaglesakura.android.bluetooth.BluetoothScanSnapshot.CHUNK_MASK;
+import static com.eaglesakura.android.bluetooth.BluetoothScanSnapshot.CHUNK_SIZE;
+import static com.eaglesakura.android.bluetooth.BluetoothScanSnapshot.INDEX_REMOVED;
+
+/**
+ * デバイスキャッシュのスナップショットを作成し、公開する
+ * <br>
+ * 受信ごとに変化したキャッシュを記録しておき、公開時に前回のスナップショットへ反映する。
+ * 前回のスナップショットとはチャンク単位で内容を共有し、変化したチャンクのみを複製するため、
+ * 公開のコストはキャッシュ全体の件数ではなく変化した件数にほぼ比例する。
+ * 公開済みのスナップショットはvolatile参照1回で取得できる。
+ * <br>
+ * 公開以外の操作はスキャナのcacheLockを保持した状態で呼び出すこと。
+ */
+final class ScanSnapshotPublisher {
+    /**
+     * 差分取得のために保持する変化の件数
+     */
+    static final int DEFAULT_CHANGE_HISTORY = 4096;
+
+    private volatile BluetoothScanSnapshot mSnapshot = BluetoothScanSnapshot.EMPTY;
+
+    /**
+     * 前回の公開以降に変化したキャッシュ
+     */
+    private final List<BluetoothDeviceCache> mDirtyCaches = new ArrayList<>();
+
+    /**
+     * 差分取得のために保持している変化の記録(古い順)
+     */
+    private final ArrayDeque<ChangeLog> mHistory = new ArrayDeque<>();
+
+    private int mHistoryCount;
+
+    /**
+     * アドレス索引に残っている削除済みの数
+     */
+    private int mIndexRemovedCount;
+
+    private boolean mEnabled;
+
+    private long mPublishIntervalMs;
+
+    private long mLastPublishTimeMs;
+
+    /*
+     * 公開中のみ使用する作業領域
+     * 公開済みのスナップショットと共有しているチャンクは、書き込む前に複製する
+     */
+
+    private BluetoothDeviceSnapshot[][] mSlots;
+
+    private boolean[] mSlotsOwned;
+
+    private int mSlotCount;
+
+    private int mSize;
+
+    private int[][] mIndex;
+
+    private boolean[] mIndexOwned;
+
+    private int mIndexMask;
+
+    BluetoothScanSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * スナップショットの作成を開始/停止する
+     *
+     * @param caches      現在のキャッシュ。開始時は全件が変化したものとして扱う
+     * @param currentTime 現在時刻(uptimeMillis)
+     */
+    void setEnabled(boolean enabled, Map<String, BluetoothDeviceCache> caches, long currentTime) {
+        if (enabled == mEnabled) {
+            return;
+        }
+        mEnabled = enabled;
+
+        for (BluetoothDeviceCache cache : mDirtyCaches) {
+            cache.snapshotDirty = false;
+        }
+        mDirtyCaches.clear();
+        mHistory.clear();
+        mHistoryCount = 0;
+        mIndexRemovedCount = 0;
+
+        // バージョンは継続し、以前のバージョンからの差分は全件とする
+        final BluetoothScanSnapshot empty = BluetoothScanSnapshot.EMPTY;
+        mSnapshot = new BluetoothScanSnapshot(
+                mSnapshot.version + 1, empty.slots, 0, 0, empty.index, empty.indexMask, null
+        );
+
+        if (enabled) {
+            for (BluetoothDeviceCache cache : caches.values()) {
+                markDirty(cache);
+            }
+            publish(caches, currentTime, true);
+        }
+    }
+
+    void setPublishIntervalMs(long publishIntervalMs) {
+        mPublishIntervalMs = publishIntervalMs;
+    }
+
+    /**
+     * キャッシュの追加・更新・削除を記録する
+     */
+    void markDirty(BluetoothDeviceCache cache) {
+        if (!mEnabled || cache.snapshotDirty) {
+            return;
+        }
+        cache.snapshotDirty = true;
+        mDirtyCaches.add(cache);
+    }
+
+    /**
+     * 変化したキャッシュを反映したスナップショットを公開する
+     *
+     * @param caches      現在のキャッシュ
+     * @param currentTime 現在時刻(uptimeMillis)
+     * @param force       trueの場合、公開間隔に関わらず公開する
+     */
+    void publish(Map<String, BluetoothDeviceCache> caches, long currentTime, boolean force) {
+        if (!mEnabled || mDirtyCaches.isEmpty()) {
+            return;
+        }
+        if (!force && (currentTime - mLastPublishTimeMs) < mPublishIntervalMs) {
+            return;
+        }
+
+        final BluetoothScanSnapshot prev = mSnapshot;
+        final long version = prev.version + 1;
+        beginWrite(prev, mDirtyCaches.size());
+
+        List<String> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (BluetoothDeviceCache cache : mDirtyCaches) {
+            cache.snapshotDirty = false;
+            if (caches.get(cache.address) == cache) {
+                putDevice(new BluetoothDeviceSnapshot(cache, version));
+                updated.add(cache.address);
+            } else if (!caches.containsKey(cache.address) && removeDevice(cache.address)) {
+                removed.add(cache.address);
+            }
+        }
+        mDirtyCaches.clear();
+
+        final ChangeLog changes = new ChangeLog(
+                version, prev.version,
+                updated.toArray(new String[updated.size()]), removed.toArray(new String[removed.size()]),
+                prev.changes
+        );
+        addHistory(changes);
+
+        mSnapshot = new BluetoothScanSnapshot(version, mSlots, mSlotCount, mSize, mIndex, mIndexMask, changes);
+        mLastPublishTimeMs = currentTime;
+        endWrite();
+    }
+
+    /**
+     * 変化の記録を追加し、古い記録を切り詰める
+     */
+    private void addHistory(ChangeLog changes) {
+        mHistory.addLast(changes);
+        mHistoryCount += changes.size();
+        while (mHistoryCount > DEFAULT_CHANGE_HISTORY && mHistory.size() > 1) {
+            mHistoryCount -= mHistory.pollFirst().size();
+            mHistory.peekFirst().prev = null;
+        }
+    }
+
+    /**
+     * 公開済みのスナップショットを元に作業領域を用意する
+     * <br>
+     * 複製するのはチャンクの参照配列のみで、チャンク自体は書き込む時点で複製する。
+     *
+     * @param changeCount 反映する最大件数
+     */
+    private void beginWrite(BluetoothScanSnapshot prev, int changeCount) {
+        mSlots = prev.slots.clone();
+        mSlotsOwned = new boolean[mSlots.length];
+        mSlotCount = prev.slotCount;
+        mSize = prev.size;
+        mIndex = prev.index.clone();
+        mIndexOwned = new boolean[mIndex.length];
+        mIndexMask = prev.indexMask;
+
+        // 削除済みの領域が増えた場合、または索引が埋まる可能性がある場合は作り直す
+        // いずれも件数に比例する操作の後にのみ発生するため、1件あたりのコストは定数となる
+        final int holes = mSlotCount - mSize;
+        final int indexCapacity = mIndexMask + 1;
+        if (holes > mSize + CHUNK_SIZE || (mSize + mIndexRemovedCount + changeCount) * 4 > indexCapacity * 3) {
+            rebuild(mSize + changeCount);
+        }
+    }
+
+    private void endWrite() {
+        mSlots = null;
+        mSlotsOwned = null;
+        mIndex = null;
+        mIndexOwned = null;
+    }
+
+    /**
+     * 削除済みの領域を詰め、索引を作り直す
+     *
+     * @param expectedSize 作り直した後に保持する最大件数
+     */
+    private void rebuild(int expectedSize) {
+        final BluetoothDeviceSnapshot[][] oldSlots = mSlots;
+        final int oldSlotCount = mSlotCount;
+
+        int indexCapacity = CHUNK_SIZE;
+        while (indexCapacity < expectedSize * 2) {
+            indexCapacity <<= 1;
+        }
+        mIndex = new int[indexCapacity >> CHUNK_BITS][CHUNK_SIZE];
+        mIndexOwned = new boolean[mIndex.length];
+        Arrays.fill(mIndexOwned, true);
+        mIndexMask = indexCapacity - 1;
+        mIndexRemovedCount = 0;
+
+        mSlots = new BluetoothDeviceSnapshot[Math.max((mSize + CHUNK_MASK) >> CHUNK_BITS, 1)][];
+        mSlotsOwned = new boolean[mSlots.length];
+        mSlotCount = 0;
+        mSize = 0;
+        for (int i = 0; i < oldSlotCount; ++i) {
+            final BluetoothDeviceSnapshot device = oldSlots[i >> CHUNK_BITS][i & CHUNK_MASK];
+            if (device != null) {
+                appendDevice(device);
+            }
+        }
+    }
+
+    private void putDevice(BluetoothDeviceSnapshot device) {
+        final int slot = BluetoothScanSnapshot.findSlot(mSlots, mIndex, mIndexMask, device.address);
+        if (slot >= 0) {
+            setSlot(slot, device);
+        } else {
+            appendDevice(device);
+        }
+    }
+
+    /**
+     * 末尾へデバイスを追加し、索引へ登録する
+     */
+    private void appendDevice(BluetoothDeviceSnapshot device) {
+        final int slot = mSlotCount++;
+        final int chunk = slot >> CHUNK_BITS;
+        if (chunk >= mSlots.length) {
+            final int length = Math.max(mSlots.length * 2, 1);
+            mSlots = Arrays.copyOf(mSlots, length);
+            mSlotsOwned = Arrays.copyOf(mSlotsOwned, length);
+        }
+        if (mSlots[chunk] == null) {
+            mSlots[chunk] = new BluetoothDeviceSnapshot[CHUNK_SIZE];
+            mSlotsOwned[chunk] = true;
+        }
+        setSlot(slot, device);
+        ++mSize;
+
+        // 削除済みの位置があれば再利用する
+        int i = BluetoothScanSnapshot.indexHash(device.address) & mIndexMask;
+        int insert = -1;
+        while (true) {
+            final int value = mIndex[i >> CHUNK_BITS][i & CHUNK_MASK];
+            if (value == 0) {
+                break;
+            }
+            if (value == INDEX_REMOVED && insert < 0) {
+                insert = i;
+            }
+            i = (i + 1) & mIndexMask;
+        }
+        if (insert >= 0) {
+            i = insert;
+            --mIndexRemovedCount;
+        }
+        setIndex(i, slot + 1);
+    }
+
+    /**
+     * デバイスを削除する
+     *
+     * @return 含まれていた場合true
+     */
+    private boolean removeDevice(String address) {
+        final int slot = BluetoothScanSnapshot.findSlot(mSlots, mIndex, mIndexMask, address);
+        if (slot < 0) {
+            return false;
+        }
+
+        int i = BluetoothScanSnapshot.indexHash(address) & mIndexMask;
+        while (mIndex[i >> CHUNK_BITS][i & CHUNK_MASK] != slot + 1) {
+            i = (i + 1) & mIndexMask;
+        }
+        setIndex(i, INDEX_REMOVED);
+        ++mIndexRemovedCount;
+
+        setSlot(slot, null);
+        --mSize;
+        return true;
+    }
+
+    private void setSlot(int slot, BluetoothDeviceSnapshot device) {
+        final int chunk = slot >> CHUNK_BITS;
+        if (!mSlotsOwned[chunk]) {
+            mSlots[chunk] = mSlots[chunk].clone();
+            mSlotsOwned[chunk] = true;
+        }
+        mSlots[chunk][slot & CHUNK_MASK] = device;
+    }
+
+    private void setIndex(int i, int value) {
+        final int chunk = i >> CHUNK_BITS;
+        if (!mIndexOwned[chunk]) {
+            mIndex[chunk] = mIndex[chunk].clone();
+            mIndexOwned[chunk] = true;
+        }
+        mIndex[chunk][i & CHUNK_MASK] = value;
+    }
+}
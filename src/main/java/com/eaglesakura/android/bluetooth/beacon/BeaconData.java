@@ -1,19 +1,34 @@
 package com.eaglesakura.android.bluetooth.beacon;
 
-import com.eaglesakura.io.DataInputStream;
-import com.eaglesakura.util.StringUtil;
-
 import android.bluetooth.BluetoothDevice;
 
-import java.io.ByteArrayInputStream;
 import java.util.UUID;
 
 /**
- *
+ * iBeaconのスキャン結果
+ * <br>
+ * スキャン結果の固定位置からビッグエンディアンで直接読み込むため、解析時に中間のバッファや文字列を生成しない。
+ * 受信ごとに解析する場合は、BeaconData()で生成したインスタンスをparse()で使い回すことで割り当てを無くせる。
  */
 public class BeaconData {
+    /**
+     * Beaconとして解析するのに必要なスキャン結果の長さ
+     */
+    static final int RECORD_LENGTH = 30;
+
+    /**
+     * 一意に割り当てられたIDの上位64bit
+     */
+    long uuidMsb;
+
+    /**
+     * 一意に割り当てられたIDの下位64bit
+     */
+    long uuidLsb;
+
     /**
      * 一意に割り当てられたID
+     * 必要になるまで生成しない
      */
     UUID uuid;
 
@@ -42,12 +57,38 @@ public class BeaconData {
      */
     byte txPower;
 
-    private BeaconData() {
+    /**
+     * 再利用する空のインスタンスを生成する
+     * <br>
+     * parse()に成功するまでの値は不定となる。
+     *
+     * @see #parse(byte[])
+     */
+    public BeaconData() {
 
     }
 
     public UUID getUuid() {
-        return uuid;
+        UUID result = uuid;
+        if (result == null) {
+            result = new UUID(uuidMsb, uuidLsb);
+            uuid = result;
+        }
+        return result;
+    }
+
+    /**
+     * UUIDの上位64bitを取得する
+     */
+    public long getUuidMostSignificantBits() {
+        return uuidMsb;
+    }
+
+    /**
+     * UUIDの下位64bitを取得する
+     */
+    public long getUuidLeastSignificantBits() {
+        return uuidLsb;
     }
 
     public byte getAdType() {
@@ -66,12 +107,53 @@ public class BeaconData {
         return (int) minor & 0xFFFF;
     }
 
+    /**
+     * スキャン結果を解析し、このインスタンスへ上書きする
+     * <br>
+     * 例外やオブジェクトを生成しないため、受信ごとの解析に使用できる。
+     * スキャナのキャッシュ等、他で共有されているインスタンスに対しては呼び出してはならない。
+     *
+     * @param scanRecord スキャン結果
+     * @return Beaconとして解析できた場合true、falseの場合は値を変更しない
+     */
+    public boolean parse(byte[] scanRecord) {
+        if (scanRecord == null || scanRecord.length < RECORD_LENGTH || scanRecord[7] != 0x02) {
+            return false;
+        }
+
+        // 4byteの不要データに続き、AD type(1) 会社識別(2) 0x02 skip(1) UUID(16) Major(2) Minor(2) TxPower(1)が並ぶ
+        adType = scanRecord[4];
+        companyType = readS16(scanRecord, 5);
+        uuidMsb = readS64(scanRecord, 9);
+        uuidLsb = readS64(scanRecord, 17);
+        uuid = null;
+        major = readS16(scanRecord, 25);
+        minor = readS16(scanRecord, 27);
+        txPower = scanRecord[29];
+        return true;
+    }
+
+    private static short readS16(byte[] buffer, int offset) {
+        return (short) (((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF));
+    }
+
+    private static long readS64(byte[] buffer, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; ++i) {
+            result = (result << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
 
     /**
      * 受信したBeaconを可能な限り一意に特定するIDを生成する
+     * <br>
+     * 比較のみに使用する場合は、文字列を生成しないBeaconIdentityを使用する。
      *
      * @param device Bluetooth
      * @param beacon Beacon
+     * @see BeaconIdentity#of(BluetoothDevice, BeaconData)
      */
     public static String createUniqueID(BluetoothDevice device, BeaconData beacon) {
         return createUniqueID(
@@ -93,69 +175,22 @@ public class BeaconData {
                 address.toUpperCase());
     }
 
+    /**
+     * スキャン結果からBeacon情報を生成する
+     *
+     * @throws IllegalArgumentException スキャン結果が短すぎる場合
+     * @throws IllegalStateException    Beaconのスキャン結果ではない場合
+     */
     public static BeaconData createInstance(byte[] scanRecord) throws Exception {
-        if (scanRecord.length < 30) {
+        if (scanRecord.length < RECORD_LENGTH) {
             throw new IllegalArgumentException("scanRecord.length < 30");
         }
 
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(scanRecord));
-        dis.readBuffer(4); // 不要データを読み飛ばす
-
         BeaconData result = new BeaconData();
-        result.adType = dis.readS8();
-        result.companyType = dis.readS16();
-        if (dis.readS8() != 0x02) {
+        if (!result.parse(scanRecord)) {
             // is not Beacon!!
             throw new IllegalStateException("this record != beacon");
         }
-
-        // skip
-        dis.readS8();
-
-        // UUID
-        {
-            byte[] uuid = dis.readBuffer(16);
-            String uuidText = "";
-            int index = 0;
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-
-            uuidText += "-";
-
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-
-            uuidText += "-";
-
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-
-            uuidText += "-";
-
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-
-            uuidText += "-";
-
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-            uuidText += StringUtil.toHexString(uuid[index++]);
-
-            result.uuid = UUID.fromString(uuidText);
-        }
-
-        // major/minor
-        result.major = dis.readS16();
-        result.minor = dis.readS16();
-
-        // tx
-        result.txPower = dis.readS8();
-
         return result;
     }
 
@@ -0,0 +1,189 @@
+package com.eaglesakura.android.bluetooth.beacon;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.UUID;
+
+/**
+ * Beaconを一意に特定する値
+ * <br>
+ * UUID、Major/Minor値、送信元のアドレスをプリミティブで保持するため、比較とハッシュ値の計算に文字列を生成しない。
+ * アドレスは48bitの整数へ詰めて保持する。
+ * 文字列表現はtoString()を呼び出した時点で生成し、BeaconData.createUniqueID()と同じ形式となる。
+ *
+ * @see BeaconIdentityMap
+ */
+public final class BeaconIdentity {
+    /**
+     * アドレスを区別しない場合の値
+     */
+    public static final long ADDRESS_NONE = -1;
+
+    final long uuidMsb;
+
+    final long uuidLsb;
+
+    final int major;
+
+    final int minor;
+
+    final long address;
+
+    private final int hash;
+
+    /**
+     * 文字列表現
+     * 必要になるまで生成しない
+     */
+    private String uniqueId;
+
+    /**
+     * @param uuidMsb UUIDの上位64bit
+     * @param uuidLsb UUIDの下位64bit
+     * @param major   Major値
+     * @param minor   Minor値
+     * @param address packAddress()で変換したアドレス、またはADDRESS_NONE
+     */
+    public BeaconIdentity(long uuidMsb, long uuidLsb, int major, int minor, long address) {
+        this.uuidMsb = uuidMsb;
+        this.uuidLsb = uuidLsb;
+        this.major = major;
+        this.minor = minor;
+        this.address = address;
+        this.hash = hash(uuidMsb, uuidLsb, major, minor, address);
+    }
+
+    /**
+     * 受信したBeaconの識別値を生成する
+     *
+     * @throws IllegalArgumentException アドレスの形式が正しくない場合
+     */
+    public static BeaconIdentity of(BeaconData beacon, String address) {
+        final long packed = packAddress(address);
+        if (packed == ADDRESS_NONE) {
+            throw new IllegalArgumentException("invalid address :: " + address);
+        }
+        return new BeaconIdentity(beacon.getUuidMostSignificantBits(), beacon.getUuidLeastSignificantBits(), beacon.getMajor(), beacon.getMinor(), packed);
+    }
+
+    /**
+     * 受信したBeaconの識別値を生成する
+     */
+    public static BeaconIdentity of(BluetoothDevice device, BeaconData beacon) {
+        return of(beacon, device.getAddress());
+    }
+
+    public UUID getUuid() {
+        return new UUID(uuidMsb, uuidLsb);
+    }
+
+    public long getUuidMostSignificantBits() {
+        return uuidMsb;
+    }
+
+    public long getUuidLeastSignificantBits() {
+        return uuidLsb;
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    /**
+     * 48bitの整数へ詰めたアドレスを取得する
+     *
+     * @return アドレスを区別しない場合はADDRESS_NONE
+     */
+    public long getAddress() {
+        return address;
+    }
+
+    /**
+     * 各値が一致すればtrue
+     */
+    boolean matches(long uuidMsb, long uuidLsb, int major, int minor, long address) {
+        return this.uuidMsb == uuidMsb && this.uuidLsb == uuidLsb
+                && this.major == major && this.minor == minor && this.address == address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BeaconIdentity)) {
+            return false;
+        }
+        BeaconIdentity other = (BeaconIdentity) o;
+        return hash == other.hash && matches(other.uuidMsb, other.uuidLsb, other.major, other.minor, other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * BeaconData.createUniqueID()と同じ形式の文字列を取得する
+     */
+    @Override
+    public String toString() {
+        String result = uniqueId;
+        if (result == null) {
+            result = BeaconData.createUniqueID(
+                    getUuid().toString(),
+                    major,
+                    minor,
+                    (address != ADDRESS_NONE) ? formatAddress(address) : ""
+            );
+            uniqueId = result;
+        }
+        return result;
+    }
+
+    /**
+     * 各値からハッシュ値を計算する
+     */
+    static int hash(long uuidMsb, long uuidLsb, int major, int minor, long address) {
+        long h = uuidMsb;
+        h = h * 0x9E3779B97F4A7C15L + uuidLsb;
+        h = h * 0x9E3779B97F4A7C15L + (((long) major << 32) ^ (minor & 0xFFFFFFFFL));
+        h = h * 0x9E3779B97F4A7C15L + address;
+        h ^= (h >>> 29);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * "00:11:22:33:44:55"形式のアドレスを48bitの整数へ変換する
+     *
+     * @return 変換できない場合はADDRESS_NONE
+     */
+    public static long packAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return ADDRESS_NONE;
+        }
+        long result = 0;
+        for (int i = 0; i < 6; ++i) {
+            final int hi = Character.digit(address.charAt(i * 3), 16);
+            final int lo = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (hi < 0 || lo < 0 || (i < 5 && address.charAt(i * 3 + 2) != ':')) {
+                return ADDRESS_NONE;
+            }
+            result = (result << 8) | (hi << 4) | lo;
+        }
+        return result;
+    }
+
+    /**
+     * 48bitの整数へ詰めたアドレスを"00:11:22:33:44:55"形式へ変換する
+     */
+    public static String formatAddress(long address) {
+        return String.format("%02X:%02X:%02X:%02X:%02X:%02X",
+                (address >>> 40) & 0xFF, (address >>> 32) & 0xFF, (address >>> 24) & 0xFF,
+                (address >>> 16) & 0xFF, (address >>> 8) & 0xFF, address & 0xFF);
+    }
+}
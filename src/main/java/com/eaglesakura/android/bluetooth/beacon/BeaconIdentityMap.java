@@ -0,0 +1,204 @@
+package com.eaglesakura.android.bluetooth.beacon;
+
+import java.util.Arrays;
+
+/**
+ * BeaconIdentityをキーとするマップ
+ * <br>
+ * オープンアドレス法で保持し、UUID・Major/Minor値・アドレスを直接指定して検索できるため、
+ * 受信ごとの集計で検索用のキーやエントリを生成しない。
+ * <br>
+ * スレッドセーフではないため、複数のスレッドから使用する場合は呼び出し元で同期する。
+ *
+ * @param <V> 値の型
+ */
+public class BeaconIdentityMap<V> {
+    public interface EntryVisitor<V> {
+        /**
+         * @param identity キー
+         * @param value    値
+         */
+        void onEntry(BeaconIdentity identity, V value);
+    }
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private BeaconIdentity[] mKeys;
+
+    private Object[] mValues;
+
+    private int mSize;
+
+    public BeaconIdentityMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 保持する件数の目安
+     */
+    public BeaconIdentityMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new BeaconIdentity[capacity];
+        mValues = new Object[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public V get(BeaconIdentity identity) {
+        return get(identity.uuidMsb, identity.uuidLsb, identity.major, identity.minor, identity.address);
+    }
+
+    /**
+     * 各値を直接指定して検索する
+     *
+     * @param address BeaconIdentity.packAddress()で変換したアドレス、またはBeaconIdentity.ADDRESS_NONE
+     * @return 値、存在しない場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long uuidMsb, long uuidLsb, int major, int minor, long address) {
+        final int index = indexOf(uuidMsb, uuidLsb, major, minor, address);
+        return (index >= 0) ? (V) mValues[index] : null;
+    }
+
+    public boolean containsKey(BeaconIdentity identity) {
+        return indexOf(identity.uuidMsb, identity.uuidLsb, identity.major, identity.minor, identity.address) >= 0;
+    }
+
+    /**
+     * 値を登録する
+     *
+     * @return 以前の値、存在しなかった場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    public V put(BeaconIdentity identity, V value) {
+        final int mask = mKeys.length - 1;
+        int index = identity.hashCode() & mask;
+        while (true) {
+            final BeaconIdentity key = mKeys[index];
+            if (key == null) {
+                break;
+            }
+            if (key.equals(identity)) {
+                final V old = (V) mValues[index];
+                mValues[index] = value;
+                return old;
+            }
+            index = (index + 1) & mask;
+        }
+
+        mKeys[index] = identity;
+        mValues[index] = value;
+        if (++mSize * 4 > mKeys.length * 3) {
+            resize(mKeys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * 値を削除する
+     *
+     * @return 削除した値、存在しなかった場合はnull
+     */
+    public V remove(BeaconIdentity identity) {
+        return remove(identity.uuidMsb, identity.uuidLsb, identity.major, identity.minor, identity.address);
+    }
+
+    /**
+     * 各値を直接指定して削除する
+     *
+     * @return 削除した値、存在しなかった場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long uuidMsb, long uuidLsb, int major, int minor, long address) {
+        int index = indexOf(uuidMsb, uuidLsb, major, minor, address);
+        if (index < 0) {
+            return null;
+        }
+
+        final V old = (V) mValues[index];
+        mKeys[index] = null;
+        mValues[index] = null;
+        --mSize;
+
+        // 後続の衝突したエントリを詰め、探索が途切れないようにする
+        final int mask = mKeys.length - 1;
+        int next = (index + 1) & mask;
+        while (mKeys[next] != null) {
+            final int home = mKeys[next].hashCode() & mask;
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                mKeys[index] = mKeys[next];
+                mValues[index] = mValues[next];
+                mKeys[next] = null;
+                mValues[next] = null;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, null);
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * 全てのエントリを列挙する
+     * 列挙中にマップを変更してはならない
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryVisitor<V> visitor) {
+        final BeaconIdentity[] keys = mKeys;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != null) {
+                visitor.onEntry(keys[i], (V) mValues[i]);
+            }
+        }
+    }
+
+    private int indexOf(long uuidMsb, long uuidLsb, int major, int minor, long address) {
+        final int mask = mKeys.length - 1;
+        int index = BeaconIdentity.hash(uuidMsb, uuidLsb, major, minor, address) & mask;
+        while (true) {
+            final BeaconIdentity key = mKeys[index];
+            if (key == null) {
+                return -1;
+            }
+            if (key.matches(uuidMsb, uuidLsb, major, minor, address)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        final BeaconIdentity[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        mKeys = new BeaconIdentity[capacity];
+        mValues = new Object[capacity];
+
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            final BeaconIdentity key = oldKeys[i];
+            if (key == null) {
+                continue;
+            }
+            int index = key.hashCode() & mask;
+            while (mKeys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            mKeys[index] = key;
+            mValues[index] = oldValues[i];
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.eaglesakura.android.bluetooth.beacon.data;
 
 import com.eaglesakura.android.bluetooth.beacon.BeaconData;
+import com.eaglesakura.android.bluetooth.beacon.BeaconIdentity;
 import com.eaglesakura.util.StringUtil;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.support.annotation.Nullable;
 
 /**
  * Serviceが検知したBeacon情報
@@ -33,6 +35,12 @@ public class PeripheralBeacon implements Parcelable {
 
     private BeaconData beacon;
 
+    /**
+     * Beaconの識別値
+     * macAddressの変更時に破棄する
+     */
+    private BeaconIdentity identity;
+
     public PeripheralBeacon(String name, String macAddress, byte[] record, double distanceMeter) {
         this.name = StringUtil.isEmpty(name) ? "BeaconStub" : name;
         this.macAddress = macAddress.toUpperCase();
@@ -50,12 +58,33 @@ public class PeripheralBeacon implements Parcelable {
 
     /**
      * Beaconを一意に識別可能なIDを生成する
+     * <br>
+     * マップのキー等、比較のみに使用する場合はgetIdentity()を使用する。
      */
     public String getUniqueId() {
+        BeaconIdentity identity = getIdentity();
+        if (identity != null) {
+            return identity.toString();
+        }
+
+        // 識別値へ変換できないアドレスは、従来通り文字列から生成する
         BeaconData data = getBeaconData();
         return BeaconData.createUniqueID(data.getUuid().toString(), data.getMajor(), data.getMinor(), this.macAddress);
     }
 
+    /**
+     * Beaconを一意に識別する値を取得する
+     *
+     * @return 識別値、アドレスが"00:11:22:33:44:55"形式でない場合はnull
+     */
+    @Nullable
+    public BeaconIdentity getIdentity() {
+        if (identity == null && BeaconIdentity.packAddress(this.macAddress) != BeaconIdentity.ADDRESS_NONE) {
+            identity = BeaconIdentity.of(getBeaconData(), this.macAddress);
+        }
+        return identity;
+    }
+
     public BeaconData getBeaconData() {
         if (beacon == null) {
             try {
@@ -89,6 +118,7 @@ public class PeripheralBeacon implements Parcelable {
 
     public void setMacAddress(String macAddress) {
         this.macAddress = macAddress;
+        this.identity = null;
     }
 
     @Override
@@ -99,6 +129,8 @@ public class PeripheralBeacon implements Parcelable {
     public void readFromParcel(Parcel in) {
         this.name = in.readString();
         this.macAddress = in.readString();
+        this.identity = null;
+        this.beacon = null;
         {
             int recordSize = in.readInt();
             this.record = new byte[recordSize];
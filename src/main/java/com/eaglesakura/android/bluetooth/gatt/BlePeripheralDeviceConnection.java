@@ -1,6 +1,7 @@
 package com.eaglesakura.android.bluetooth.gatt;
 
 import com.eaglesakura.android.bluetooth.BleLog;
+import com.eaglesakura.android.bluetooth.BluetoothClock;
 import com.eaglesakura.android.bluetooth.error.BluetoothConnectAbortException;
 import com.eaglesakura.android.bluetooth.error.BluetoothDataTimeoutException;
 import com.eaglesakura.android.bluetooth.error.BluetoothException;
@@ -37,10 +38,30 @@ public class BlePeripheralDeviceConnection extends BleDeviceConnection {
      */
     private int mMaxConnectSleepTimeMs = 1000 * 10;
 
+    /**
+     * タイムアウトの計測に使用する時刻の取得元
+     */
+    private BluetoothClock mClock = BluetoothClock.SYSTEM;
+
     public BlePeripheralDeviceConnection(Context context, String deviceAddress) {
         super(context, deviceAddress);
     }
 
+    /**
+     * タイムアウトの計測に使用する時刻の取得元を指定する
+     * <br>
+     * 端末の時刻設定が変更されてもタイムアウトがずれないよう、BluetoothClock#nanoTime()で計測する。
+     *
+     * @param clock 時刻の取得元、nullの場合はシステム時刻を使用する
+     */
+    public void setClock(BluetoothClock clock) {
+        mClock = (clock != null) ? clock : BluetoothClock.SYSTEM;
+    }
+
+    private long uptimeMillis() {
+        return mClock.nanoTime() / (1000 * 1000);
+    }
+
     /**
      * データ取得のタイムアウトを設定する
      *
@@ -84,13 +105,13 @@ public class BlePeripheralDeviceConnection extends BleDeviceConnection {
                     /**
                      * 最大時間まで待ち受ける
                      */
-                    long mAbortTime = System.currentTimeMillis() + mMaxConnectSleepTimeMs;
+                    long mAbortTime = uptimeMillis() + mMaxConnectSleepTimeMs;
 
                     @Override
                     public boolean isCanceled() throws Exception {
                         // GATT接続される前にタイムアウト時刻を過ぎたらabortさせる
                         if (!session.mGattConnected) {
-                            if (System.currentTimeMillis() >= mAbortTime) {
+                            if (uptimeMillis() >= mAbortTime) {
                                 return true;
                             }
                         }
@@ -103,12 +124,12 @@ public class BlePeripheralDeviceConnection extends BleDeviceConnection {
                     /**
                      * データが到達しない場合のタイムアウト時刻
                      */
-                    long mAbortTime = System.currentTimeMillis() + mDataTimeoutMs;
+                    long mAbortTime = uptimeMillis() + mDataTimeoutMs;
 
                     @Override
                     public void onGattConnected(BleDeviceConnection self, BleGattController gatt) throws BluetoothException {
                         sleepTimeMs.value = mInitialSleepTimeMs;
-                        mAbortTime = System.currentTimeMillis() + mDataTimeoutMs;
+                        mAbortTime = uptimeMillis() + mDataTimeoutMs;
                         session.mGattConnected = true;
 
                         bleCallback.onGattConnected(self, gatt);
@@ -116,7 +137,7 @@ public class BlePeripheralDeviceConnection extends BleDeviceConnection {
 
                     @Override
                     public boolean onLoop(BleDeviceConnection self, BleGattController gatt) throws BluetoothException {
-                        if (System.currentTimeMillis() >= mAbortTime) {
+                        if (uptimeMillis() >= mAbortTime) {
                             throw new BluetoothDataTimeoutException("DataTimeout [" + mDataTimeoutMs + " ms]");
                         }
 
@@ -126,7 +147,7 @@ public class BlePeripheralDeviceConnection extends BleDeviceConnection {
                     @Override
                     public void onCharacteristicUpdated(BleDeviceConnection self, BleGattController gatt, BluetoothGattCharacteristic characteristic) throws BluetoothException {
                         // データが到達したのでタイムアウト時刻を引き伸ばす
-                        mAbortTime = (System.currentTimeMillis() + mDataTimeoutMs);
+                        mAbortTime = (uptimeMillis() + mDataTimeoutMs);
 
                         // データ更新を行わせる
                         bleCallback.onCharacteristicUpdated(self, gatt, characteristic);
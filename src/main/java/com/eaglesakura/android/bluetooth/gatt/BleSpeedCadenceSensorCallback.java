@@ -1,6 +1,7 @@
 package com.eaglesakura.android.bluetooth.gatt;
 
 import com.eaglesakura.android.bluetooth.BleLog;
+import com.eaglesakura.android.bluetooth.BluetoothClock;
 import com.eaglesakura.android.bluetooth.BluetoothLeUtil;
 import com.eaglesakura.android.bluetooth.error.BluetoothException;
 import com.eaglesakura.android.bluetooth.error.BluetoothGattConnectFailedException;
@@ -48,6 +49,11 @@ public abstract class BleSpeedCadenceSensorCallback extends BleDeviceConnection.
      */
     private List<RawSensorValue> mWheelValueList = new ArrayList<>();
 
+    /**
+     * 受信時刻の取得元
+     */
+    private BluetoothClock mClock = BluetoothClock.SYSTEM;
+
     @Override
     public void onGattConnected(BleDeviceConnection self, BleGattController gatt) throws BluetoothException {
         // バッテリーレベルの読み込みを行う
@@ -63,6 +69,15 @@ public abstract class BleSpeedCadenceSensorCallback extends BleDeviceConnection.
         throw new BluetoothGattConnectFailedException("Speed&Cadence Not Found...");
     }
 
+    /**
+     * 受信時刻の取得元を指定する
+     *
+     * @param clock 時刻の取得元、nullの場合はシステム時刻を使用する
+     */
+    public void setClock(BluetoothClock clock) {
+        mClock = (clock != null) ? clock : BluetoothClock.SYSTEM;
+    }
+
     public Integer getBatteryLevel() {
         return mBatteryLevel;
     }
@@ -180,7 +195,7 @@ public abstract class BleSpeedCadenceSensorCallback extends BleDeviceConnection.
                 offset += 2;
 
                 if (revolutions != null && timestamp != null) {
-                    RawSensorValue newValue = RawSensorValue.nextValue(getWheelValue(), revolutions, timestamp);
+                    RawSensorValue newValue = RawSensorValue.nextValue(mClock, getWheelValue(), revolutions, timestamp);
                     addValue(mWheelValueList, newValue);
                     onUpdateWheelValue(newValue, getWheelRpm());
 
@@ -197,7 +212,7 @@ public abstract class BleSpeedCadenceSensorCallback extends BleDeviceConnection.
                 offset += 2;
 
                 if (revolutions != null && timestamp != null) {
-                    RawSensorValue newValue = RawSensorValue.nextValue(getCrankValue(), revolutions, timestamp);
+                    RawSensorValue newValue = RawSensorValue.nextValue(mClock, getCrankValue(), revolutions, timestamp);
                     addValue(mCrankValueList, newValue);
 
                     onUpdateCrankValue(newValue, getCrankRpm());
@@ -1,5 +1,6 @@
 package com.eaglesakura.android.bluetooth.gatt.scs;
 
+import com.eaglesakura.android.bluetooth.BluetoothClock;
 import com.eaglesakura.android.bluetooth.BluetoothLeUtil;
 
 import android.support.annotation.Nullable;
@@ -47,9 +48,22 @@ public class RawSensorValue {
     /**
      * 受信時刻
      */
-    final long mSystemTimestamp = System.currentTimeMillis();
+    final long mSystemTimestamp;
+
+    /**
+     * 受信時刻(BluetoothClock#nanoTime)
+     * 経過時間の計算に使用する
+     */
+    final long mReceivedTimeNs;
 
     RawSensorValue(int value, int timestamp) {
+        this(BluetoothClock.SYSTEM, value, timestamp);
+    }
+
+    RawSensorValue(BluetoothClock clock, int value, int timestamp) {
+        mSystemTimestamp = clock.currentTimeMillis();
+        mReceivedTimeNs = clock.nanoTime();
+
         mValueRaw = value;
         mValueOffset = 0;
         mValueSum = value;
@@ -59,7 +73,10 @@ public class RawSensorValue {
         mTimestampSum = timestamp;
     }
 
-    RawSensorValue(int valueRaw, int valueOffset, int valueSum, int timestampRaw, int timestampOffset, int timestampSum) {
+    RawSensorValue(BluetoothClock clock, int valueRaw, int valueOffset, int valueSum, int timestampRaw, int timestampOffset, int timestampSum) {
+        mSystemTimestamp = clock.currentTimeMillis();
+        mReceivedTimeNs = clock.nanoTime();
+
         mValueOffset = valueOffset;
         mValueSum = valueSum;
         mValueRaw = valueRaw;
@@ -102,12 +119,13 @@ public class RawSensorValue {
         int timeOffset = (mTimestampSum - oldValue.mTimestampSum);
         double timeOffsetSec = (double) timeOffset / 1024.0;
         if (timeOffset == 0) {
-            timeOffset = (int) (mSystemTimestamp - oldValue.mSystemTimestamp);
-            if (timeOffset == 0) {
+            // 端末の時刻設定の変更に影響されないよう、単調増加の時刻で比較する
+            final long receivedOffsetNs = (mReceivedTimeNs - oldValue.mReceivedTimeNs);
+            if (receivedOffsetNs <= 0) {
                 // リアルタイムでも変わりない
                 return 0;
             }
-            timeOffsetSec = (double) timeOffset / 1000.0;
+            timeOffsetSec = (double) receivedOffsetNs / 1000.0 / 1000.0 / 1000.0;
         }
 
         final double valueOffset = (mValueSum - oldValue.mValueSum);
@@ -138,14 +156,21 @@ public class RawSensorValue {
     }
 
     public static RawSensorValue nextValue(@Nullable RawSensorValue oldValue, int newValue, int newTimestamp) {
+        return nextValue(BluetoothClock.SYSTEM, oldValue, newValue, newTimestamp);
+    }
+
+    /**
+     * 受信時刻の取得元を指定して次の値を生成する
+     */
+    public static RawSensorValue nextValue(BluetoothClock clock, @Nullable RawSensorValue oldValue, int newValue, int newTimestamp) {
         if (oldValue == null) {
-            return new RawSensorValue(newValue, newTimestamp);
+            return new RawSensorValue(clock, newValue, newTimestamp);
         } else {
             int valueOffset = BluetoothLeUtil.get16bitOffset(oldValue.mValueRaw, newValue);
             int timeOffset = BluetoothLeUtil.get16bitOffset(oldValue.mTimestampRaw, newTimestamp);
 
             return new RawSensorValue(
-                    newValue, valueOffset, oldValue.mValueSum + valueOffset,
+                    clock, newValue, valueOffset, oldValue.mValueSum + valueOffset,
                     newTimestamp, timeOffset, oldValue.mTimestampSum + timeOffset
             );
         }
@@ -0,0 +1,46 @@
+package com.eaglesakura.android.bluetooth.rssi;
+
+/**
+ * 指数加重移動平均でRSSIを平滑化する
+ */
+public class EwmaRssiEstimator implements RssiEstimator {
+    /**
+     * 新しいサンプルの重み
+     */
+    private final double mAlpha;
+
+    private double mEstimate = Double.NaN;
+
+    /**
+     * @param alpha 新しいサンプルの重み(0.0 < alpha <= 1.0)。大きいほど追従が早く、小さいほど安定する。
+     */
+    public EwmaRssiEstimator(double alpha) {
+        if (!(alpha > 0.0 && alpha <= 1.0)) {
+            throw new IllegalArgumentException("alpha[" + alpha + "]");
+        }
+        mAlpha = alpha;
+    }
+
+    @Override
+    public void update(int rssi, long timeMs) {
+        if (Double.isNaN(mEstimate)) {
+            mEstimate = rssi;
+        } else {
+            mEstimate += mAlpha * ((double) rssi - mEstimate);
+        }
+    }
+
+    @Override
+    public double getEstimate() {
+        return mEstimate;
+    }
+
+    @Override
+    public void reset() {
+        mEstimate = Double.NaN;
+    }
+
+    public static Factory factory(double alpha) {
+        return () -> new EwmaRssiEstimator(alpha);
+    }
+}
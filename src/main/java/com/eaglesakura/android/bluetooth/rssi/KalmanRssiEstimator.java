@@ -0,0 +1,69 @@
+package com.eaglesakura.android.bluetooth.rssi;
+
+/**
+ * 1次元カルマンフィルタでRSSIを推定する
+ * <br>
+ * 電波強度はほぼ一定で、観測値にノイズが乗っているものとしてモデル化する。
+ */
+public class KalmanRssiEstimator implements RssiEstimator {
+    /**
+     * プロセスノイズ(端末の移動による変化量)
+     */
+    private final double mProcessNoise;
+
+    /**
+     * 観測ノイズ(RSSIの揺らぎ)
+     */
+    private final double mMeasurementNoise;
+
+    private double mEstimate = Double.NaN;
+
+    /**
+     * 推定誤差の分散
+     */
+    private double mErrorCovariance;
+
+    /**
+     * @param processNoise     プロセスノイズ
+     * @param measurementNoise 観測ノイズ
+     */
+    public KalmanRssiEstimator(double processNoise, double measurementNoise) {
+        if (processNoise < 0 || measurementNoise <= 0) {
+            throw new IllegalArgumentException("processNoise[" + processNoise + "] measurementNoise[" + measurementNoise + "]");
+        }
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    @Override
+    public void update(int rssi, long timeMs) {
+        if (Double.isNaN(mEstimate)) {
+            mEstimate = rssi;
+            mErrorCovariance = mMeasurementNoise;
+            return;
+        }
+
+        // 予測
+        final double predictCovariance = mErrorCovariance + mProcessNoise;
+
+        // 更新
+        final double gain = predictCovariance / (predictCovariance + mMeasurementNoise);
+        mEstimate += gain * ((double) rssi - mEstimate);
+        mErrorCovariance = (1.0 - gain) * predictCovariance;
+    }
+
+    @Override
+    public double getEstimate() {
+        return mEstimate;
+    }
+
+    @Override
+    public void reset() {
+        mEstimate = Double.NaN;
+        mErrorCovariance = 0;
+    }
+
+    public static Factory factory(double processNoise, double measurementNoise) {
+        return () -> new KalmanRssiEstimator(processNoise, measurementNoise);
+    }
+}
@@ -0,0 +1,98 @@
+package com.eaglesakura.android.bluetooth.rssi;
+
+/**
+ * 直近N件のRSSIの中央値を推定値とする
+ * <br>
+ * 突発的な外れ値に強い。ソート済み配列を挿入・削除で維持するため、1サンプルあたりのコストはウィンドウサイズのみに依存する。
+ */
+public class MedianRssiEstimator implements RssiEstimator {
+    /**
+     * 到着順のサンプル
+     */
+    private final int[] mWindow;
+
+    /**
+     * 値順に並べたサンプル
+     */
+    private final int[] mSorted;
+
+    private int mHead;
+
+    private int mSize;
+
+    /**
+     * @param windowSize 中央値を求めるサンプル数
+     */
+    public MedianRssiEstimator(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize[" + windowSize + "]");
+        }
+        mWindow = new int[windowSize];
+        mSorted = new int[windowSize];
+    }
+
+    @Override
+    public void update(int rssi, long timeMs) {
+        if (mSize == mWindow.length) {
+            // 最も古い値を取り除く
+            removeSorted(mWindow[mHead]);
+            mWindow[mHead] = rssi;
+            if (++mHead == mWindow.length) {
+                mHead = 0;
+            }
+        } else {
+            int tail = mHead + mSize;
+            if (tail >= mWindow.length) {
+                tail -= mWindow.length;
+            }
+            mWindow[tail] = rssi;
+            ++mSize;
+        }
+        insertSorted(rssi, mSize - 1);
+    }
+
+    /**
+     * @param rssi       挿入する値
+     * @param validCount 挿入前の有効件数
+     */
+    private void insertSorted(int rssi, int validCount) {
+        int index = validCount;
+        while (index > 0 && mSorted[index - 1] > rssi) {
+            mSorted[index] = mSorted[index - 1];
+            --index;
+        }
+        mSorted[index] = rssi;
+    }
+
+    private void removeSorted(int rssi) {
+        int index = 0;
+        while (mSorted[index] != rssi) {
+            ++index;
+        }
+        System.arraycopy(mSorted, index + 1, mSorted, index, mSize - index - 1);
+    }
+
+    @Override
+    public double getEstimate() {
+        if (mSize == 0) {
+            return Double.NaN;
+        }
+
+        final int half = mSize / 2;
+        if ((mSize & 0x01) != 0) {
+            return mSorted[half];
+        } else {
+            return ((double) mSorted[half - 1] + (double) mSorted[half]) / 2.0;
+        }
+    }
+
+    @Override
+    public void reset() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    public static Factory factory(int windowSize) {
+        return () -> new MedianRssiEstimator(windowSize);
+    }
+}
@@ -0,0 +1,37 @@
+package com.eaglesakura.android.bluetooth.rssi;
+
+/**
+ * 受信したRSSIから現在の電波強度を推定する
+ * <br>
+ * サンプルは1件ずつ逐次投入され、推定値は履歴を再計算せずに取得できる必要がある。
+ * <br>
+ * インスタンスは1デバイスにつき1つ割り当てられる。
+ */
+public interface RssiEstimator {
+    /**
+     * 新たなRSSIを反映する
+     *
+     * @param rssi   電波強度
+     * @param timeMs 検知時刻
+     */
+    void update(int rssi, long timeMs);
+
+    /**
+     * 推定したRSSIを取得する
+     *
+     * @return 推定値、サンプルが1件も無い場合はNaN
+     */
+    double getEstimate();
+
+    /**
+     * 推定状態を初期化する
+     */
+    void reset();
+
+    /**
+     * デバイスごとのEstimatorを生成する
+     */
+    interface Factory {
+        RssiEstimator newEstimator();
+    }
+}
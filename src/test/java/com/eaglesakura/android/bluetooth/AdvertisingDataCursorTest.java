@@ -0,0 +1,124 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class AdvertisingDataCursorTest extends UnitTestCase {
+
+    static final UUID SERVICE_UUID_128 = UUID.fromString("00112233-4455-6677-8899-AABBCCDDEEFF");
+
+    static final byte[] RECORD = {
+            0x02, 0x01, 0x06,                           // flags
+            0x05, 0x03, 0x0D, 0x18, 0x0F, 0x18,         // 16bit service uuid(0x180D, 0x180F)
+            0x11, 0x07,                                 // 128bit service uuid
+            (byte) 0xFF, (byte) 0xEE, (byte) 0xDD, (byte) 0xCC, (byte) 0xBB, (byte) 0xAA, (byte) 0x99, (byte) 0x88,
+            0x77, 0x66, 0x55, 0x44, 0x33, 0x22, 0x11, 0x00,
+            0x05, 0x09, 'T', 'E', 'S', 'T',             // local name
+            0x02, 0x0A, (byte) 0xC5,                    // tx power(-59)
+            0x05, 0x16, 0x0F, 0x18, 0x64, 0x00,         // service data(0x180F)
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,  // manufacturer(0x004C)
+            0x00, 0x00,
+    };
+
+    @Test
+    public void AD_Structureを順に走査できる() throws Exception {
+        AdvertisingDataCursor cursor = new AdvertisingDataCursor(RECORD);
+
+        assertTrue(cursor.next());
+        assertEquals(cursor.getFlags(), 0x06);
+        assertEquals(cursor.getManufacturerId(), -1);
+
+        assertTrue(cursor.next());
+        assertEquals(cursor.getServiceUuidCount(), 2);
+        assertEquals(cursor.getServiceUuid(0), BluetoothLeUtil.BLE_UUID_HEARTRATE_SERVICE);
+        assertEquals(cursor.getServiceUuid(1), BluetoothLeUtil.BLE_UUID_BATTERY_SERVICE);
+
+        assertTrue(cursor.next());
+        assertEquals(cursor.getServiceUuidCount(), 1);
+        assertEquals(cursor.getServiceUuid(0), SERVICE_UUID_128);
+        assertTrue(cursor.containsServiceUuid(SERVICE_UUID_128));
+        assertFalse(cursor.containsServiceUuid(BluetoothLeUtil.BLE_UUID_HEARTRATE_SERVICE));
+
+        assertTrue(cursor.next());
+        assertEquals(cursor.getLocalName(), "TEST");
+
+        assertTrue(cursor.next());
+        assertEquals(cursor.getTxPowerLevel(), -59);
+
+        assertTrue(cursor.next());
+        assertEquals(cursor.getServiceDataUuid16(), 0x180F);
+        assertEquals(cursor.getPayloadLength(), 2);
+        assertEquals(RECORD[cursor.getPayloadOffset()], (byte) 100);
+
+        assertTrue(cursor.next());
+        assertEquals(cursor.getManufacturerId(), 0x004C);
+        assertEquals(cursor.getUint8(2), 0x02);
+
+        // パディングで終了する
+        assertFalse(cursor.next());
+        assertEquals(cursor.getType(), -1);
+
+        // 先頭へ戻して再利用できる
+        assertTrue(cursor.rewind().moveTo(AdvertisingDataCursor.AD_TYPE_MANUFACTURER_DATA));
+        assertFalse(cursor.moveTo(AdvertisingDataCursor.AD_TYPE_FLAGS));
+    }
+
+    @Test
+    public void 全ての長さのUUIDのService_Dataを取得できる() throws Exception {
+        byte[] record = {
+                0x07, 0x20, 0x0F, 0x18, 0x00, 0x00, 0x64, 0x00,    // 32bit service data(0x0000180F)
+                0x13, 0x21,                                         // 128bit service data
+                (byte) 0xFF, (byte) 0xEE, (byte) 0xDD, (byte) 0xCC, (byte) 0xBB, (byte) 0xAA, (byte) 0x99, (byte) 0x88,
+                0x77, 0x66, 0x55, 0x44, 0x33, 0x22, 0x11, 0x00,
+                0x01, 0x02,
+                0x03, 0x20, 0x0F, 0x18,                             // UUIDに満たない
+        };
+        AdvertisingDataCursor cursor = new AdvertisingDataCursor(record);
+
+        assertTrue(cursor.next());
+        assertTrue(cursor.isServiceData());
+        assertEquals(cursor.getServiceDataUuid(), BluetoothLeUtil.BLE_UUID_BATTERY_SERVICE);
+        assertEquals(cursor.getServiceDataUuid16(), -1);
+        assertEquals(cursor.getPayloadLength(), 2);
+        assertEquals(record[cursor.getPayloadOffset()], (byte) 100);
+
+        assertTrue(cursor.next());
+        assertTrue(cursor.isServiceData());
+        assertEquals(cursor.getServiceDataUuid(), SERVICE_UUID_128);
+        assertEquals(cursor.getServiceDataUuidMsb(), SERVICE_UUID_128.getMostSignificantBits());
+        assertEquals(cursor.getServiceDataUuidLsb(), SERVICE_UUID_128.getLeastSignificantBits());
+        assertEquals(cursor.getPayloadLength(), 2);
+        assertEquals(record[cursor.getPayloadOffset()], (byte) 0x01);
+
+        assertTrue(cursor.next());
+        assertFalse(cursor.isServiceData());
+        assertNull(cursor.getServiceDataUuid());
+        assertEquals(cursor.getPayloadLength(), 0);
+
+        // 16bitのService Dataも同じ方法で取得できる
+        cursor.reset(RECORD);
+        assertTrue(cursor.moveTo(AdvertisingDataCursor.AD_TYPE_SERVICE_DATA_16));
+        assertEquals(cursor.getServiceDataUuid(), BluetoothLeUtil.BLE_UUID_BATTERY_SERVICE);
+        assertTrue(cursor.rewind().next());
+        assertFalse(cursor.isServiceData());
+    }
+
+    @Test
+    public void 不正なデータは走査を打ち切る() throws Exception {
+        assertFalse(new AdvertisingDataCursor(null).next());
+        assertFalse(new AdvertisingDataCursor(new byte[0]).next());
+
+        // Lengthが配列の範囲を超えている
+        AdvertisingDataCursor cursor = new AdvertisingDataCursor(new byte[]{0x02, 0x01, 0x06, 0x10, (byte) 0xFF, 0x4C});
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+
+        try {
+            cursor.reset(RECORD).next();
+            cursor.getUint16(1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BluetoothDeviceCacheStoreTest extends UnitTestCase {
+
+    @Test
+    public void 保存したキャッシュを復元できる() throws Exception {
+        File file = File.createTempFile("device-cache", ".bin");
+        file.deleteOnExit();
+        BluetoothDeviceCacheStore store = new BluetoothDeviceCacheStore(file);
+
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -50 - i, i == 0 ? BluetoothScanFilterTest.BEACON_RECORD : null);
+        }
+        store.save(scanner);
+
+        BluetoothDeviceScanner restored = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        restored.setAsyncDispatch(false);
+        final List<String> found = new ArrayList<>();
+        restored.setScanListener(new BluetoothDeviceScannerTest.CountListener() {
+            @Override
+            public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                found.add(device.getAddress());
+            }
+        });
+        restored.setScanSnapshotEnabled(true);
+        final long version = restored.getScanSnapshot().getVersion();
+        assertEquals(store.load(restored), 10);
+
+        // スナップショットは全件の復元後に1回のみ公開される
+        assertEquals(restored.getScanSnapshot().getVersion(), version + 1);
+        assertEquals(restored.getScanSnapshot().size(), 10);
+
+        // 復元直後から近接デバイスを取得できる
+        BluetoothDeviceScanner.BluetoothDeviceCache nearest = restored.getNearestDevice();
+        assertEquals(nearest.getAddress(), BluetoothDeviceScannerTest.newDevice(0).getAddress());
+        assertEquals(nearest.getRssi(), -50);
+        assertTrue(nearest.isRestored());
+        assertEquals(nearest.getScanRecord().length, BluetoothScanFilterTest.BEACON_RECORD.length);
+        assertEquals(found.size(), 0);
+
+        // 受信した時点で置き換えられる
+        restored.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -90, null);
+        assertEquals(found.size(), 1);
+        assertFalse(nearest.isRestored());
+        assertEquals(nearest.getRssiAverage(), -90);
+        assertEquals(restored.getNearestDevice().getAddress(), BluetoothDeviceScannerTest.newDevice(1).getAddress());
+
+        // 保持済みのデバイスは上書きしない
+        assertEquals(store.load(restored), 0);
+
+        // 有効時間を過ぎたデバイスは復元しない
+        BluetoothDeviceScanner expired = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        expired.setExistCacheTimeMs(0);
+        assertEquals(store.load(expired), 0);
+    }
+
+    @Test
+    public void 復元したデバイスのアドバタイズが大きくなった場合もメモリの上限を守る() throws Exception {
+        File file = File.createTempFile("device-cache", ".bin");
+        file.deleteOnExit();
+        BluetoothDeviceCacheStore store = new BluetoothDeviceCacheStore(file);
+
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        for (int i = 0; i < 3; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -60, null);
+        }
+        store.save(scanner);
+
+        BluetoothDeviceScanner restored = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        restored.setAsyncDispatch(false);
+        restored.setMetricsEnabled(true);
+        final long maxBytes = BluetoothDeviceScanner.estimateRetainedBytes(null) * 3;
+        restored.setCacheCapacity(0, maxBytes, BluetoothDeviceScanner.CacheEvictionPolicy.LeastRecentlySeen);
+        BluetoothDeviceScannerTest.EventListener listener = new BluetoothDeviceScannerTest.EventListener();
+        restored.addScanListener(listener);
+        assertEquals(store.load(restored), 3);
+
+        restored.onScanResult(BluetoothDeviceScannerTest.newDevice(2), -60, BluetoothScanFilterTest.BEACON_RECORD);
+        assertTrue(restored.getScanMetrics().getRetainedBytes() <= maxBytes);
+        assertEquals(restored.getExistDeviceCaches().size(), 2);
+
+        // 受信していない復元済みのデバイスは、削除されても失効を通知しない
+        assertEquals(listener.mAddresses, Arrays.asList(BluetoothDeviceScannerTest.newDevice(2).getAddress()));
+        assertEquals(listener.mLostAddresses.size(), 0);
+    }
+
+    @Test
+    public void アドレスを相互に変換できる() throws Exception {
+        final String address = "00:11:22:AA:BB:FF";
+        assertEquals(BluetoothDeviceCacheStore.formatAddress(BluetoothDeviceCacheStore.parseAddress(address)), address);
+        assertNull(BluetoothDeviceCacheStore.parseAddress("00:11:22:AA:BB"));
+        assertNull(BluetoothDeviceCacheStore.parseAddress("00-11-22-AA-BB-FF"));
+    }
+}
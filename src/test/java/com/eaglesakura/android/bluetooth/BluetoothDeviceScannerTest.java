@@ -0,0 +1,937 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.rssi.MedianRssiEstimator;
+import com.eaglesakura.util.Util;
+
+import org.junit.Test;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BluetoothDeviceScannerTest extends UnitTestCase {
+
+    static BluetoothDevice newDevice(int index) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                String.format("00:11:22:%02X:%02X:%02X", (index >> 16) & 0xFF, (index >> 8) & 0xFF, index & 0xFF)
+        );
+    }
+
+    BluetoothDeviceScanner newScanner() {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        return scanner;
+    }
+
+    @Test
+    public void 同一アドレスのデバイスは1つのキャッシュにまとめられる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(newDevice(1), -60, null);
+            scanner.onScanResult(newDevice(2), -70, null);
+        }
+
+        assertEquals(scanner.getExistDeviceCaches().size(), 2);
+        assertEquals(scanner.getExistDeviceCaches().get(0).getAddress(), newDevice(1).getAddress());
+
+        scanner.remove(newDevice(1));
+        assertEquals(scanner.getExistDeviceCaches().size(), 1);
+        assertEquals(scanner.getExistDeviceCaches().get(0).getAddress(), newDevice(2).getAddress());
+    }
+
+    @Test
+    public void 通常デバイスとLEデバイスを同時に受信しても1つのキャッシュにまとめられる() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothDual);
+        scanner.setAsyncDispatch(false);
+
+        final ConcurrentHashMap<String, AtomicInteger> found = new ConcurrentHashMap<>();
+        final AtomicInteger updated = new AtomicInteger();
+        scanner.setScanListener(new BluetoothDeviceScanner.DeviceScanListener() {
+            @Override
+            public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                found.computeIfAbsent(device.getAddress(), key -> new AtomicInteger()).incrementAndGet();
+            }
+
+            @Override
+            public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                updated.incrementAndGet();
+            }
+
+            @Override
+            public void onScanTimeout(BluetoothDeviceScanner self) {
+            }
+        });
+
+        final int deviceNum = 500;
+        final int loopNum = 20;
+        final int threadNum = 4;
+        // 全てのイベントを取りこぼさずに検証するため、キューを十分に確保する
+        scanner.setEventQueue(deviceNum * loopNum * threadNum, BluetoothDeviceScanner.EventOverflowPolicy.DropNewest);
+        final BluetoothDevice[] devices = new BluetoothDevice[deviceNum];
+        for (int i = 0; i < deviceNum; ++i) {
+            devices[i] = newDevice(i);
+        }
+
+        // Binderスレッド(LE)とBroadcastスレッド(通常デバイス)を模して、同じアドレスを並列に受信させる
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch endLatch = new CountDownLatch(threadNum);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < threadNum; ++t) {
+            final boolean lowEnergy = (t % 2) == 0;
+            final int offset = t * 31;
+            new Thread(() -> {
+                try {
+                    startLatch.await();
+                    for (int loop = 0; loop < loopNum; ++loop) {
+                        for (int i = 0; i < deviceNum; ++i) {
+                            BluetoothDevice device = devices[(i + offset) % deviceNum];
+                            if (lowEnergy) {
+                                scanner.onScanResult(device, -60 - (i % 10), BluetoothScanFilterTest.BEACON_RECORD);
+                            } else {
+                                scanner.onScanResult(device, BluetoothDeviceScanner.RSSI_UNKNOWN, null);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    endLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        endLatch.await();
+
+        assertEquals(errors.size(), 0);
+        assertEquals(scanner.getDroppedEventCount(), 0L);
+        assertEquals(found.size(), deviceNum);
+        for (AtomicInteger count : found.values()) {
+            assertEquals(count.get(), 1);
+        }
+        assertEquals(updated.get(), deviceNum * loopNum * threadNum - deviceNum);
+
+        // 通常デバイスの受信でLEのアドバタイズやRSSIが失われていない
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> caches = scanner.getExistDeviceCaches();
+        assertEquals(caches.size(), deviceNum);
+        for (BluetoothDeviceScanner.BluetoothDeviceCache cache : caches) {
+            assertTrue(Arrays.equals(cache.getScanRecord(), BluetoothScanFilterTest.BEACON_RECORD));
+            assertTrue(cache.getRssi() != BluetoothDeviceScanner.RSSI_UNKNOWN);
+        }
+    }
+
+    @Test
+    public void 不明なRSSIや引き継いだRSSIは平均に含まれない() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        scanner.setRssiEstimatorFactory(() -> new MedianRssiEstimator(5));
+
+        // 通常デバイスとして先に見つかった場合
+        scanner.onScanResult(newDevice(0), BluetoothDeviceScanner.RSSI_UNKNOWN, null);
+        scanner.onScanResult(newDevice(0), -60, null);
+        BluetoothDeviceScanner.BluetoothDeviceCache cache = scanner.getExistDeviceCaches().get(0);
+        assertEquals(cache.getRssiAverage(), -60);
+        assertEquals((int) cache.getRssiEstimate(), -60);
+
+        // LEで受信したRSSIを引き継いだ通常デバイスの検索結果は、新たな受信値として数えない
+        for (int i = 0; i < 3; ++i) {
+            scanner.onScanResult(newDevice(0), BluetoothDeviceScanner.RSSI_UNKNOWN, null);
+        }
+        assertEquals(cache.getRssi(), -60);
+        scanner.onScanResult(newDevice(0), -80, null);
+        assertEquals(cache.getRssiAverage(), -70);
+        assertEquals((int) cache.getRssiEstimate(), -70);
+    }
+
+    @Test
+    public void アドバタイズ間隔に応じてデバイスごとに失効する() throws Exception {
+        AtomicLong clock = new AtomicLong(1000 * 1000);
+        BluetoothDeviceScanner scanner = newScanner();
+        scanner.setClock(clock::get);
+        scanner.setExistCacheTimeMs(1000 * 15);
+        scanner.setAdaptiveExpiry(5, 1000, 1000 * 60);
+
+        // 100ms間隔(時々取りこぼす)のデバイスと、10秒間隔のデバイス
+        BluetoothDevice fast = newDevice(1);
+        BluetoothDevice slow = newDevice(2);
+        for (int time = 0; time <= 1000 * 60; time += 100) {
+            if ((time % 700) != 0) {
+                scanner.onScanResult(fast, -60, null);
+            }
+            if ((time % (1000 * 10)) == 0) {
+                scanner.onScanResult(slow, -60, null);
+            }
+            clock.addAndGet(100);
+        }
+
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> caches = scanner.getExistDeviceCaches();
+        assertEquals(caches.size(), 2);
+        BluetoothDeviceScanner.BluetoothDeviceCache slowCache = caches.get(0);
+        BluetoothDeviceScanner.BluetoothDeviceCache fastCache = caches.get(1);
+        assertEquals(fastCache.getAddress(), fast.getAddress());
+        assertTrue(Math.abs(fastCache.getAdvertisingIntervalMs() - 100) <= 20);
+        assertEquals(fastCache.getExistCacheTimeMs(), 1000L);
+        assertTrue(Math.abs(slowCache.getAdvertisingIntervalMs() - 1000 * 10) <= 100);
+        assertTrue(slowCache.getExistCacheTimeMs() > 1000 * 15);
+
+        // 短い間隔のデバイスはすぐに失効する
+        clock.addAndGet(1000);
+        caches = scanner.getExistDeviceCaches();
+        assertEquals(caches.size(), 1);
+        assertEquals(caches.get(0).getAddress(), slow.getAddress());
+
+        // 長い間隔のデバイスは共通の有効時間を過ぎても失効しない
+        clock.addAndGet(1000 * 20);
+        assertEquals(scanner.getExistDeviceCaches().size(), 1);
+
+        // 無効化すると共通の有効時間に戻る
+        scanner.setAdaptiveExpiry(0, 0, 0);
+        assertEquals(scanner.getExistDeviceCaches().size(), 0);
+    }
+
+    @Test
+    public void 上限を超えたキャッシュは古いものから削除される() throws Exception {
+        AtomicLong clock = new AtomicLong(1000 * 1000);
+        BluetoothDeviceScanner scanner = newScanner();
+        scanner.setClock(clock::get);
+        scanner.setMetricsEnabled(true);
+        scanner.setCacheCapacity(10, 0, BluetoothDeviceScanner.CacheEvictionPolicy.LeastRecentlySeen);
+        scanner.setPinnedDevices(Arrays.asList(newDevice(0).getAddress()));
+
+        for (int i = 0; i < 20; ++i) {
+            scanner.onScanResult(newDevice(i), -60, null);
+            // 最初のデバイスは受信し続ける
+            scanner.onScanResult(newDevice(1), -60, null);
+            clock.addAndGet(100);
+        }
+
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> caches = scanner.getExistDeviceCaches();
+        assertEquals(caches.size(), 10);
+        assertEquals(caches.get(0).getAddress(), newDevice(0).getAddress());
+        assertEquals(caches.get(1).getAddress(), newDevice(1).getAddress());
+        for (int i = 2; i < 10; ++i) {
+            assertEquals(caches.get(i).getAddress(), newDevice(10 + i).getAddress());
+        }
+        assertEquals(scanner.getScanMetrics().getCapacityEvictedCount(), 10L);
+        assertEquals(scanner.getScanMetrics().getEvictedCount(), 0L);
+
+        // 上限を下げると直ちに削除される
+        scanner.setCacheCapacity(3, 0, BluetoothDeviceScanner.CacheEvictionPolicy.LeastRecentlySeen);
+        caches = scanner.getExistDeviceCaches();
+        assertEquals(caches.size(), 3);
+        assertEquals(caches.get(0).getAddress(), newDevice(0).getAddress());
+        assertEquals(caches.get(1).getAddress(), newDevice(1).getAddress());
+        assertEquals(caches.get(2).getAddress(), newDevice(19).getAddress());
+    }
+
+    @Test
+    public void 上限を超えたキャッシュは弱いものから削除される() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        CountListener listener = new CountListener();
+        scanner.addScanListener(listener);
+        scanner.setCacheCapacity(5, 0, BluetoothDeviceScanner.CacheEvictionPolicy.WeakestRssi);
+        scanner.setPinnedDevices(Arrays.asList(newDevice(9).getAddress()));
+
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(newDevice(i), -50 - i * 5, null);
+        }
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> caches = scanner.getNearestDevices(10);
+        assertEquals(caches.size(), 5);
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(caches.get(i).getAddress(), newDevice(i).getAddress());
+        }
+        assertEquals(caches.get(4).getAddress(), newDevice(9).getAddress());
+
+        // 上限の中で最も弱い新規デバイスは通知されない
+        assertEquals(listener.mAddresses.size(), 6);
+        scanner.onScanResult(newDevice(10), -100, null);
+        assertEquals(listener.mAddresses.size(), 6);
+        assertEquals(scanner.getExistDeviceCaches().size(), 5);
+    }
+
+    @Test
+    public void 送信出力に関わらずRSSIの弱いものから削除される() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        scanner.setCacheCapacity(2, 0, BluetoothDeviceScanner.CacheEvictionPolicy.WeakestRssi);
+
+        // 送信出力の弱いビーコンは、RSSIが弱くても近くにあると推定される
+        scanner.onScanResult(newDevice(0), -70, BluetoothScanFilterTest.BEACON_RECORD);
+        BluetoothDeviceScanner.BluetoothDeviceCache beacon = scanner.getExistDeviceCaches().get(0);
+        beacon.parseBeacon();
+        scanner.onScanResult(newDevice(0), -70, BluetoothScanFilterTest.BEACON_RECORD);
+        scanner.onScanResult(newDevice(1), -68, null);
+        assertEquals(scanner.getNearestDevice().getAddress(), newDevice(0).getAddress());
+
+        scanner.onScanResult(newDevice(2), -60, null);
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> caches = scanner.getExistDeviceCaches();
+        assertEquals(caches.size(), 2);
+        assertEquals(caches.get(0).getAddress(), newDevice(1).getAddress());
+        assertEquals(caches.get(1).getAddress(), newDevice(2).getAddress());
+    }
+
+    @Test
+    public void 保持するメモリの上限を指定できる() throws Exception {
+        AtomicLong clock = new AtomicLong(1000 * 1000);
+        BluetoothDeviceScanner scanner = newScanner();
+        scanner.setClock(clock::get);
+        scanner.setMetricsEnabled(true);
+        final long maxBytes = BluetoothDeviceScanner.estimateRetainedBytes(BluetoothScanFilterTest.BEACON_RECORD) * 3;
+        scanner.setCacheCapacity(0, maxBytes, BluetoothDeviceScanner.CacheEvictionPolicy.LeastRecentlySeen);
+
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(newDevice(i), -60, null);
+            clock.addAndGet(100);
+        }
+        assertEquals(scanner.getExistDeviceCaches().size(), 3);
+
+        // アドバタイズが大きくなれば保持数が減る
+        for (int i = 7; i < 10; ++i) {
+            scanner.onScanResult(newDevice(i), -60, BluetoothScanFilterTest.BEACON_RECORD);
+            clock.addAndGet(100);
+        }
+        scanner.onScanResult(newDevice(10), -60, null);
+        assertEquals(scanner.getExistDeviceCaches().size(), 3);
+        assertTrue(scanner.getScanMetrics().getRetainedBytes() <= maxBytes);
+        assertEquals(scanner.getScanMetrics().getCapacityEvictedCount(), 8L);
+    }
+
+    @Test
+    public void キャッシュ有効時間の変更が反映される() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        for (int i = 0; i < 100; ++i) {
+            scanner.onScanResult(newDevice(i), -60, null);
+        }
+        assertEquals(scanner.getExistDeviceCaches().size(), 100);
+
+        // 有効時間を0にすると全て失効する
+        scanner.setExistCacheTimeMs(0);
+        assertEquals(scanner.getExistDeviceCaches().size(), 0);
+
+        scanner.setExistCacheTimeMs(1000 * 60);
+        scanner.onScanResult(newDevice(0), -60, null);
+        assertEquals(scanner.getExistDeviceCaches().size(), 1);
+    }
+
+    @Test
+    public void リスナは専用スレッドから呼び出される() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        final Thread ingestThread = Thread.currentThread();
+        final AtomicInteger found = new AtomicInteger();
+        final AtomicInteger updated = new AtomicInteger();
+        final AtomicBoolean otherThread = new AtomicBoolean(true);
+        scanner.setScanListener(new BluetoothDeviceScanner.DeviceScanListener() {
+            @Override
+            public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                otherThread.compareAndSet(true, Thread.currentThread() != ingestThread);
+                found.incrementAndGet();
+            }
+
+            @Override
+            public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                otherThread.compareAndSet(true, Thread.currentThread() != ingestThread);
+                updated.incrementAndGet();
+            }
+
+            @Override
+            public void onScanTimeout(BluetoothDeviceScanner self) {
+            }
+        });
+
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(newDevice(i % 2), -60, null);
+        }
+
+        long timeout = System.currentTimeMillis() + 1000 * 5;
+        while (found.get() + updated.get() < 10 && System.currentTimeMillis() < timeout) {
+            Util.sleep(1);
+        }
+        scanner.stopScan();
+
+        assertEquals(found.get(), 2);
+        assertEquals(updated.get(), 8);
+        assertTrue(otherThread.get());
+        assertEquals(scanner.getDroppedEventCount(), 0);
+    }
+
+    @Test
+    public void 更新通知が一定間隔でまとめられる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        AtomicLong clock = new AtomicLong(0);
+        scanner.setClock(clock::get);
+        scanner.setUpdateCoalesceTimeMs(100);
+
+        final AtomicInteger found = new AtomicInteger();
+        final List<List<BluetoothDeviceScanner.BluetoothDeviceCache>> batches = new ArrayList<>();
+        scanner.setScanListener(new BluetoothDeviceScanner.DeviceScanListener() {
+            @Override
+            public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                found.incrementAndGet();
+            }
+
+            @Override
+            public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                fail();
+            }
+
+            @Override
+            public void onDevicesUpdated(BluetoothDeviceScanner self, List<BluetoothDeviceScanner.BluetoothDeviceCache> devices) {
+                batches.add(devices);
+            }
+
+            @Override
+            public void onScanTimeout(BluetoothDeviceScanner self) {
+            }
+        });
+
+        for (int i = 0; i < 100; ++i) {
+            scanner.onScanResult(newDevice(i % 4), -60, null);
+        }
+        assertEquals(found.get(), 4);
+        assertEquals(batches.size(), 0);
+
+        // 間隔経過後の受信で、デバイスごとに1件へまとめて通知される
+        clock.addAndGet(150);
+        scanner.onScanResult(newDevice(0), -60, null);
+        assertEquals(batches.size(), 1);
+        assertEquals(batches.get(0).size(), 4);
+    }
+
+    @Test
+    public void RSSIのみの更新も一定間隔でまとめられる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        AtomicLong clock = new AtomicLong(0);
+        scanner.setClock(clock::get);
+        scanner.setUpdateCoalesceTimeMs(100);
+        scanner.setRssiOnlyUpdateEnabled(true);
+
+        final List<List<BluetoothDeviceScanner.BluetoothDeviceCache>> batches = new ArrayList<>();
+        final List<List<BluetoothDeviceScanner.BluetoothDeviceCache>> rssiBatches = new ArrayList<>();
+        scanner.setScanListener(new CountListener() {
+            @Override
+            public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                fail();
+            }
+
+            @Override
+            public void onDeviceRssiUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                fail();
+            }
+
+            @Override
+            public void onDevicesUpdated(BluetoothDeviceScanner self, List<BluetoothDeviceScanner.BluetoothDeviceCache> devices) {
+                batches.add(devices);
+            }
+
+            @Override
+            public void onDevicesRssiUpdated(BluetoothDeviceScanner self, List<BluetoothDeviceScanner.BluetoothDeviceCache> devices) {
+                rssiBatches.add(devices);
+            }
+        });
+
+        byte[] changed = BluetoothScanFilterTest.BEACON_RECORD.clone();
+        changed[changed.length - 1] = 0x01;
+        for (int i = 0; i < 4; ++i) {
+            scanner.onScanResult(newDevice(i), -60, BluetoothScanFilterTest.BEACON_RECORD);
+        }
+        for (int i = 0; i < 100; ++i) {
+            scanner.onScanResult(newDevice(i % 4), -60 - (i % 10), BluetoothScanFilterTest.BEACON_RECORD);
+        }
+        // 1度でもペイロードが変化したデバイスは通常の更新となる
+        scanner.onScanResult(newDevice(0), -60, changed);
+        assertEquals(batches.size(), 0);
+        assertEquals(rssiBatches.size(), 0);
+
+        clock.addAndGet(150);
+        scanner.onScanResult(newDevice(1), -60, BluetoothScanFilterTest.BEACON_RECORD);
+        assertEquals(batches.size(), 1);
+        assertEquals(batches.get(0).size(), 1);
+        assertEquals(batches.get(0).get(0).getAddress(), newDevice(0).getAddress());
+        assertEquals(rssiBatches.size(), 1);
+        assertEquals(rssiBatches.get(0).size(), 3);
+    }
+
+    @Test
+    public void ペイロードが変化しない受信はRSSIのみの更新となる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        scanner.setRssiOnlyUpdateEnabled(true);
+
+        final AtomicInteger updated = new AtomicInteger();
+        final AtomicInteger rssiUpdated = new AtomicInteger();
+        scanner.setScanListener(new BluetoothDeviceScanner.DeviceScanListener() {
+            @Override
+            public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+            }
+
+            @Override
+            public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                updated.incrementAndGet();
+            }
+
+            @Override
+            public void onDeviceRssiUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                rssiUpdated.incrementAndGet();
+            }
+
+            @Override
+            public void onScanTimeout(BluetoothDeviceScanner self) {
+            }
+        });
+
+        final byte[] record = BluetoothScanFilterTest.HEARTRATE_RECORD;
+        scanner.onScanResult(newDevice(0), -60, record);
+        BluetoothDeviceScanner.BluetoothDeviceCache cache = scanner.getNearestDevice();
+        assertTrue(cache.isPayloadChanged());
+
+        // 内容が同じであれば、別の配列でもRSSIのみの更新となる
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(newDevice(0), -60 - i, record.clone());
+        }
+        assertEquals(updated.get(), 0);
+        assertEquals(rssiUpdated.get(), 10);
+        assertFalse(cache.isPayloadChanged());
+        assertTrue(cache.getScanRecord() == record);
+        assertEquals(cache.getRssi(), -69);
+
+        byte[] changed = record.clone();
+        changed[changed.length - 1] = 0x01;
+        scanner.onScanResult(newDevice(0), -60, changed);
+        assertEquals(updated.get(), 1);
+        assertTrue(cache.isPayloadChanged());
+        assertTrue(cache.getScanRecord() == changed);
+    }
+
+    @Test
+    public void 負荷状況を取得できる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        assertNull(scanner.getScanMetrics());
+
+        final AtomicLong wallClock = new AtomicLong(1000L * 60 * 60 * 24);
+        final AtomicLong monotonicClock = new AtomicLong(0);
+        scanner.setClock(new BluetoothClock() {
+            @Override
+            public long currentTimeMillis() {
+                return wallClock.get();
+            }
+
+            @Override
+            public long nanoTime() {
+                return monotonicClock.get() * 1000 * 1000;
+            }
+        });
+
+        scanner.setMetricsEnabled(true);
+        scanner.setScanFilters(new BluetoothScanFilter().setManufacturerId(0x004C));
+        for (int i = 0; i < 100; ++i) {
+            scanner.onScanResult(newDevice(i % 10), -60, BluetoothScanFilterTest.HEARTRATE_RECORD);
+        }
+        scanner.onScanResult(newDevice(100), -60, null);
+
+        // 受信レートは端末の時刻設定の変更に影響されない
+        wallClock.addAndGet(-1000L * 60 * 60);
+        monotonicClock.addAndGet(1000);
+
+        BluetoothScanMetrics metrics = scanner.getScanMetrics();
+        assertEquals(metrics.getAdvertisementCount(), 101);
+        assertEquals(metrics.getElapsedTimeMs(), 1000L);
+        assertEquals(metrics.getAdvertisementsPerSecond(), 101.0, 0.001);
+        assertEquals(metrics.getFilteredCount(), 1);
+        assertEquals(metrics.getFoundCount(), 10);
+        assertEquals(metrics.getUpdatedCount(), 90);
+        assertEquals(metrics.getCacheSize(), 10);
+        assertTrue(metrics.getRetainedBytes() > 10 * BluetoothScanFilterTest.HEARTRATE_RECORD.length);
+        assertEquals(metrics.getIngestLatency().getCount(), 101);
+        assertEquals(metrics.getDispatchLatency().getCount(), 100);
+        assertTrue(metrics.getIngestLatency().getPercentileNs(50) <= metrics.getIngestLatency().getMaxNs());
+
+        // 失効したキャッシュは削除数に含まれる
+        scanner.setExistCacheTimeMs(0);
+        scanner.cleanDeviceCaches();
+        metrics = scanner.getScanMetrics();
+        assertEquals(metrics.getEvictedCount(), 10);
+        assertEquals(metrics.getCacheSize(), 0);
+
+        scanner.resetScanMetrics();
+        assertEquals(scanner.getScanMetrics().getAdvertisementCount(), 0);
+
+        scanner.setMetricsEnabled(false);
+        assertNull(scanner.getScanMetrics());
+    }
+
+    @Test
+    public void スナップショットの差分を取得できる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        for (int i = 0; i < 5; ++i) {
+            scanner.onScanResult(newDevice(i), -60, null);
+        }
+        assertEquals(scanner.getScanSnapshot().size(), 0);
+
+        // 有効化した時点のキャッシュが反映される
+        scanner.setScanSnapshotEnabled(true);
+        BluetoothScanSnapshot first = scanner.getScanSnapshot();
+        assertEquals(first.size(), 5);
+        assertEquals(first.getDevices().get(0).getAddress(), newDevice(0).getAddress());
+
+        scanner.onScanResult(newDevice(1), -70, null);
+        scanner.onScanResult(newDevice(5), -60, null);
+        scanner.remove(newDevice(2));
+
+        BluetoothScanSnapshot snapshot = scanner.getScanSnapshot();
+        assertTrue(snapshot.getVersion() > first.getVersion());
+        assertEquals(snapshot.size(), 5);
+
+        // 公開済みのスナップショットは変化しない
+        assertEquals(first.size(), 5);
+        assertEquals(first.get(newDevice(1).getAddress()).getRssi(), -60);
+        assertEquals(snapshot.get(newDevice(1).getAddress()).getRssi(), -70);
+
+        BluetoothScanSnapshot.Delta delta = snapshot.getChangesSince(first.getVersion());
+        assertFalse(delta.isFull());
+        assertEquals(delta.getUpdated().size(), 2);
+        assertEquals(delta.getRemoved().size(), 1);
+        assertEquals(delta.getRemoved().get(0), newDevice(2).getAddress());
+        assertTrue(snapshot.getChangesSince(snapshot.getVersion()).isEmpty());
+
+        // 再有効化前のバージョンからは全件となる
+        scanner.setScanSnapshotEnabled(false);
+        scanner.setScanSnapshotEnabled(true);
+        assertTrue(scanner.getScanSnapshot().getChangesSince(snapshot.getVersion()).isFull());
+    }
+
+    @Test
+    public void 追加と削除を繰り返してもスナップショットと差分が一致する() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        scanner.setScanSnapshotEnabled(true);
+        Random random = new Random(0);
+
+        Map<String, Integer> expected = new HashMap<>();
+        BluetoothScanSnapshot base = scanner.getScanSnapshot();
+        Map<String, Integer> baseDevices = new HashMap<>();
+        for (int i = 0; i < 20000; ++i) {
+            BluetoothDevice device = newDevice(random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                scanner.remove(device);
+                expected.remove(device.getAddress());
+            } else {
+                final int rssi = -40 - random.nextInt(50);
+                scanner.onScanResult(device, rssi, null);
+                expected.put(device.getAddress(), rssi);
+            }
+
+            if (i == 19000) {
+                base = scanner.getScanSnapshot();
+                baseDevices = new HashMap<>(expected);
+            }
+        }
+
+        BluetoothScanSnapshot snapshot = scanner.getScanSnapshot();
+        assertEquals(snapshot.size(), expected.size());
+        assertEquals(snapshot.getDevices().size(), expected.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(snapshot.get(entry.getKey()).getRssi(), (int) entry.getValue());
+        }
+
+        // 公開済みのスナップショットは変化しない
+        assertEquals(base.size(), baseDevices.size());
+        for (Map.Entry<String, Integer> entry : baseDevices.entrySet()) {
+            assertEquals(base.get(entry.getKey()).getRssi(), (int) entry.getValue());
+        }
+
+        // 差分を適用すると最新の内容と一致する
+        BluetoothScanSnapshot.Delta delta = snapshot.getChangesSince(base.getVersion());
+        assertFalse(delta.isFull());
+        for (String address : delta.getRemoved()) {
+            baseDevices.remove(address);
+        }
+        for (BluetoothDeviceSnapshot device : delta.getUpdated()) {
+            baseDevices.put(device.getAddress(), device.getRssi());
+        }
+        assertEquals(baseDevices, expected);
+    }
+
+    static class CountListener implements BluetoothDeviceScanner.DeviceScanListener {
+        final List<String> mAddresses = new ArrayList<>();
+
+        @Override
+        public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+            mAddresses.add(device.getAddress());
+        }
+
+        @Override
+        public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+            mAddresses.add(device.getAddress());
+        }
+
+        @Override
+        public void onScanTimeout(BluetoothDeviceScanner self) {
+        }
+    }
+
+    @Test
+    public void 条件に一致するリスナのみに通知される() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        CountListener all = new CountListener();
+        CountListener beacon = new CountListener();
+        CountListener heartrate = new CountListener();
+        CountListener address = new CountListener();
+        scanner.addScanListener(all);
+        scanner.addScanListener(beacon, new BluetoothScanFilter().setBeacon(BluetoothScanFilterTest.BEACON_UUID, 1, 2));
+        scanner.addScanListener(heartrate,
+                new BluetoothScanFilter().setServiceUuid(BluetoothLeUtil.BLE_UUID_HEARTRATE_SERVICE).setMinRssi(-70),
+                new BluetoothScanFilter().setManufacturerId(0x0075)
+        );
+        scanner.addScanListener(address, new BluetoothScanFilter().setDeviceAddress(newDevice(0).getAddress()));
+
+        scanner.onScanResult(newDevice(0), -60, BluetoothScanFilterTest.BEACON_RECORD);
+        scanner.onScanResult(newDevice(1), -60, BluetoothScanFilterTest.HEARTRATE_RECORD);
+        scanner.onScanResult(newDevice(2), -80, BluetoothScanFilterTest.HEARTRATE_RECORD);
+        scanner.onScanResult(newDevice(3), -60, null);
+
+        assertEquals(all.mAddresses.size(), 4);
+        assertEquals(beacon.mAddresses, Arrays.asList(newDevice(0).getAddress()));
+        assertEquals(heartrate.mAddresses, Arrays.asList(newDevice(1).getAddress()));
+        assertEquals(address.mAddresses, Arrays.asList(newDevice(0).getAddress()));
+
+        // 削除したリスナには通知されない
+        scanner.removeScanListener(beacon);
+        scanner.onScanResult(newDevice(0), -60, BluetoothScanFilterTest.BEACON_RECORD);
+        assertEquals(beacon.mAddresses.size(), 1);
+        assertEquals(address.mAddresses.size(), 2);
+    }
+
+    static class EventListener extends CountListener {
+        final List<String> mLostAddresses = new ArrayList<>();
+
+        @Override
+        public synchronized void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+            super.onDeviceFound(self, device);
+        }
+
+        @Override
+        public synchronized void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+            super.onDeviceUpdated(self, device);
+        }
+
+        @Override
+        public synchronized void onDeviceLost(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+            mLostAddresses.add(device.getAddress());
+        }
+
+        synchronized List<String> getAddresses() {
+            return new ArrayList<>(mAddresses);
+        }
+    }
+
+    @Test
+    public void 削除したリスナの位置へ追加したリスナには以前のデバイスが通知されない() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        EventListener removed = new EventListener();
+        scanner.addScanListener(removed);
+        scanner.onScanResult(newDevice(0), -60, null);
+        scanner.removeScanListener(removed);
+
+        // 同じ位置へ追加したリスナへ、発見を通知していないデバイスの失効は通知されない
+        EventListener added = new EventListener();
+        scanner.addScanListener(added);
+        scanner.setExistCacheTimeMs(0);
+        scanner.cleanDeviceCaches();
+        assertEquals(removed.mLostAddresses.size(), 0);
+        assertEquals(added.mLostAddresses.size(), 0);
+    }
+
+    @Test
+    public void 削除したリスナの位置へ追加したリスナには配送待ちのイベントが通知されない() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(true);
+
+        // 配送スレッドを止め、イベントを溜める
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger updated = new AtomicInteger();
+        scanner.setScanListener(new CountListener() {
+            @Override
+            public void onDeviceFound(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public void onDeviceUpdated(BluetoothDeviceScanner self, BluetoothDeviceScanner.BluetoothDeviceCache device) {
+                updated.incrementAndGet();
+            }
+        });
+
+        EventListener removed = new EventListener();
+        scanner.addScanListener(removed);
+        scanner.onScanResult(newDevice(0), -60, null);
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; ++i) {
+            scanner.onScanResult(newDevice(0), -60 - i, null);
+        }
+
+        EventListener added = new EventListener();
+        scanner.removeScanListener(removed);
+        scanner.addScanListener(added);
+        release.countDown();
+
+        // 追加後に発見したデバイスのみが通知される
+        scanner.onScanResult(newDevice(1), -60, null);
+        long timeout = System.currentTimeMillis() + 1000 * 5;
+        while (added.getAddresses().isEmpty() && System.currentTimeMillis() < timeout) {
+            Util.sleep(1);
+        }
+        assertEquals(updated.get(), 5);
+        assertEquals(added.getAddresses(), Arrays.asList(newDevice(1).getAddress()));
+        assertTrue(removed.getAddresses().size() <= 1);
+        scanner.stopScan();
+    }
+
+    @Test
+    public void 距離の近い順にデバイスが取得できる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        for (int i = 0; i < 100; ++i) {
+            scanner.onScanResult(newDevice(i), -100 + (i % 50), null);
+        }
+        assertNull(newScanner().getNearestDevice());
+
+        // 電波強度の強い順に並ぶ
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> nearest = scanner.getNearestDevices(4);
+        assertEquals(nearest.size(), 4);
+        assertEquals(nearest.get(0).getRssi(), -51);
+        assertEquals(nearest.get(1).getRssi(), -51);
+        assertEquals(nearest.get(2).getRssi(), -52);
+        assertEquals(nearest.get(3).getRssi(), -52);
+
+        // 遠ざかったデバイスは後ろへ移動する
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(newDevice(49), -100, null);
+        }
+        assertEquals(scanner.getNearestDevice().getAddress(), newDevice(99).getAddress());
+        assertEquals(scanner.getNearestDevices(1000).size(), 100);
+
+        // ソート結果と一致する
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> sorted = BluetoothDeviceScanner.sortNearDevices(scanner.getExistDeviceCaches());
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> indexed = scanner.getNearestDevices(100);
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(sorted.get(i).calcDeviceDistanceMeter(true), indexed.get(i).calcDeviceDistanceMeter(true), 0.0001);
+        }
+
+        scanner.remove(newDevice(99));
+        assertEquals(scanner.getNearestDevices(1000).size(), 99);
+        assertEquals(scanner.getNearestDevice().getRssi(), -52);
+    }
+
+    @Test
+    public void 追加と削除を繰り返しても距離順が維持される() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        Random random = new Random(0);
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 20000; ++i) {
+            BluetoothDevice device = newDevice(random.nextInt(500));
+            if (random.nextInt(4) == 0) {
+                scanner.remove(device);
+                expected.remove(device.getAddress());
+            } else {
+                scanner.onScanResult(device, -40 - random.nextInt(60), null);
+                expected.add(device.getAddress());
+            }
+        }
+
+        List<BluetoothDeviceScanner.BluetoothDeviceCache> indexed = scanner.getNearestDevices(1000);
+        assertEquals(indexed.size(), expected.size());
+        Set<String> addresses = new HashSet<>();
+        for (int i = 0; i < indexed.size(); ++i) {
+            addresses.add(indexed.get(i).getAddress());
+            if (i > 0) {
+                assertTrue(indexed.get(i - 1).nearDistanceMeter <= indexed.get(i).nearDistanceMeter);
+            }
+        }
+        assertEquals(addresses, expected);
+    }
+
+    @Test
+    public void 端末の時刻が変更されても失効時間は変わらない() throws Exception {
+        AtomicLong wallClock = new AtomicLong(1000 * 1000);
+        AtomicLong monotonicClock = new AtomicLong(0);
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        scanner.setExistCacheTimeMs(1000 * 10);
+        scanner.setClock(new BluetoothClock() {
+            @Override
+            public long currentTimeMillis() {
+                return wallClock.get();
+            }
+
+            @Override
+            public long nanoTime() {
+                return monotonicClock.get();
+            }
+        });
+
+        scanner.onScanResult(newDevice(0), -60, null);
+        assertEquals(scanner.getExistDeviceCaches().get(0).getUpdatedDate().getTime(), 1000L * 1000);
+
+        // 時刻が進んでも、経過時間が有効時間内であれば失効しない
+        wallClock.addAndGet(1000 * 60 * 60);
+        monotonicClock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        scanner.cleanDeviceCaches();
+        assertEquals(scanner.getExistDeviceCaches().size(), 1);
+
+        // 時刻が戻っても、経過時間が有効時間を過ぎれば失効する
+        wallClock.addAndGet(-1000 * 60 * 60 * 2);
+        monotonicClock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        scanner.cleanDeviceCaches();
+        assertEquals(scanner.getExistDeviceCaches().size(), 0);
+    }
+
+    /**
+     * キャッシュ件数が増えてもアドバタイズ受信1件あたりのコストがほぼ変わらないことを確認する
+     */
+    @Test
+    public void キャッシュ件数に対して受信コストが増加しない() throws Exception {
+        final int UPDATE_COUNT = 200000;
+        final long smallCostNs = benchmarkScanResult(100, UPDATE_COUNT);
+        final long largeCostNs = benchmarkScanResult(10000, UPDATE_COUNT);
+
+        BleLog.debug("scan result cost :: 100 devices[%d ns] 10000 devices[%d ns]", smallCostNs, largeCostNs);
+
+        // 線形走査であれば100倍となるため、十分に余裕を持たせて確認する
+        assertTrue(largeCostNs < smallCostNs * 10);
+    }
+
+    long benchmarkScanResult(int deviceNum, int updateCount) {
+        BluetoothDeviceScanner scanner = newScanner();
+        BluetoothDevice[] devices = new BluetoothDevice[deviceNum];
+        for (int i = 0; i < deviceNum; ++i) {
+            devices[i] = newDevice(i);
+            scanner.onScanResult(devices[i], -60, null);
+        }
+
+        // warm up
+        for (int i = 0; i < updateCount; ++i) {
+            scanner.onScanResult(devices[i % deviceNum], -60 - (i % 10), null);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < updateCount; ++i) {
+            scanner.onScanResult(devices[i % deviceNum], -60 - (i % 10), null);
+        }
+        return (System.nanoTime() - start) / updateCount;
+    }
+}
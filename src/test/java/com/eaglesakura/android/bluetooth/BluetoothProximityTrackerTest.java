@@ -0,0 +1,197 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.BluetoothDeviceCache;
+import com.eaglesakura.android.bluetooth.BluetoothProximityTracker.Bands;
+import com.eaglesakura.android.bluetooth.BluetoothProximityTracker.Zone;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BluetoothProximityTrackerTest extends UnitTestCase {
+
+    static class ZoneRecorder implements BluetoothProximityTracker.ZoneListener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onZoneChanged(BluetoothProximityTracker self, BluetoothDeviceCache device, Zone oldZone, Zone newZone) {
+            mEvents.add(oldZone + ">" + newZone);
+        }
+    }
+
+    BluetoothDeviceCache newCache(BluetoothDeviceScanner scanner, int index) {
+        return newCache(scanner, index, null);
+    }
+
+    BluetoothDeviceCache newCache(BluetoothDeviceScanner scanner, int index, byte[] scanRecord) {
+        final String address = BluetoothDeviceScannerTest.newDevice(index).getAddress();
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(index), -60, scanRecord);
+        for (BluetoothDeviceCache cache : scanner.getExistDeviceCaches()) {
+            if (cache.getAddress().equals(address)) {
+                return cache;
+            }
+        }
+        return null;
+    }
+
+    void sample(BluetoothProximityTracker tracker, BluetoothDeviceCache cache, double distanceMeter, long timeMs) {
+        cache.nearDistanceMeter = distanceMeter;
+        cache.updatedUptimeMs = timeMs;
+        tracker.onSample(cache);
+    }
+
+    @Test
+    public void 境界付近の揺らぎでは圏域が変化しない() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        BluetoothDeviceCache cache = newCache(scanner, 0);
+
+        BluetoothProximityTracker tracker = new BluetoothProximityTracker(new Bands(2.0, 6.0, 0.5, 0));
+        ZoneRecorder recorder = new ZoneRecorder();
+        tracker.setListener(recorder);
+
+        sample(tracker, cache, 1.0, 0);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Near);
+
+        // ヒステリシス幅の中で揺らいでも変化しない
+        for (int i = 0; i < 10; ++i) {
+            sample(tracker, cache, (i % 2 == 0) ? 2.4 : 1.8, i);
+        }
+        assertEquals(recorder.mEvents.size(), 1);
+
+        sample(tracker, cache, 2.6, 100);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Mid);
+
+        // 中距離から戻るには境界を下回る必要がある
+        sample(tracker, cache, 1.6, 101);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Mid);
+        sample(tracker, cache, 1.4, 102);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Near);
+
+        sample(tracker, cache, 10.0, 103);
+        sample(tracker, cache, 5.6, 104);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Far);
+
+        assertEquals(recorder.mEvents.toString(), "[Unknown>Near, Near>Mid, Mid>Near, Near>Far]");
+    }
+
+    @Test
+    public void 滞在時間を満たすまで変化を通知しない() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        BluetoothDeviceCache cache = newCache(scanner, 0);
+
+        BluetoothProximityTracker tracker = new BluetoothProximityTracker(new Bands(2.0, 6.0, 0, 1000));
+        ZoneRecorder recorder = new ZoneRecorder();
+        tracker.setListener(recorder);
+
+        sample(tracker, cache, 1.0, 0);
+        sample(tracker, cache, 1.0, 999);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Unknown);
+        sample(tracker, cache, 1.0, 1000);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Near);
+
+        // 一時的に離れても、滞在時間内に戻れば通知されない
+        sample(tracker, cache, 4.0, 2000);
+        sample(tracker, cache, 1.0, 2500);
+        sample(tracker, cache, 4.0, 3000);
+        sample(tracker, cache, 4.0, 3999);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Near);
+        sample(tracker, cache, 4.0, 4000);
+        assertEquals(tracker.getZone(cache.getAddress()), Zone.Mid);
+
+        assertEquals(recorder.mEvents.toString(), "[Unknown>Near, Near>Mid]");
+    }
+
+    @Test
+    public void デバイスとビーコンごとに圏域を指定できる() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        BluetoothDeviceCache beacon = newCache(scanner, 1, BluetoothScanFilterTest.BEACON_RECORD);
+        BluetoothDeviceCache device = newCache(scanner, 2);
+        BluetoothDeviceCache other = newCache(scanner, 3);
+
+        BluetoothProximityTracker tracker = new BluetoothProximityTracker(new Bands(2.0, 6.0, 0, 0));
+        tracker.setBeaconBands(BluetoothScanFilterTest.BEACON_UUID, 1, BluetoothScanFilter.BEACON_VALUE_NONE, new Bands(0.5, 1.0, 0, 0));
+        tracker.setDeviceBands(device.getAddress(), new Bands(10.0, 20.0, 0, 0));
+
+        sample(tracker, beacon, 3.0, 0);
+        sample(tracker, device, 3.0, 0);
+        sample(tracker, other, 3.0, 0);
+        assertEquals(tracker.getZone(beacon.getAddress()), Zone.Far);
+        assertEquals(tracker.getZone(device.getAddress()), Zone.Near);
+        assertEquals(tracker.getZone(other.getAddress()), Zone.Mid);
+
+        // 設定の変更は次の受信から反映される
+        tracker.setDeviceBands(device.getAddress(), null);
+        sample(tracker, device, 3.0, 1);
+        assertEquals(tracker.getZone(device.getAddress()), Zone.Mid);
+    }
+
+    @Test
+    public void スキャナから受信して失効時に圏外となる() throws Exception {
+        AtomicLong clock = new AtomicLong(1000 * 1000);
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        scanner.setClock(clock::get);
+
+        BluetoothProximityTracker tracker = new BluetoothProximityTracker(new Bands(0.0, 1000.0, 0, 0));
+        ZoneRecorder recorder = new ZoneRecorder();
+        tracker.setListener(recorder);
+        scanner.addScanListener(tracker);
+
+        for (int i = 0; i < 100; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -60, null);
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -61, null);
+        }
+        assertEquals(tracker.getTrackingDeviceCount(), 100);
+        assertEquals(recorder.mEvents.size(), 100);
+        assertEquals(tracker.getZone(BluetoothDeviceScannerTest.newDevice(0).getAddress()), Zone.Mid);
+
+        clock.addAndGet(1000 * 60 * 60);
+        scanner.cleanDeviceCaches();
+        assertEquals(tracker.getTrackingDeviceCount(), 0);
+        assertEquals(recorder.mEvents.size(), 200);
+        assertEquals(recorder.mEvents.get(199), "Mid>Unknown");
+    }
+
+    @Test
+    public void 端末の時刻が変更されても滞在時間は変わらない() throws Exception {
+        AtomicLong wallClock = new AtomicLong(1000 * 1000);
+        AtomicLong monotonicClock = new AtomicLong(0);
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        scanner.setClock(new BluetoothClock() {
+            @Override
+            public long currentTimeMillis() {
+                return wallClock.get();
+            }
+
+            @Override
+            public long nanoTime() {
+                return monotonicClock.get();
+            }
+        });
+
+        BluetoothProximityTracker tracker = new BluetoothProximityTracker(new Bands(0.0, 1000.0, 0, 1000));
+        scanner.addScanListener(tracker);
+        final String address = BluetoothDeviceScannerTest.newDevice(0).getAddress();
+
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -60, null);
+
+        // 時刻が進んでも、滞在時間を満たすまでは変化しない
+        wallClock.addAndGet(1000 * 60 * 60);
+        monotonicClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -61, null);
+        assertEquals(tracker.getZone(address), Zone.Unknown);
+
+        // 時刻が戻っても、滞在時間を満たせば変化する
+        wallClock.addAndGet(-1000 * 60 * 60 * 2);
+        monotonicClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -60, null);
+        assertEquals(tracker.getZone(address), Zone.Mid);
+    }
+}
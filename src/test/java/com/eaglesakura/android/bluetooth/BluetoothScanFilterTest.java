@@ -0,0 +1,65 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+public class BluetoothScanFilterTest extends UnitTestCase {
+
+    static final byte[] HEARTRATE_RECORD = {
+            0x02, 0x01, 0x06,               // flags
+            0x03, 0x03, 0x0D, 0x18,         // 16bit service uuid(0x180D)
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,  // manufacturer(0x004C)
+            0x00, 0x00,
+    };
+
+    static final UUID BEACON_UUID = UUID.fromString("00112233-4455-6677-8899-AABBCCDDEEFF");
+
+    /**
+     * iBeacon(major=1, minor=2)
+     */
+    static final byte[] BEACON_RECORD = {
+            0x02, 0x01, 0x06,                           // flags
+            0x1A, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,  // manufacturer(0x004C)
+            0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77,
+            (byte) 0x88, (byte) 0x99, (byte) 0xAA, (byte) 0xBB, (byte) 0xCC, (byte) 0xDD, (byte) 0xEE, (byte) 0xFF,
+            0x00, 0x01, 0x00, 0x02,                     // major, minor
+            (byte) 0xC5,                                // tx power
+    };
+
+    @Test
+    public void ビーコンと電波強度の条件を判定できる() throws Exception {
+        assertTrue(new BluetoothScanFilter().setBeacon(BEACON_UUID, 1, 2).matches("00:11:22:33:44:55", BEACON_RECORD));
+        assertTrue(new BluetoothScanFilter().setBeacon(BEACON_UUID, 1, BluetoothScanFilter.BEACON_VALUE_NONE).matches("00:11:22:33:44:55", BEACON_RECORD));
+        assertFalse(new BluetoothScanFilter().setBeacon(BEACON_UUID, 1, 3).matches("00:11:22:33:44:55", BEACON_RECORD));
+        assertFalse(new BluetoothScanFilter().setBeacon(UUID.randomUUID(), 1, 2).matches("00:11:22:33:44:55", BEACON_RECORD));
+        assertFalse(new BluetoothScanFilter().setBeacon(BEACON_UUID, 1, 2).matches("00:11:22:33:44:55", HEARTRATE_RECORD));
+
+        assertTrue(new BluetoothScanFilter().setMinRssi(-70).matches("00:11:22:33:44:55", -70, null));
+        assertFalse(new BluetoothScanFilter().setMinRssi(-70).matches("00:11:22:33:44:55", -71, null));
+
+        BluetoothScanFilter addresses = new BluetoothScanFilter().setDeviceAddresses(Arrays.asList("00:11:22:33:44:55", "00:11:22:33:44:aa"));
+        assertTrue(addresses.matches("00:11:22:33:44:AA", null));
+        assertFalse(addresses.matches("00:11:22:33:44:56", null));
+    }
+
+    @Test
+    public void 条件に一致するアドバタイズのみ通過する() throws Exception {
+        assertTrue(new BluetoothScanFilter().matches("00:11:22:33:44:55", null));
+
+        assertTrue(new BluetoothScanFilter().setDeviceAddress("00:11:22:33:44:55").matches("00:11:22:33:44:55", null));
+        assertFalse(new BluetoothScanFilter().setDeviceAddress("00:11:22:33:44:56").matches("00:11:22:33:44:55", null));
+
+        assertTrue(new BluetoothScanFilter()
+                .setServiceUuid(BluetoothLeUtil.BLE_UUID_HEARTRATE_SERVICE)
+                .setManufacturerId(0x004C)
+                .matches("00:11:22:33:44:55", HEARTRATE_RECORD));
+        assertFalse(new BluetoothScanFilter()
+                .setServiceUuid(BluetoothLeUtil.BLE_UUID_BATTERY_SERVICE)
+                .matches("00:11:22:33:44:55", HEARTRATE_RECORD));
+        assertFalse(new BluetoothScanFilter()
+                .setManufacturerId(0x0075)
+                .matches("00:11:22:33:44:55", HEARTRATE_RECORD));
+    }
+}
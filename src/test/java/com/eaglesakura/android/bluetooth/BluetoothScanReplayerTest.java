@@ -0,0 +1,153 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Test;
+
+import android.bluetooth.BluetoothAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BluetoothScanReplayerTest extends UnitTestCase {
+
+    /**
+     * 1秒ごとに10台のデバイスを受信した記録を作成する
+     */
+    byte[] record(int seconds, AtomicLong clock) throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        scanner.setClock(clock::get);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BluetoothScanRecorder recorder = new BluetoothScanRecorder(os);
+        scanner.setScanRecorder(recorder);
+        for (int sec = 0; sec < seconds; ++sec) {
+            for (int i = 0; i < 10; ++i) {
+                // 後半は半数のデバイスが消える
+                if (sec >= seconds / 2 && i >= 5) {
+                    continue;
+                }
+                scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -60 - i, i == 0 ? BluetoothScanFilterTest.BEACON_RECORD : null);
+            }
+            clock.addAndGet(1000);
+        }
+        scanner.setScanRecorder(null);
+        recorder.close();
+
+        assertNull(recorder.getError());
+        assertEquals(recorder.getRecordCount(), (long) (seconds / 2) * 10 + (seconds - seconds / 2) * 5);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void 記録したスキャン結果を記録時の時刻で再生できる() throws Exception {
+        final long startTimeMs = 1000L * 60 * 60 * 24 * 365;
+        byte[] data = record(60, new AtomicLong(startTimeMs));
+
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        BluetoothDeviceScannerTest.CountListener listener = new BluetoothDeviceScannerTest.CountListener();
+        scanner.addScanListener(listener, new BluetoothScanFilter().setBeacon(BluetoothScanFilterTest.BEACON_UUID, 1, 2));
+
+        BluetoothScanReplayer replayer = new BluetoothScanReplayer(new ByteArrayInputStream(data));
+        replayer.setSpeed(0);
+        assertEquals(replayer.replay(scanner), 450);
+
+        // 記録時の時刻で失効しているため、消えたデバイスはキャッシュされていない
+        assertEquals(scanner.getClock().currentTimeMillis(), startTimeMs + 59 * 1000);
+        assertEquals(scanner.getExistDeviceCaches().size(), 5);
+        assertEquals(scanner.getNearestDevice().getAddress(), BluetoothDeviceScannerTest.newDevice(0).getAddress());
+        assertEquals(scanner.getNearestDevice().getUpdatedDate().getTime(), startTimeMs + 59 * 1000);
+        assertEquals(listener.mAddresses.size(), 60);
+    }
+
+    @Test
+    public void 指定した速度で再生できる() throws Exception {
+        byte[] data = record(3, new AtomicLong(0));
+
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        BluetoothScanReplayer replayer = new BluetoothScanReplayer(new ByteArrayInputStream(data));
+        replayer.setSpeed(10);
+
+        // 2秒分の記録を10倍速で再生する
+        long start = System.currentTimeMillis();
+        assertEquals(replayer.replay(scanner), 20);
+        long time = System.currentTimeMillis() - start;
+        assertTrue(time >= 190);
+        assertTrue(time < 2000);
+    }
+
+    @Test
+    public void 指定した方法でデバイスを生成できる() throws Exception {
+        byte[] data = record(2, new AtomicLong(0));
+
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        BluetoothScanReplayer replayer = new BluetoothScanReplayer(new ByteArrayInputStream(data));
+        replayer.setSpeed(0);
+        final List<String> addresses = new ArrayList<>();
+        replayer.setDeviceFactory(address -> {
+            addresses.add(address);
+            return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        });
+
+        // 同じアドレスのデバイスは1回のみ生成される
+        assertEquals(replayer.replay(scanner), 15);
+        assertEquals(addresses.size(), 10);
+        assertEquals(addresses.get(0), BluetoothDeviceScannerTest.newDevice(0).getAddress());
+        assertEquals(scanner.getExistDeviceCaches().size(), 10);
+    }
+
+    @Test
+    public void 書き込みが遅くても受信を待たせない() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        OutputStream slowStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                os.write(b, off, len);
+            }
+        };
+
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        BluetoothScanRecorder recorder = new BluetoothScanRecorder(slowStream, 1000);
+        scanner.setScanRecorder(recorder);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5000; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i % 10), -60, null);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // 書き込み待ちとバッファが溢れた分は破棄される
+        latch.countDown();
+        scanner.setScanRecorder(null);
+        recorder.close();
+        assertNull(recorder.getError());
+        assertTrue(recorder.getDroppedCount() > 0);
+        assertEquals(recorder.getRecordCount() + recorder.getDroppedCount(), 5000L);
+
+        BluetoothDeviceScanner replayed = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        replayed.setAsyncDispatch(false);
+        BluetoothScanReplayer replayer = new BluetoothScanReplayer(new ByteArrayInputStream(os.toByteArray()));
+        replayer.setSpeed(0);
+        assertEquals(replayer.replay(replayed), (int) recorder.getRecordCount());
+    }
+}
@@ -0,0 +1,49 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BluetoothScanSchedulerTest extends UnitTestCase {
+
+    @Test
+    public void 新規デバイスの発見頻度に応じて停止時間が調整される() throws Exception {
+        BluetoothScanScheduler scheduler = new BluetoothScanScheduler(new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE));
+        scheduler.setScanIntervalMs(8000, 2000, 30000);
+        scheduler.setBackoff(2.0f);
+        scheduler.mCurrentScanIntervalMs = 8000;
+
+        scheduler.adaptScanInterval(3);
+        assertEquals(scheduler.getCurrentScanIntervalMs(), 4000);
+        scheduler.adaptScanInterval(1);
+        scheduler.adaptScanInterval(1);
+        assertEquals(scheduler.getCurrentScanIntervalMs(), 2000);
+
+        for (int i = 0; i < 10; ++i) {
+            scheduler.adaptScanInterval(0);
+        }
+        assertEquals(scheduler.getCurrentScanIntervalMs(), 30000);
+    }
+
+    @Test
+    public void スキャン停止中はキャッシュが失効しない() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        // 時計の値が0の時点で停止しても有効となる
+        AtomicLong clock = new AtomicLong(0);
+        scanner.setClock(clock::get);
+        scanner.setExistCacheTimeMs(100);
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -60, null);
+
+        scanner.pauseExpiry();
+        clock.addAndGet(200);
+        assertEquals(scanner.getExistDeviceCaches().size(), 1);
+        assertTrue(scanner.getExistDeviceCaches().get(0).exist());
+
+        // 再開後は停止時間を除いて判定される
+        scanner.resumeExpiry();
+        assertEquals(scanner.getExistDeviceCaches().size(), 1);
+        clock.addAndGet(200);
+        assertEquals(scanner.getExistDeviceCaches().size(), 0);
+    }
+}
@@ -0,0 +1,61 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class DeviceDistanceTableTest extends UnitTestCase {
+
+    @Test
+    public void 整数のRSSIは計算式と一致する() throws Exception {
+        for (int txPower = Byte.MIN_VALUE; txPower <= Byte.MAX_VALUE; ++txPower) {
+            for (int rssi = -130; rssi <= 20; ++rssi) {
+                assertEquals(BluetoothDeviceScanner.calcDeviceDistance(rssi, txPower), DeviceDistanceTable.calcDistance(txPower - rssi), 0.0);
+            }
+            assertEquals(BluetoothDeviceScanner.calcDeviceDistance(BluetoothDeviceScanner.RSSI_UNKNOWN, txPower),
+                    DeviceDistanceTable.calcDistance(txPower - BluetoothDeviceScanner.RSSI_UNKNOWN), 0.0);
+        }
+    }
+
+    @Test
+    public void 小数のRSSIは補間される() throws Exception {
+        for (double rssi = -120; rssi <= 0; rssi += 0.125) {
+            final double expected = DeviceDistanceTable.calcDistance(-55 - rssi);
+            final double distance = BluetoothDeviceScanner.calcDeviceDistance(rssi, -55);
+            assertEquals(distance, expected, expected * 0.005);
+        }
+    }
+
+    /**
+     * Math.pow()による計算と比較する
+     * <br>
+     * 計測結果は実行環境に依存するため、-Dbluetooth.benchmark=trueを指定した場合のみ実行する
+     */
+    @Test
+    public void テーブル参照は計算よりも高速である() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("bluetooth.benchmark"));
+
+        final int LOOP = 1000000;
+        double sum = 0;
+
+        // warm up
+        for (int i = 0; i < LOOP; ++i) {
+            sum += DeviceDistanceTable.getDistance(-(i % 100), -55);
+            sum += DeviceDistanceTable.calcDistance(-55 + (i % 100));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOP; ++i) {
+            sum += DeviceDistanceTable.calcDistance(-55 + (i % 100) + 0.5);
+        }
+        final long powTimeNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOP; ++i) {
+            sum += DeviceDistanceTable.getDistance(-(i % 100) - 0.5, -55);
+        }
+        final long tableTimeNs = System.nanoTime() - start;
+
+        BleLog.debug("distance :: pow[%d ns] table[%d ns] (%f)", powTimeNs / LOOP, tableTimeNs / LOOP, sum);
+        assertTrue(tableTimeNs < powTimeNs);
+    }
+}
@@ -0,0 +1,141 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Test;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class LollipopLeScanBackendTest extends UnitTestCase {
+
+    /**
+     * BluetoothLeScannerの代替
+     */
+    static class StubLeScanner implements LollipopLeScanBackend.LeScanner {
+        List<ScanFilter> mFilters;
+
+        ScanSettings mSettings;
+
+        ScanCallback mCallback;
+
+        boolean mBatchingSupported = true;
+
+        @Override
+        public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+            mFilters = filters;
+            mSettings = settings;
+            mCallback = callback;
+        }
+
+        @Override
+        public void stopScan(ScanCallback callback) {
+            assertSame(callback, mCallback);
+            mCallback = null;
+        }
+
+        @Override
+        public boolean isBatchingSupported() {
+            return mBatchingSupported;
+        }
+    }
+
+    @Test
+    public void フィルタがScanFilterへ変換される() throws Exception {
+        UUID serviceUuid = BluetoothLeUtil.BLE_UUID_HEARTRATE_SERVICE;
+        List<ScanFilter> filters = LollipopLeScanBackend.toScanFilters(Arrays.asList(
+                new BluetoothScanFilter().setDeviceAddress("00:11:22:aa:bb:cc"),
+                new BluetoothScanFilter().setServiceUuid(serviceUuid).setManufacturerId(0x004C)
+        ));
+
+        assertEquals(filters.size(), 2);
+        assertEquals(filters.get(0).getDeviceAddress(), "00:11:22:AA:BB:CC");
+        assertNull(filters.get(0).getServiceUuid());
+        assertEquals(filters.get(1).getServiceUuid().getUuid(), serviceUuid);
+        assertEquals(filters.get(1).getManufacturerId(), 0x004C);
+    }
+
+    @Test
+    public void まとめて受け取った結果が1度にキャッシュへ反映される() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+
+        StubLeScanner leScanner = new StubLeScanner();
+        LollipopLeScanBackend backend = new LollipopLeScanBackend(scanner, leScanner);
+        backend.start(new ArrayList<>(), 1000, null);
+        assertEquals(leScanner.mSettings.getReportDelayMillis(), 1000);
+        assertEquals(leScanner.mFilters.size(), 0);
+
+        List<ScanResult> results = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            results.add(new ScanResult(BluetoothDeviceScannerTest.newDevice(i % 5), null, -60 - i, 0));
+        }
+        leScanner.mCallback.onBatchScanResults(results);
+        assertEquals(scanner.getExistDeviceCaches().size(), 5);
+
+        backend.stop();
+        assertNull(leScanner.mCallback);
+    }
+
+    @Test
+    public void バッチ非対応の場合は都度受け取る() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        StubLeScanner leScanner = new StubLeScanner();
+        leScanner.mBatchingSupported = false;
+
+        new LollipopLeScanBackend(scanner, leScanner).start(new ArrayList<>(), 1000, null);
+        assertEquals(leScanner.mSettings.getReportDelayMillis(), 0);
+        assertEquals(leScanner.mSettings.getScanMode(), ScanSettings.SCAN_MODE_LOW_LATENCY);
+    }
+
+    @Test
+    public void 消費電力を指定できる() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        StubLeScanner leScanner = new StubLeScanner();
+        LollipopLeScanBackend backend = new LollipopLeScanBackend(scanner, leScanner);
+
+        // まとめて受け取る場合は消費電力を優先する
+        backend.start(new ArrayList<>(), 1000, null);
+        assertEquals(leScanner.mSettings.getScanMode(), ScanSettings.SCAN_MODE_LOW_POWER);
+        backend.stop();
+
+        backend.start(new ArrayList<>(), 1000, BluetoothDeviceScanner.ScanPowerMode.Balanced);
+        assertEquals(leScanner.mSettings.getScanMode(), ScanSettings.SCAN_MODE_BALANCED);
+        backend.stop();
+    }
+
+    @Test
+    public void スキャンの失敗がリスナへ通知される() throws Exception {
+        final StubLeScanner leScanner = new StubLeScanner();
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE) {
+            @Override
+            LeScanBackend newLeScanBackend(BluetoothAdapter adapter) {
+                return new LollipopLeScanBackend(this, leScanner);
+            }
+        };
+        final List<Integer> errors = new ArrayList<>();
+        scanner.setScanListener(new BluetoothDeviceScannerTest.CountListener() {
+            @Override
+            public void onScanFailed(BluetoothDeviceScanner self, int errorCode) {
+                errors.add(errorCode);
+            }
+        });
+
+        scanner.startScanImpl();
+        leScanner.mCallback.onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+        assertEquals(errors, Arrays.asList(ScanCallback.SCAN_FAILED_INTERNAL_ERROR));
+
+        // 失敗したスキャンは停止済みとして扱われる
+        ScanCallback callback = leScanner.mCallback;
+        scanner.suspendScan();
+        assertSame(leScanner.mCallback, callback);
+        callback.onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+        assertEquals(errors.size(), 1);
+    }
+}
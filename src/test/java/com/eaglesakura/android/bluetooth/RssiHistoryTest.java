@@ -0,0 +1,33 @@
+package com.eaglesakura.android.bluetooth;
+
+import org.junit.Test;
+
+public class RssiHistoryTest extends UnitTestCase {
+
+    @Test
+    public void 有効時間内の平均が取得できる() throws Exception {
+        RssiHistory history = new RssiHistory();
+        assertEquals(history.getAverage(-100), -100);
+
+        history.push(-60, 0, 1000);
+        history.push(-70, 500, 1000);
+        assertEquals(history.getAverage(0), -65);
+
+        // 1000ms以上前の値は削除される
+        history.push(-80, 1600, 1000);
+        assertEquals(history.size(), 1);
+        assertEquals(history.getAverage(0), -80);
+    }
+
+    @Test
+    public void 容量を超えた場合は古い値から上書きされる() throws Exception {
+        RssiHistory history = new RssiHistory(4);
+        for (int i = 0; i < 10; ++i) {
+            history.push(-i, i, 1000 * 60);
+        }
+
+        assertEquals(history.size(), 4);
+        // -6, -7, -8, -9
+        assertEquals(history.getAverage(0), -7);
+    }
+}
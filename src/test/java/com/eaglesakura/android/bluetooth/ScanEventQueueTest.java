@@ -0,0 +1,83 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.android.bluetooth.BluetoothDeviceScanner.EventOverflowPolicy;
+
+import org.junit.Test;
+
+public class ScanEventQueueTest extends UnitTestCase {
+
+    @Test
+    public void 複数スレッドから追加したイベントを全て取り出せる() throws Exception {
+        final int THREAD_NUM = 4;
+        final int EVENT_NUM = 10000;
+        ScanEventQueue queue = new ScanEventQueue(THREAD_NUM * EVENT_NUM, EventOverflowPolicy.DropNewest);
+
+        Thread[] threads = new Thread[THREAD_NUM];
+        for (int i = 0; i < THREAD_NUM; ++i) {
+            final int type = i;
+            threads[i] = new Thread(() -> {
+                for (int k = 0; k < EVENT_NUM; ++k) {
+                    assertTrue(queue.offer(type, null));
+                }
+            });
+            threads[i].start();
+        }
+
+        int[] counts = new int[THREAD_NUM];
+        int received = 0;
+        while (received < THREAD_NUM * EVENT_NUM) {
+            ScanEventQueue.Node node = queue.poll();
+            if (node != null) {
+                ++counts[node.type];
+                ++received;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int count : counts) {
+            assertEquals(count, EVENT_NUM);
+        }
+        assertNull(queue.poll());
+        assertEquals(queue.size(), 0);
+        assertEquals(queue.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void 溢れた場合は新しいイベントを破棄する() throws Exception {
+        ScanEventQueue queue = new ScanEventQueue(4, EventOverflowPolicy.DropNewest);
+        for (int i = 0; i < 10; ++i) {
+            queue.offer(i, null);
+        }
+
+        assertEquals(queue.getDroppedCount(), 6);
+        assertEquals(queue.getMaxSize(), 4);
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(queue.poll().type, i);
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void 溢れた場合は古いイベントを破棄する() throws Exception {
+        ScanEventQueue queue = new ScanEventQueue(4, EventOverflowPolicy.DropOldest);
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(queue.offer(i, null));
+        }
+
+        // 取り出し時に容量を超えた古いイベントが破棄される
+        for (int i = 4; i < 8; ++i) {
+            assertEquals(queue.poll().type, i);
+        }
+        assertNull(queue.poll());
+        assertEquals(queue.getDroppedCount(), 4);
+
+        // 取り出しが行われない場合、容量の2倍で新しいイベントを破棄する
+        for (int i = 0; i < 10; ++i) {
+            queue.offer(i, null);
+        }
+        assertEquals(queue.size(), 8);
+        assertEquals(queue.getDroppedCount(), 6);
+    }
+}
@@ -0,0 +1,193 @@
+package com.eaglesakura.android.bluetooth;
+
+import com.eaglesakura.util.Util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ScanEventSubscriptionTest extends UnitTestCase {
+
+    static class EventSubscriber implements BluetoothScanSubscriber {
+        final List<BluetoothScanEvent> mEvents = Collections.synchronizedList(new ArrayList<>());
+
+        BluetoothScanSubscription mSubscription;
+
+        @Override
+        public void onSubscribe(BluetoothScanSubscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(BluetoothScanEvent event) {
+            mEvents.add(event);
+        }
+    }
+
+    BluetoothDeviceScanner newScanner() {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(false);
+        return scanner;
+    }
+
+    @Test
+    public void 要求した件数のみ通知される() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        EventSubscriber subscriber = new EventSubscriber();
+        BluetoothScanSubscription subscription = scanner.subscribe(subscriber, BluetoothScanBackpressure.DropOldest, 100);
+        assertEquals(subscriber.mSubscription, subscription);
+
+        subscription.request(2);
+        for (int i = 0; i < 5; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -60, null);
+        }
+        assertEquals(subscriber.mEvents.size(), 2);
+
+        subscription.request(10);
+        assertEquals(subscriber.mEvents.size(), 5);
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(subscriber.mEvents.get(i).getType(), BluetoothScanEvent.Type.Found);
+            assertEquals(subscriber.mEvents.get(i).getAddress(), BluetoothDeviceScannerTest.newDevice(i).getAddress());
+        }
+
+        // 残りの要求分は後から通知される
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -70, null);
+        assertEquals(subscriber.mEvents.size(), 6);
+        assertEquals(subscriber.mEvents.get(5).getType(), BluetoothScanEvent.Type.Updated);
+        assertEquals(subscriber.mEvents.get(5).getDevice().getRssi(), -70);
+
+        // 解除後は通知されない
+        subscription.cancel();
+        subscription.request(10);
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(10), -60, null);
+        assertEquals(subscriber.mEvents.size(), 6);
+    }
+
+    @Test
+    public void 上限を超えた場合は古いイベントから破棄される() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        EventSubscriber subscriber = new EventSubscriber();
+        BluetoothScanSubscription subscription = scanner.subscribe(subscriber, BluetoothScanBackpressure.DropOldest, 3);
+
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -60, null);
+        }
+        assertEquals(subscription.getDroppedCount(), 7L);
+
+        subscription.request(Long.MAX_VALUE);
+        assertEquals(subscriber.mEvents.size(), 3);
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(subscriber.mEvents.get(i).getAddress(), BluetoothDeviceScannerTest.newDevice(7 + i).getAddress());
+        }
+    }
+
+    @Test
+    public void デバイスごとに最新の状態にまとめられる() throws Exception {
+        BluetoothDeviceScanner scanner = newScanner();
+        EventSubscriber subscriber = new EventSubscriber();
+        BluetoothScanSubscription subscription = scanner.subscribe(subscriber, BluetoothScanBackpressure.LatestPerAddress, 100);
+
+        subscription.request(1);
+        scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -60, null);
+        assertEquals(subscriber.mEvents.size(), 1);
+
+        for (int i = 0; i < 10; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(0), -60 - i, null);
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(1), -60 - i, null);
+        }
+        assertEquals(((ScanEventSubscription) subscription).getBufferedCount(), 2);
+
+        subscription.request(1);
+        assertEquals(subscriber.mEvents.size(), 2);
+        assertEquals(subscriber.mEvents.get(1).getType(), BluetoothScanEvent.Type.Updated);
+        assertEquals(subscriber.mEvents.get(1).getDevice().getRssi(), -69);
+
+        // 発見を通知する前に失効したデバイスは通知されない
+        scanner.setExistCacheTimeMs(0);
+        scanner.cleanDeviceCaches();
+        assertEquals(((ScanEventSubscription) subscription).getBufferedCount(), 1);
+
+        subscription.request(Long.MAX_VALUE);
+        assertEquals(subscriber.mEvents.size(), 3);
+        assertEquals(subscriber.mEvents.get(2).getType(), BluetoothScanEvent.Type.Lost);
+        assertEquals(subscriber.mEvents.get(2).getAddress(), BluetoothDeviceScannerTest.newDevice(0).getAddress());
+    }
+
+    @Test
+    public void 処理の遅い購読者が受信を止めない() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(true);
+        EventSubscriber subscriber = new EventSubscriber();
+        ScanEventSubscription subscription = (ScanEventSubscription) scanner.subscribe(subscriber, BluetoothScanBackpressure.DropNewest, 2);
+
+        final int deviceNum = 100;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < deviceNum; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -60, null);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(scanner.getExistDeviceCaches().size(), deviceNum);
+
+        // 購読者が要求しなくても、配送スレッドは待機せずに全てのイベントを処理する
+        long timeout = System.currentTimeMillis() + 1000 * 10;
+        while (subscription.getDroppedCount() + subscription.getBufferedCount() < deviceNum && System.currentTimeMillis() < timeout) {
+            Util.sleep(1);
+        }
+        assertEquals(subscription.getBufferedCount(), 2);
+        assertEquals(subscription.getDroppedCount(), (long) (deviceNum - 2));
+
+        // バッファには古いイベントが残る
+        subscription.request(Long.MAX_VALUE);
+        assertEquals(subscriber.mEvents.size(), 2);
+        for (int i = 0; i < 2; ++i) {
+            assertEquals(subscriber.mEvents.get(i).getAddress(), BluetoothDeviceScannerTest.newDevice(i).getAddress());
+        }
+
+        subscription.cancel();
+        scanner.stopScan();
+    }
+
+    @Test
+    public void 要求があるまで購読ごとのスレッドのみが待機する() throws Exception {
+        BluetoothDeviceScanner scanner = new BluetoothDeviceScanner(getContext(), BluetoothDeviceType.BluetoothLE);
+        scanner.setAsyncDispatch(true);
+        EventSubscriber blocking = new EventSubscriber();
+        ScanEventSubscription subscription = (ScanEventSubscription) scanner.subscribe(blocking, BluetoothScanBackpressure.Block, 2);
+        EventSubscriber other = new EventSubscriber();
+        scanner.subscribe(other, BluetoothScanBackpressure.DropOldest, 1000).request(Long.MAX_VALUE);
+
+        final int deviceNum = 100;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < deviceNum; ++i) {
+            scanner.onScanResult(BluetoothDeviceScannerTest.newDevice(i), -60, null);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // 要求しない購読者がいても、他の購読者へは全てのイベントが届く
+        long timeout = System.currentTimeMillis() + 1000 * 10;
+        while (other.mEvents.size() < deviceNum && System.currentTimeMillis() < timeout) {
+            Util.sleep(1);
+        }
+        assertEquals(other.mEvents.size(), deviceNum);
+        assertEquals(blocking.mEvents.size(), 0);
+        assertTrue(subscription.getBufferedCount() <= 2);
+
+        // 1件ずつ要求しても、破棄されずに全てのイベントが順に届く
+        timeout = System.currentTimeMillis() + 1000 * 10;
+        while (blocking.mEvents.size() < deviceNum && System.currentTimeMillis() < timeout) {
+            subscription.request(1);
+            assertTrue(subscription.getBufferedCount() <= 2);
+            Util.sleep(1);
+        }
+        assertEquals(blocking.mEvents.size(), deviceNum);
+        assertEquals(subscription.getDroppedCount(), 0L);
+        for (int i = 0; i < deviceNum; ++i) {
+            assertEquals(blocking.mEvents.get(i).getAddress(), BluetoothDeviceScannerTest.newDevice(i).getAddress());
+        }
+
+        subscription.cancel();
+        scanner.stopScan();
+    }
+}
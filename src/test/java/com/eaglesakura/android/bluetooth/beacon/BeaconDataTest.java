@@ -0,0 +1,217 @@
+package com.eaglesakura.android.bluetooth.beacon;
+
+import com.eaglesakura.android.bluetooth.BleLog;
+import com.eaglesakura.android.bluetooth.UnitTestCase;
+import com.eaglesakura.io.DataInputStream;
+import com.eaglesakura.util.StringUtil;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+public class BeaconDataTest extends UnitTestCase {
+
+    static final UUID BEACON_UUID = UUID.fromString("00112233-4455-6677-8899-AABBCCDDEEFF");
+
+    /**
+     * iBeacon(major=0x8001, minor=2)
+     */
+    static final byte[] BEACON_RECORD = {
+            0x02, 0x01, 0x06,                           // flags
+            0x1A, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,  // manufacturer(0x004C)
+            0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77,
+            (byte) 0x88, (byte) 0x99, (byte) 0xAA, (byte) 0xBB, (byte) 0xCC, (byte) 0xDD, (byte) 0xEE, (byte) 0xFF,
+            (byte) 0x80, 0x01, 0x00, 0x02,              // major, minor
+            (byte) 0xC5,                                // tx power
+    };
+
+    @Test
+    public void スキャン結果からBeacon情報が取得できる() throws Exception {
+        BeaconData beacon = BeaconData.createInstance(BEACON_RECORD);
+        assertEquals(beacon.getUuid(), BEACON_UUID);
+        assertEquals(beacon.getUuidMostSignificantBits(), BEACON_UUID.getMostSignificantBits());
+        assertEquals(beacon.getUuidLeastSignificantBits(), BEACON_UUID.getLeastSignificantBits());
+        assertEquals(beacon.getAdType(), (byte) 0xFF);
+        assertEquals(beacon.getMajor(), 0x8001);
+        assertEquals(beacon.getMinor(), 2);
+        assertEquals(beacon.getTxPower(), (byte) 0xC5);
+    }
+
+    @Test
+    public void Beacon以外のスキャン結果は解析しない() throws Exception {
+        try {
+            BeaconData.createInstance(Arrays.copyOf(BEACON_RECORD, 29));
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        byte[] record = BEACON_RECORD.clone();
+        record[7] = 0x01;
+        try {
+            BeaconData.createInstance(record);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // 解析に失敗した場合、再利用するインスタンスの値は変更されない
+        BeaconData beacon = new BeaconData();
+        assertTrue(beacon.parse(BEACON_RECORD));
+        assertFalse(beacon.parse(record));
+        assertFalse(beacon.parse(null));
+        assertEquals(beacon.getUuid(), BEACON_UUID);
+        assertEquals(beacon.getMajor(), 0x8001);
+    }
+
+    @Test
+    public void 再利用するインスタンスへ上書きできる() throws Exception {
+        BeaconData beacon = new BeaconData();
+        assertTrue(beacon.parse(BEACON_RECORD));
+        assertEquals(beacon.getUuid(), BEACON_UUID);
+
+        UUID other = UUID.randomUUID();
+        byte[] record = BEACON_RECORD.clone();
+        for (int i = 0; i < 8; ++i) {
+            record[9 + i] = (byte) (other.getMostSignificantBits() >>> (56 - i * 8));
+            record[17 + i] = (byte) (other.getLeastSignificantBits() >>> (56 - i * 8));
+        }
+        record[28] = 0x03;
+        assertTrue(beacon.parse(record));
+        assertEquals(beacon.getUuid(), other);
+        assertEquals(beacon.getMinor(), 3);
+    }
+
+    @Test
+    public void 従来の解析と同じ値が取得できる() throws Exception {
+        BeaconData legacy = createLegacyInstance(BEACON_RECORD);
+        BeaconData beacon = BeaconData.createInstance(BEACON_RECORD);
+        assertEquals(beacon.getUuid(), legacy.getUuid());
+        assertEquals(beacon.getAdType(), legacy.getAdType());
+        assertEquals(beacon.companyType, legacy.companyType);
+        assertEquals(beacon.getMajor(), legacy.getMajor());
+        assertEquals(beacon.getMinor(), legacy.getMinor());
+        assertEquals(beacon.getTxPower(), legacy.getTxPower());
+    }
+
+    /**
+     * 計測結果は実行環境に依存するため、-Dbluetooth.benchmark=trueを指定した場合のみ実行する
+     */
+    @Test
+    public void 文字列を経由する解析より高速である() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("bluetooth.benchmark"));
+
+        final int PARSE_COUNT = 200000;
+        final long legacyCostNs = benchmark(PARSE_COUNT, () -> createLegacyInstance(BEACON_RECORD));
+        final long createCostNs = benchmark(PARSE_COUNT, () -> BeaconData.createInstance(BEACON_RECORD));
+        final BeaconData reused = new BeaconData();
+        final long parseCostNs = benchmark(PARSE_COUNT, () -> {
+            reused.parse(BEACON_RECORD);
+            return reused;
+        });
+
+        BleLog.debug("beacon parse cost :: legacy[%d ns] createInstance[%d ns] parse[%d ns]", legacyCostNs, createCostNs, parseCostNs);
+        assertTrue(createCostNs < legacyCostNs);
+        assertTrue(parseCostNs < legacyCostNs);
+    }
+
+    interface BeaconParser {
+        BeaconData parse() throws Exception;
+    }
+
+    /**
+     * 1回あたりの解析時間を計測する
+     *
+     * @return 解析1回あたりの時間(ns)
+     */
+    long benchmark(int parseCount, BeaconParser parser) throws Exception {
+        long checksum = 0;
+
+        // warm up
+        for (int i = 0; i < parseCount; ++i) {
+            final BeaconData beacon = parser.parse();
+            checksum += beacon.getMajor() + (beacon.getUuid().getLeastSignificantBits() & 0x01);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < parseCount; ++i) {
+            final BeaconData beacon = parser.parse();
+            checksum += beacon.getMajor() + (beacon.getUuid().getLeastSignificantBits() & 0x01);
+        }
+        final long result = (System.nanoTime() - start) / parseCount;
+        assertEquals(checksum, (0x8001L + (BEACON_UUID.getLeastSignificantBits() & 0x01)) * parseCount * 2);
+        return result;
+    }
+
+    /**
+     * 変更前のcreateInstance()と同じ方法で解析する
+     * <br>
+     * ストリームから読み込み、16進文字列を経由してUUIDを生成する。
+     */
+    static BeaconData createLegacyInstance(byte[] scanRecord) throws Exception {
+        if (scanRecord.length < 30) {
+            throw new IllegalArgumentException("scanRecord.length < 30");
+        }
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(scanRecord));
+        dis.readBuffer(4); // 不要データを読み飛ばす
+
+        BeaconData result = new BeaconData();
+        result.adType = dis.readS8();
+        result.companyType = dis.readS16();
+        if (dis.readS8() != 0x02) {
+            // is not Beacon!!
+            throw new IllegalStateException("this record != beacon");
+        }
+
+        // skip
+        dis.readS8();
+
+        // UUID
+        {
+            byte[] uuid = dis.readBuffer(16);
+            String uuidText = "";
+            int index = 0;
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+
+            uuidText += "-";
+
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+
+            uuidText += "-";
+
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+
+            uuidText += "-";
+
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+
+            uuidText += "-";
+
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+            uuidText += StringUtil.toHexString(uuid[index++]);
+
+            result.uuid = UUID.fromString(uuidText);
+        }
+
+        // major/minor
+        result.major = dis.readS16();
+        result.minor = dis.readS16();
+
+        // tx
+        result.txPower = dis.readS8();
+
+        return result;
+    }
+}
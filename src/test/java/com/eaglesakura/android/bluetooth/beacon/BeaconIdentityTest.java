@@ -0,0 +1,89 @@
+package com.eaglesakura.android.bluetooth.beacon;
+
+import com.eaglesakura.android.bluetooth.UnitTestCase;
+import com.eaglesakura.android.bluetooth.beacon.data.PeripheralBeacon;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class BeaconIdentityTest extends UnitTestCase {
+
+    static final String ADDRESS = "00:11:22:33:44:AA";
+
+    @Test
+    public void 文字列表現が従来のIDと一致する() throws Exception {
+        BeaconData beacon = BeaconData.createInstance(BeaconDataTest.BEACON_RECORD);
+        BeaconIdentity identity = BeaconIdentity.of(beacon, ADDRESS.toLowerCase());
+
+        assertEquals(identity.getUuid(), BeaconDataTest.BEACON_UUID);
+        assertEquals(identity.getAddress(), 0x0011223344AAL);
+        assertEquals(identity.toString(), BeaconData.createUniqueID(BeaconDataTest.BEACON_UUID.toString(), 0x8001, 2, ADDRESS));
+        assertEquals(BeaconIdentity.formatAddress(identity.getAddress()), ADDRESS);
+
+        assertEquals(BeaconIdentity.packAddress("00:11:22:33:44"), BeaconIdentity.ADDRESS_NONE);
+        assertEquals(BeaconIdentity.packAddress("00-11-22-33-44-55"), BeaconIdentity.ADDRESS_NONE);
+        try {
+            BeaconIdentity.of(beacon, "invalid");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void 各値が一致する場合のみ等しい() throws Exception {
+        BeaconIdentity identity = new BeaconIdentity(1, 2, 3, 4, 5);
+        assertEquals(identity, new BeaconIdentity(1, 2, 3, 4, 5));
+        assertEquals(identity.hashCode(), new BeaconIdentity(1, 2, 3, 4, 5).hashCode());
+
+        assertFalse(identity.equals(new BeaconIdentity(0, 2, 3, 4, 5)));
+        assertFalse(identity.equals(new BeaconIdentity(1, 0, 3, 4, 5)));
+        assertFalse(identity.equals(new BeaconIdentity(1, 2, 0, 4, 5)));
+        assertFalse(identity.equals(new BeaconIdentity(1, 2, 3, 0, 5)));
+        assertFalse(identity.equals(new BeaconIdentity(1, 2, 3, 4, BeaconIdentity.ADDRESS_NONE)));
+    }
+
+    @Test
+    public void マップへの登録と削除が一致する() throws Exception {
+        Random random = new Random(0);
+        BeaconIdentityMap<Integer> map = new BeaconIdentityMap<>();
+        Map<BeaconIdentity, Integer> expected = new HashMap<>();
+
+        // 衝突させるため、値の範囲を狭めて登録と削除を繰り返す
+        for (int i = 0; i < 20000; ++i) {
+            BeaconIdentity identity = new BeaconIdentity(random.nextInt(4), random.nextInt(4), random.nextInt(8), random.nextInt(8), random.nextInt(4));
+            if (random.nextInt(3) == 0) {
+                assertEquals(map.remove(identity), expected.remove(identity));
+            } else {
+                assertEquals(map.put(identity, i), expected.put(identity, i));
+            }
+            assertEquals(map.size(), expected.size());
+        }
+
+        for (Map.Entry<BeaconIdentity, Integer> entry : expected.entrySet()) {
+            BeaconIdentity key = entry.getKey();
+            assertEquals(map.get(key.getUuidMostSignificantBits(), key.getUuidLeastSignificantBits(), key.getMajor(), key.getMinor(), key.getAddress()), entry.getValue());
+        }
+
+        Map<BeaconIdentity, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(visited, expected);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(new BeaconIdentity(0, 0, 0, 0, 0)));
+    }
+
+    @Test
+    public void 形式の異なるアドレスでも従来のIDを取得できる() throws Exception {
+        PeripheralBeacon beacon = new PeripheralBeacon("beacon", ADDRESS, BeaconDataTest.BEACON_RECORD, 1.0);
+        assertNotNull(beacon.getIdentity());
+        assertEquals(beacon.getUniqueId(), BeaconData.createUniqueID(BeaconDataTest.BEACON_UUID.toString(), 0x8001, 2, ADDRESS));
+
+        beacon.setMacAddress("stub-address");
+        assertNull(beacon.getIdentity());
+        assertEquals(beacon.getUniqueId(), BeaconData.createUniqueID(BeaconDataTest.BEACON_UUID.toString(), 0x8001, 2, "stub-address"));
+    }
+}
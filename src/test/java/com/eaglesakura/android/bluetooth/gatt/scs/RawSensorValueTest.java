@@ -1,10 +1,14 @@
 package com.eaglesakura.android.bluetooth.gatt.scs;
 
+import com.eaglesakura.android.bluetooth.BluetoothClock;
 import com.eaglesakura.android.bluetooth.BluetoothLeUtil;
 import com.eaglesakura.android.bluetooth.UnitTestCase;
 
 import org.junit.Test;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class RawSensorValueTest extends UnitTestCase {
 
     @Test
@@ -57,4 +61,31 @@ public class RawSensorValueTest extends UnitTestCase {
             validate(AVG_RPM).from(SAMPLE_RPM * 0.99).to(SAMPLE_RPM * 1.01);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void センサー時刻が進まない場合は受信間隔から回転数を求める() throws Exception {
+        AtomicLong wallClock = new AtomicLong(1000 * 1000);
+        AtomicLong monotonicClock = new AtomicLong(0);
+        BluetoothClock clock = new BluetoothClock() {
+            @Override
+            public long currentTimeMillis() {
+                return wallClock.get();
+            }
+
+            @Override
+            public long nanoTime() {
+                return monotonicClock.get();
+            }
+        };
+
+        RawSensorValue oldValue = RawSensorValue.nextValue(clock, null, 100, 1024);
+
+        // 端末の時刻が戻っても、実際の経過時間で計算される
+        wallClock.addAndGet(-1000 * 60);
+        monotonicClock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        RawSensorValue newValue = RawSensorValue.nextValue(clock, oldValue, 200, 1024);
+
+        assertEquals(newValue.getSystemTimestamp(), 1000L * 1000 - 1000 * 60);
+        validate(newValue.getRpm(oldValue)).from(199.9).to(200.1);
+    }
+}
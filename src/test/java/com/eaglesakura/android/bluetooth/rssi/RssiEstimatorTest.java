@@ -0,0 +1,57 @@
+package com.eaglesakura.android.bluetooth.rssi;
+
+import com.eaglesakura.android.bluetooth.UnitTestCase;
+
+import org.junit.Test;
+
+public class RssiEstimatorTest extends UnitTestCase {
+
+    /**
+     * 一定値の周囲で揺らぐRSSIを流し込み、推定値が中心付近に収束することを確認する
+     */
+    void assertConverge(RssiEstimator estimator) {
+        assertTrue(Double.isNaN(estimator.getEstimate()));
+
+        for (int i = 0; i < 100; ++i) {
+            estimator.update(-70 + ((i % 2) == 0 ? 5 : -5), i * 100);
+        }
+        validate(estimator.getEstimate()).from(-75.0).to(-65.0);
+
+        estimator.reset();
+        assertTrue(Double.isNaN(estimator.getEstimate()));
+    }
+
+    @Test
+    public void EWMAで推定できる() throws Exception {
+        assertConverge(new EwmaRssiEstimator(0.2));
+
+        RssiEstimator estimator = new EwmaRssiEstimator(0.5);
+        estimator.update(-60, 0);
+        estimator.update(-80, 100);
+        assertEquals(estimator.getEstimate(), -70.0, 0.0001);
+    }
+
+    @Test
+    public void カルマンフィルタで推定できる() throws Exception {
+        assertConverge(new KalmanRssiEstimator(0.05, 4.0));
+    }
+
+    @Test
+    public void 中央値で推定できる() throws Exception {
+        assertConverge(new MedianRssiEstimator(5));
+
+        RssiEstimator estimator = new MedianRssiEstimator(3);
+        estimator.update(-60, 0);
+        estimator.update(-100, 1);
+        assertEquals(estimator.getEstimate(), -80.0, 0.0001);
+
+        // 外れ値は無視される
+        estimator.update(-62, 2);
+        assertEquals(estimator.getEstimate(), -62.0, 0.0001);
+
+        // 古い値(-60)が押し出される
+        estimator.update(-64, 3);
+        estimator.update(-66, 4);
+        assertEquals(estimator.getEstimate(), -64.0, 0.0001);
+    }
+}